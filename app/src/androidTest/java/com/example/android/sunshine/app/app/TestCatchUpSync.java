@@ -0,0 +1,104 @@
+package com.example.android.sunshine.app.app;
+
+import android.content.SyncResult;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.R;
+
+/*
+    Walks the catch-up sync through arming, firing and arming again, including the syncs that
+    end without a status of their own.  The network coming back is played by onNetworkBack, so
+    no real catch-up sync is requested in the middle of a test.
+ */
+public class TestCatchUpSync extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        SyncCircuitBreaker.getInstance(getContext()).recordSuccess();
+        CatchUpSync.onSyncFinished(getContext(), SunshineSyncAdapter.LOCATION_STATUS_OK);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SyncCircuitBreaker.getInstance(getContext()).recordSuccess();
+        // Disarms whatever a test left scheduled.
+        CatchUpSync.onSyncFinished(getContext(), SunshineSyncAdapter.LOCATION_STATUS_OK);
+        super.tearDown();
+    }
+
+    public void testArmedByServerDown() {
+        CatchUpSync.onSyncFinished(getContext(), SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
+        assertEquals(CatchUpSync.STATE_IDLE, CatchUpSync.getState(getContext()));
+
+        CatchUpSync.onSyncFinished(getContext(), SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN);
+        assertEquals(CatchUpSync.STATE_ARMED, CatchUpSync.getState(getContext()));
+
+        // A sync that ends without a status leaves it waiting for the network.
+        CatchUpSync.onSyncFinished(getContext(), SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
+        assertEquals(CatchUpSync.STATE_ARMED, CatchUpSync.getState(getContext()));
+
+        CatchUpSync.onSyncFinished(getContext(), SunshineSyncAdapter.LOCATION_STATUS_OK);
+        assertEquals("Error: a successful sync didn't disarm the catch-up",
+                CatchUpSync.STATE_IDLE, CatchUpSync.getState(getContext()));
+    }
+
+    public void testNotArmedWhileCircuitOpen() {
+        openCircuit();
+        CatchUpSync.onSyncFinished(getContext(), SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN);
+        assertEquals(CatchUpSync.STATE_IDLE, CatchUpSync.getState(getContext()));
+    }
+
+    public void testFiresOnce() {
+        assertFalse("Error: fired without being armed", CatchUpSync.onNetworkBack(getContext()));
+
+        CatchUpSync.onSyncFinished(getContext(), SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN);
+        assertTrue(CatchUpSync.onNetworkBack(getContext()));
+        assertEquals(CatchUpSync.STATE_FIRED, CatchUpSync.getState(getContext()));
+        assertFalse("Error: fired twice", CatchUpSync.onNetworkBack(getContext()));
+    }
+
+    public void testRearmedAfterFailedCatchUp() {
+        fire();
+        CatchUpSync.onSyncFinished(getContext(), SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN);
+        assertEquals("Error: a failed catch-up sync armed another one",
+                CatchUpSync.STATE_IDLE, CatchUpSync.getState(getContext()));
+
+        // The next failure is a new one, and gets its own catch-up.
+        CatchUpSync.onSyncFinished(getContext(), SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN);
+        assertEquals(CatchUpSync.STATE_ARMED, CatchUpSync.getState(getContext()));
+    }
+
+    public void testCanceledCatchUpIsReset() {
+        fire();
+        CatchUpSync.onSyncFinished(getContext(), SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
+        assertEquals("Error: the catch-up stayed fired after a sync without a status",
+                CatchUpSync.STATE_IDLE, CatchUpSync.getState(getContext()));
+    }
+
+    /*
+        The catch-up sync is turned away by the circuit breaker before it fetches anything.
+     */
+    public void testSkippedCatchUpIsReset() {
+        fire();
+        openCircuit();
+        new SunshineSyncAdapter(getContext(), false).onPerformSync(null, new Bundle(),
+                getContext().getString(R.string.content_authority), null, new SyncResult());
+        assertEquals("Error: the catch-up stayed fired after the circuit breaker skipped it",
+                CatchUpSync.STATE_IDLE, CatchUpSync.getState(getContext()));
+    }
+
+    private void fire() {
+        CatchUpSync.onSyncFinished(getContext(), SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN);
+        assertTrue(CatchUpSync.onNetworkBack(getContext()));
+    }
+
+    private void openCircuit() {
+        SyncCircuitBreaker circuitBreaker = SyncCircuitBreaker.getInstance(getContext());
+        for (int i = 0; i < SyncCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            circuitBreaker.recordFailure();
+        }
+        assertTrue(circuitBreaker.getOpenUntil() > 0);
+    }
+}
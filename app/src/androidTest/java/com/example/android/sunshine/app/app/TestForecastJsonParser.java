@@ -0,0 +1,163 @@
+package com.example.android.sunshine.app.app;
+
+import android.content.ContentValues;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/*
+    Checks that the streaming forecast parser produces exactly what the JSONObject parser did,
+    and logs how the two compare on time and allocations for a 14 and a 16 day payload.
+ */
+public class TestForecastJsonParser extends AndroidTestCase {
+    public static final String LOG_TAG = TestForecastJsonParser.class.getSimpleName();
+
+    private static final int BENCHMARK_ITERATIONS = 200;
+
+    static class ListCallback implements ForecastJsonParser.Callback {
+        String cityName;
+        double lat;
+        double lon;
+        final ArrayList<ContentValues> days = new ArrayList<ContentValues>();
+
+        @Override
+        public void onCity(String cityName, double lat, double lon) {
+            this.cityName = cityName;
+            this.lat = lat;
+            this.lon = lon;
+        }
+
+        @Override
+        public void onDay(int dayIndex, ContentValues weatherValues) {
+            assertEquals("Error: days were handed out of order", days.size(), dayIndex);
+            days.add(weatherValues);
+        }
+    }
+
+    /*
+        Builds a response shaped like the OWM daily forecast, including the fields we skip.
+        The list is sent before the city to make sure the parser doesn't depend on the order.
+     */
+    static byte[] createForecastJson(int numDays) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"cod\":\"200\",\"message\":0.0123,\"cnt\":").append(numDays)
+                .append(",\"list\":[");
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0) json.append(',');
+            json.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"temp\":{\"day\":20.5,\"min\":%.2f,\"max\":%.2f,\"night\":12.1," +
+                            "\"eve\":18.3,\"morn\":11.7},\"pressure\":%.2f,\"humidity\":%d," +
+                            "\"weather\":[{\"id\":%d,\"main\":\"Rain\",\"description\":\"light rain\"," +
+                            "\"icon\":\"10d\"}],\"speed\":%.2f,\"deg\":%d,\"clouds\":40,\"rain\":1.5}",
+                    1419033600L + i * 86400L, 10.0 + i, 20.0 + i, 1013.25 - i, 60 + i,
+                    500 + (i % 5), 3.5 + i * 0.1, (i * 37) % 360));
+        }
+        json.append("],\"city\":{\"id\":5375480,\"name\":\"Mountain View\",")
+                .append("\"coord\":{\"lon\":-122.0838,\"lat\":37.3861},")
+                .append("\"country\":\"US\",\"population\":0}}");
+        return json.toString().getBytes();
+    }
+
+    public void testStreamingMatchesTree() throws Exception {
+        byte[] payload = createForecastJson(14);
+
+        ListCallback streamed = new ListCallback();
+        assertEquals(HttpURLConnection.HTTP_OK,
+                ForecastJsonParser.parseStreaming(new ByteArrayInputStream(payload), streamed));
+
+        ListCallback tree = new ListCallback();
+        assertEquals(HttpURLConnection.HTTP_OK,
+                ForecastJsonParser.parseTree(new ByteArrayInputStream(payload), tree));
+
+        assertEquals("Mountain View", streamed.cityName);
+        assertEquals(tree.cityName, streamed.cityName);
+        assertEquals(tree.lat, streamed.lat);
+        assertEquals(tree.lon, streamed.lon);
+        assertEquals(14, streamed.days.size());
+        assertEquals(tree.days.size(), streamed.days.size());
+        for (int i = 0; i < tree.days.size(); i++) {
+            assertEquals("Error: day " + i + " differs between parsers",
+                    tree.days.get(i), streamed.days.get(i));
+        }
+        assertEquals(500, (int) streamed.days.get(0)
+                .getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID));
+    }
+
+    public void testErrorCode() throws Exception {
+        byte[] payload = "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}".getBytes();
+        ListCallback callback = new ListCallback();
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND,
+                ForecastJsonParser.parseStreaming(new ByteArrayInputStream(payload), callback));
+        assertEquals(0, callback.days.size());
+    }
+
+    public void testInvalidJson() throws Exception {
+        byte[] payload = "{\"cod\":\"200\",\"list\":[{\"pressure\":\"high\"}]}".getBytes();
+        try {
+            ForecastJsonParser.parseStreaming(new ByteArrayInputStream(payload), new ListCallback());
+            fail("Error: invalid forecast was accepted");
+        } catch (JSONException expected) {
+        }
+    }
+
+    public void testEmptyResponse() throws Exception {
+        try {
+            ForecastJsonParser.parseStreaming(new ByteArrayInputStream(new byte[0]),
+                    new ListCallback());
+            fail("Error: empty forecast was accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testParseBenchmark() throws Exception {
+        benchmark(14);
+        benchmark(16);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void benchmark(int numDays) throws Exception {
+        byte[] payload = createForecastJson(numDays);
+        for (int pass = 0; pass < 2; pass++) {
+            boolean streaming = pass == 0;
+
+            // warm up
+            runParser(streaming, payload);
+
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                runParser(streaming, payload);
+            }
+            long elapsed = System.nanoTime() - start;
+            Debug.stopAllocCounting();
+
+            Log.i(LOG_TAG, String.format(Locale.US,
+                    "%s parser, %d days (%d bytes): %.1f us/parse, %d allocs/parse, %d bytes/parse",
+                    streaming ? "streaming" : "tree", numDays, payload.length,
+                    elapsed / 1000.0 / BENCHMARK_ITERATIONS,
+                    Debug.getThreadAllocCount() / BENCHMARK_ITERATIONS,
+                    Debug.getThreadAllocSize() / BENCHMARK_ITERATIONS));
+        }
+    }
+
+    private static void runParser(boolean streaming, byte[] payload) throws Exception {
+        ListCallback callback = new ListCallback();
+        if (streaming) {
+            ForecastJsonParser.parseStreaming(new ByteArrayInputStream(payload), callback);
+        } else {
+            ForecastJsonParser.parseTree(new ByteArrayInputStream(payload), callback);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.example.android.sunshine.app.app;
+
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/*
+    Runs a response cache of its own, in a directory of its own and on a clock the test moves
+    along, through expiry, eviction, failed writes and clearing.
+ */
+public class TestForecastResponseCache extends AndroidTestCase {
+
+    private static final String TEST_DIR = "test_forecast_responses";
+    private static final long START_TIME = 1000L * 1000 * 1000 * 1000;
+    // Whole seconds, since some file systems keep modification times no finer than that
+    private static final long TICK_MS = 1000;
+    private static final int TODAY = 2457012;
+
+    private File mDirectory;
+    private TestCache mCache;
+
+    private static class TestCache extends ForecastResponseCache {
+        long time = START_TIME;
+
+        TestCache(File directory) {
+            super(directory);
+        }
+
+        @Override
+        long now() {
+            return time;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), TEST_DIR);
+        deleteDirectory();
+        mCache = new TestCache(mDirectory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    public void testExpiresAfterTtl() throws IOException {
+        byte[] body = createBody(1, 100);
+        put("http://example.com/a", body);
+
+        mCache.time += ForecastResponseCache.TTL_MILLIS - 1;
+        assertTrue("Error: a fresh response wasn't replayed",
+                Arrays.equals(body, get("http://example.com/a")));
+        mCache.time += 1;
+        assertNull("Error: an expired response was replayed", get("http://example.com/a"));
+        assertEquals("Error: the expired entry was kept", 0, countFiles());
+    }
+
+    /*
+        A sync just after midnight dates the days from the new day, so a response fetched for
+        the old one mustn't be replayed, however fresh it is.
+     */
+    public void testExpiresAtMidnight() throws IOException {
+        put("http://example.com/a", createBody(1, 100));
+
+        mCache.time += TICK_MS;
+        assertNull("Error: a response from yesterday was replayed",
+                get("http://example.com/a", TODAY + 1));
+        assertEquals("Error: yesterday's entry was kept", 0, countFiles());
+    }
+
+    public void testEvictsLeastRecentlyUsedByCount() throws IOException {
+        for (int i = 0; i < ForecastResponseCache.MAX_ENTRIES; i++) {
+            put("http://example.com/" + i, createBody(i, 10));
+            mCache.time += TICK_MS;
+        }
+        // The oldest entry was used last, so the second oldest goes first.
+        assertNotNull(get("http://example.com/0"));
+        mCache.time += TICK_MS;
+        put("http://example.com/new", createBody(-1, 10));
+
+        assertEquals(ForecastResponseCache.MAX_ENTRIES, countFiles());
+        assertNotNull("Error: a recently used entry was evicted", get("http://example.com/0"));
+        assertNull("Error: the least recently used entry wasn't evicted",
+                get("http://example.com/1"));
+        assertNotNull(get("http://example.com/new"));
+    }
+
+    public void testEvictsLeastRecentlyUsedByBytes() throws IOException {
+        int size = (int) (ForecastResponseCache.MAX_BYTES / 3);
+        put("http://example.com/a", createBody(1, size));
+        mCache.time += TICK_MS;
+        put("http://example.com/b", createBody(2, size));
+        mCache.time += TICK_MS;
+        // With the entries' headers, a third one doesn't fit any more.
+        put("http://example.com/c", createBody(3, size));
+
+        assertNull("Error: the cache grew past its size", get("http://example.com/a"));
+        assertNotNull(get("http://example.com/b"));
+        assertNotNull(get("http://example.com/c"));
+    }
+
+    public void testAbortedWrite() throws IOException {
+        byte[] body = createBody(1, 1000);
+        ForecastResponseCache.Writer writer =
+                mCache.startWrite("http://example.com/a", TODAY, new ByteArrayInputStream(body));
+        InputStream in = writer.getInputStream();
+        in.read(new byte[body.length / 2]);
+        assertNull("Error: an entry was visible before it was committed",
+                get("http://example.com/a"));
+        writer.abort();
+
+        assertNull("Error: an aborted write was replayed", get("http://example.com/a"));
+        assertEquals("Error: an aborted write left its temporary file", 0, countFiles());
+    }
+
+    public void testPartiallyReadWrite() throws IOException {
+        // The parser stops before the end of the body; the commit copies the rest.
+        byte[] body = createBody(1, 1000);
+        ForecastResponseCache.Writer writer =
+                mCache.startWrite("http://example.com/a", TODAY, new ByteArrayInputStream(body));
+        writer.getInputStream().read(new byte[body.length / 2]);
+        writer.commit();
+
+        assertTrue("Error: the rest of the body wasn't cached",
+                Arrays.equals(body, get("http://example.com/a")));
+    }
+
+    public void testFailedBodyIsNotCached() throws IOException {
+        // The connection drops while the commit reads the rest of the body.
+        byte[] body = createBody(1, 1000);
+        ForecastResponseCache.Writer writer = mCache.startWrite("http://example.com/a", TODAY,
+                new DroppedInputStream(body, body.length / 2));
+        writer.getInputStream().read(new byte[body.length / 4]);
+        try {
+            writer.commit();
+            fail("Error: a failed read went unnoticed");
+        } catch (IOException expected) {
+            writer.abort();
+        }
+
+        assertNull("Error: a cut off body was cached", get("http://example.com/a"));
+        assertEquals(0, countFiles());
+    }
+
+    public void testClear() throws IOException {
+        put("http://example.com/a", createBody(1, 100));
+        put("http://example.com/b", createBody(2, 100));
+        byte[] body = createBody(3, 100);
+        ForecastResponseCache.Writer writer =
+                mCache.startWrite("http://example.com/c", TODAY, new ByteArrayInputStream(body));
+
+        mCache.clear();
+        assertNull(get("http://example.com/a"));
+        assertNull(get("http://example.com/b"));
+
+        // A write in progress is left alone and still lands.
+        writer.commit();
+        assertTrue(Arrays.equals(body, get("http://example.com/c")));
+    }
+
+    /*
+        Hands out the start of a body, then fails like a connection that was reset.
+     */
+    private static class DroppedInputStream extends FilterInputStream {
+        private int mLeft;
+
+        DroppedInputStream(byte[] body, int dropAt) {
+            super(new ByteArrayInputStream(body));
+            mLeft = dropAt;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mLeft <= 0) {
+                throw new IOException("Connection reset");
+            }
+            int read = super.read(buffer, offset, Math.min(count, mLeft));
+            if (read > 0) {
+                mLeft -= read;
+            }
+            return read;
+        }
+    }
+
+    private void put(String requestUri, byte[] body) throws IOException {
+        ForecastResponseCache.Writer writer =
+                mCache.startWrite(requestUri, TODAY, new ByteArrayInputStream(body));
+        writer.commit();
+    }
+
+    /*
+        @return the replayed body, or null if there was none.
+     */
+    private byte[] get(String requestUri) throws IOException {
+        return get(requestUri, TODAY);
+    }
+
+    private byte[] get(String requestUri, int julianDay) throws IOException {
+        InputStream in = mCache.get(requestUri, julianDay);
+        if (in == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] createBody(int seed, int size) {
+        byte[] body = new byte[size];
+        for (int i = 0; i < size; i++) {
+            body[i] = (byte) (seed + i);
+        }
+        return body;
+    }
+
+    private int countFiles() {
+        String[] names = mDirectory.list();
+        return names == null ? 0 : names.length;
+    }
+
+    private void deleteDirectory() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+}
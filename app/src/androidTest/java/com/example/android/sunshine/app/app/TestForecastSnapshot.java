@@ -0,0 +1,118 @@
+package com.example.android.sunshine.app.app;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that a handed out snapshot follows what is stored, not only what the sync published:
+    rows written through the provider by anyone else have to show up in the next get().
+ */
+public class TestForecastSnapshot extends AndroidTestCase {
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    private static final int DAYS = 3;
+
+    private String mPreferredLocation;
+    private String mLocation;
+    private long mLocationId;
+    private long mToday;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPreferredLocation = Utility.getPreferredLocation(getContext());
+        mLocation = "snapshot-" + System.nanoTime();
+        setPreferredLocation(mLocation);
+
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, mLocation);
+        locationValues.put(LocationEntry.COLUMN_CITY_NAME, "North Pole");
+        locationValues.put(LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        locationValues.put(LocationEntry.COLUMN_COORD_LONG, -147.353);
+        mLocationId = ContentUris.parseId(getContext().getContentResolver().insert(
+                LocationEntry.CONTENT_URI, locationValues));
+
+        mToday = WeatherContract.normalizeDate(System.currentTimeMillis());
+        ContentValues[] days = new ContentValues[DAYS];
+        for (int i = 0; i < DAYS; i++) {
+            days[i] = createWeatherValues(mToday + i * DAY_IN_MILLIS, 20);
+        }
+        assertEquals(DAYS, getContext().getContentResolver().bulkInsert(
+                WeatherEntry.CONTENT_URI, days));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?", new String[]{Long.toString(mLocationId)});
+        getContext().getContentResolver().delete(LocationEntry.CONTENT_URI,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(mLocationId)});
+        setPreferredLocation(mPreferredLocation);
+        super.tearDown();
+    }
+
+    public void testUpdatedDayIsPickedUp() {
+        ForecastSnapshot snapshot = ForecastSnapshot.get(getContext());
+        assertEquals(DAYS, snapshot.getDays().size());
+        assertEquals(Utility.formatTemperature(getContext(), 20), snapshot.getToday().high);
+        assertSame("Error: an unchanged snapshot was built again",
+                snapshot, ForecastSnapshot.get(getContext()));
+
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_MAX_TEMP, 25);
+        assertEquals(1, getContext().getContentResolver().update(WeatherEntry.CONTENT_URI, values,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(mLocationId), Long.toString(mToday)}));
+
+        assertEquals("Error: the snapshot still shows the high from before the update",
+                Utility.formatTemperature(getContext(), 25),
+                ForecastSnapshot.get(getContext()).getToday().high);
+    }
+
+    public void testInsertedAndDeletedDaysArePickedUp() {
+        assertEquals(DAYS, ForecastSnapshot.get(getContext()).getDays().size());
+
+        getContext().getContentResolver().insert(WeatherEntry.CONTENT_URI,
+                createWeatherValues(mToday + DAYS * DAY_IN_MILLIS, 20));
+        assertEquals("Error: the snapshot is missing an inserted day",
+                DAYS + 1, ForecastSnapshot.get(getContext()).getDays().size());
+
+        getContext().getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?", new String[]{Long.toString(mLocationId)});
+        ForecastSnapshot snapshot = ForecastSnapshot.get(getContext());
+        assertTrue("Error: the snapshot still has deleted days", snapshot.getDays().isEmpty());
+        assertNull(snapshot.getToday());
+    }
+
+    private ContentValues createWeatherValues(long date, double high) {
+        ContentValues weatherValues = new ContentValues();
+        weatherValues.put(WeatherEntry.COLUMN_LOC_KEY, mLocationId);
+        weatherValues.put(WeatherEntry.COLUMN_DATE, date);
+        weatherValues.put(WeatherEntry.COLUMN_DEGREES, 1.1);
+        weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, 1.2);
+        weatherValues.put(WeatherEntry.COLUMN_PRESSURE, 1.3);
+        weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, high);
+        weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, 10);
+        weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+        weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5);
+        weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, 321);
+        return weatherValues;
+    }
+
+    private void setPreferredLocation(String location) {
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(getContext()).edit();
+        editor.putString(getContext().getString(R.string.pref_location_key), location);
+        editor.remove(getContext().getString(R.string.pref_location_latitude));
+        editor.remove(getContext().getString(R.string.pref_location_longitude));
+        editor.commit();
+    }
+}
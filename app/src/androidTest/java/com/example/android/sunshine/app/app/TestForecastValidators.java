@@ -0,0 +1,58 @@
+package com.example.android.sunshine.app.app;
+
+import android.test.AndroidTestCase;
+
+/*
+    Checks that stored validators are only handed out on the local day they were saved on, and
+    that a validator the server didn't send replaces the old one instead of outliving it.
+ */
+public class TestForecastValidators extends AndroidTestCase {
+    private static final int TODAY = 2457012;
+
+    private String mLocation;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // A key of its own, so nothing an earlier sync saved is read back
+        mLocation = "validators-" + System.nanoTime();
+    }
+
+    public void testNothingStored() {
+        ForecastValidators validators = ForecastValidators.load(getContext(), mLocation, TODAY);
+        assertFalse(validators.isCurrent());
+        assertNull(validators.getETag());
+        assertNull(validators.getDigest());
+    }
+
+    public void testCurrentOnlyOnTheDaySaved() {
+        ForecastValidators.load(getContext(), mLocation, TODAY)
+                .save("\"abc\"", "Sat, 20 Dec 2014 00:00:00 GMT", "digest");
+
+        ForecastValidators validators = ForecastValidators.load(getContext(), mLocation, TODAY);
+        assertTrue(validators.isCurrent());
+        assertEquals("\"abc\"", validators.getETag());
+        assertEquals("Sat, 20 Dec 2014 00:00:00 GMT", validators.getLastModified());
+        assertTrue(validators.matchesDigest("digest"));
+        assertFalse(validators.matchesDigest("other"));
+
+        // Once the day rolled over the same body means other dates, so nothing is sent.
+        validators = ForecastValidators.load(getContext(), mLocation, TODAY + 1);
+        assertFalse("Error: yesterday's validators are still current", validators.isCurrent());
+        assertNull(validators.getETag());
+        assertNull(validators.getLastModified());
+        assertNull(validators.getDigest());
+        assertFalse(validators.matchesDigest("digest"));
+    }
+
+    public void testMissingValidatorIsRemoved() {
+        ForecastValidators.load(getContext(), mLocation, TODAY)
+                .save("\"abc\"", "Sat, 20 Dec 2014 00:00:00 GMT", "digest");
+        ForecastValidators.load(getContext(), mLocation, TODAY).save(null, null, "digest2");
+
+        ForecastValidators validators = ForecastValidators.load(getContext(), mLocation, TODAY);
+        assertNull("Error: an old ETag outlived the forecast it described", validators.getETag());
+        assertNull(validators.getLastModified());
+        assertEquals("digest2", validators.getDigest());
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.android.sunshine.app.app;
+
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.owmmock.MockOwmServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+/*
+    Checks what the transport does with the connections it gets from the mock OWM server, which
+    counts the connections it accepts.
+ */
+public class TestHttpTransport extends AndroidTestCase {
+
+    private static final int REQUESTS = 5;
+    private static final int DAYS = 14;
+    // Makes the forecast large enough for gzip to matter
+    private static final int PADDING_BYTES_PER_DAY = 1000;
+
+    private MockOwmServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new MockOwmServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    /*
+        Every request asks for gzip and the body comes out decoded.  Reading each body to the end
+        hands the connection back, so all requests go over the one connection.
+     */
+    public void testGzipOverKeptAliveConnection() throws IOException {
+        mServer.setPaddingBytesPerDay(PADDING_BYTES_PER_DAY);
+        URL url = new URL(mServer.getForecastUrl() + "?q=94043&cnt=" + DAYS);
+        byte[] expected = MockOwmServer.createForecastJson("94043", DAYS, PADDING_BYTES_PER_DAY);
+
+        HttpTransport transport = HttpTransport.getInstance();
+        long wireBytes = transport.getWireBytes();
+        long decodedBytes = transport.getDecodedBytes();
+        for (int i = 0; i < REQUESTS; i++) {
+            HttpTransport.Response response = transport.get(url, null);
+            try {
+                assertEquals(HttpURLConnection.HTTP_OK, response.getCode());
+                assertEquals("Error: the response wasn't gzipped",
+                        "gzip", response.getHeader("Content-Encoding"));
+                assertTrue("Error: the body wasn't decoded",
+                        Arrays.equals(expected, readFully(response.getBody())));
+            } finally {
+                response.close();
+            }
+        }
+        wireBytes = transport.getWireBytes() - wireBytes;
+        decodedBytes = transport.getDecodedBytes() - decodedBytes;
+
+        assertEquals(REQUESTS * (long) expected.length, decodedBytes);
+        assertTrue("Error: " + wireBytes + " bytes on the wire for " + decodedBytes
+                + " decoded", wireBytes < decodedBytes / 2);
+        assertEquals(REQUESTS, mServer.getRequestCount());
+        assertEquals("Error: the connection wasn't kept alive", 1, mServer.getConnectionCount());
+    }
+
+    /*
+        Nobody reads the body of an error.  Closing the response still has to release the
+        connection, so the next request reuses it instead of a socket being left half read.
+     */
+    public void testConnectionReusedAfterServerError() throws IOException {
+        mServer.setFailures(1, MockOwmServer.Failure.HTTP_500);
+        URL url = new URL(mServer.getForecastUrl() + "?q=94043");
+        for (int i = 0; i < REQUESTS; i++) {
+            HttpTransport.Response response = HttpTransport.getInstance().get(url, null);
+            try {
+                assertEquals(HttpURLConnection.HTTP_INTERNAL_ERROR, response.getCode());
+            } finally {
+                response.close();
+            }
+        }
+
+        assertEquals(REQUESTS, mServer.getRequestCount());
+        assertEquals("Error: the connection wasn't reused after an HTTP 500",
+                1, mServer.getConnectionCount());
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.android.sunshine.app.app;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+/*
+    Drives the circuit breaker through its states on a clock the test moves along: opening after
+    the threshold, the jittered backoff growing up to its cap, and probes that succeed, fail, time
+    out or end without an answer.
+ */
+public class TestSyncCircuitBreaker extends AndroidTestCase {
+
+    private static final long START_TIME = 1000L * 1000 * 1000 * 1000;
+
+    private TestBreaker mBreaker;
+
+    /*
+        Shares the preferences of the real breaker, so every test leaves the circuit closed.
+     */
+    private static class TestBreaker extends SyncCircuitBreaker {
+        long time = START_TIME;
+
+        TestBreaker(Context context) {
+            super(context);
+        }
+
+        @Override
+        long now() {
+            return time;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBreaker = new TestBreaker(getContext());
+        mBreaker.recordSuccess();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBreaker.recordSuccess();
+        super.tearDown();
+    }
+
+    public void testOpensAtThreshold() {
+        for (int i = 1; i < SyncCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            assertEquals("Error: the circuit opened after " + i + " failures",
+                    0, mBreaker.recordFailure());
+            assertTrue(mBreaker.allowRequest());
+        }
+        long openUntil = mBreaker.recordFailure();
+        assertTrue("Error: the circuit didn't open at the threshold", openUntil > mBreaker.time);
+        assertEquals(openUntil, mBreaker.getOpenUntil());
+        assertFalse("Error: an open circuit let a sync through", mBreaker.allowRequest());
+
+        // A success in between starts the count again.
+        mBreaker.recordSuccess();
+        assertEquals(0, mBreaker.getOpenUntil());
+        for (int i = 1; i < SyncCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            assertEquals(0, mBreaker.recordFailure());
+        }
+    }
+
+    public void testBackoffGrowsUpToCap() {
+        long openUntil = open();
+        long expected = SyncCircuitBreaker.BASE_BACKOFF_MS;
+        for (int opened = 1; opened <= 12; opened++) {
+            assertJittered(expected, openUntil - mBreaker.time);
+
+            // Every failed probe opens the circuit for about twice as long, up to the cap.
+            mBreaker.time = openUntil;
+            assertTrue(mBreaker.allowRequest());
+            assertTrue(mBreaker.isProbing());
+            openUntil = mBreaker.recordFailure();
+            expected = Math.min(expected * 2, SyncCircuitBreaker.MAX_BACKOFF_MS);
+        }
+        assertEquals("Error: the backoff didn't reach its cap",
+                SyncCircuitBreaker.MAX_BACKOFF_MS, expected);
+        assertJittered(expected, openUntil - mBreaker.time);
+    }
+
+    public void testProbeSucceeds() {
+        mBreaker.time = open();
+        assertTrue("Error: no probe once the backoff was over", mBreaker.allowRequest());
+        assertTrue(mBreaker.isProbing());
+        assertFalse("Error: a second probe was let through", mBreaker.allowRequest());
+
+        mBreaker.recordSuccess();
+        assertFalse(mBreaker.isProbing());
+        assertTrue("Error: the circuit didn't close", mBreaker.allowRequest());
+        assertEquals(0, mBreaker.getOpenUntil());
+        // Closed for good: the count starts from zero.
+        assertEquals(0, mBreaker.recordFailure());
+    }
+
+    public void testProbeFails() {
+        mBreaker.time = open();
+        assertTrue(mBreaker.allowRequest());
+
+        // A single failed probe is enough to open the circuit again.
+        long openUntil = mBreaker.recordFailure();
+        assertFalse(mBreaker.isProbing());
+        assertFalse(mBreaker.allowRequest());
+        assertJittered(2 * SyncCircuitBreaker.BASE_BACKOFF_MS, openUntil - mBreaker.time);
+    }
+
+    public void testProbeTimesOut() {
+        mBreaker.time = open();
+        assertTrue(mBreaker.allowRequest());
+
+        // The probing sync never reports back.
+        mBreaker.time += SyncCircuitBreaker.PROBE_TIMEOUT_MS - 1;
+        assertFalse("Error: a probe was let through while another one was running",
+                mBreaker.allowRequest());
+        mBreaker.time += 1;
+        assertTrue("Error: a lost probe blocked syncs past its timeout", mBreaker.allowRequest());
+        assertTrue(mBreaker.isProbing());
+    }
+
+    public void testReleasedProbe() {
+        mBreaker.time = open();
+        assertTrue(mBreaker.allowRequest());
+
+        // The probing sync was canceled; the next one probes without waiting for the timeout.
+        mBreaker.releaseProbe();
+        assertFalse(mBreaker.isProbing());
+        assertTrue("Error: a released probe still blocked syncs", mBreaker.allowRequest());
+        assertTrue(mBreaker.isProbing());
+
+        // Releasing doesn't close the circuit.
+        assertTrue(mBreaker.recordFailure() > mBreaker.time);
+    }
+
+    /*
+        @return when the circuit, opened by failures at the threshold, lets a sync through again.
+     */
+    private long open() {
+        long openUntil = 0;
+        for (int i = 0; i < SyncCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            openUntil = mBreaker.recordFailure();
+        }
+        assertTrue(openUntil > 0);
+        return openUntil;
+    }
+
+    private static void assertJittered(long backoff, long actual) {
+        assertTrue("Error: backoff of " + actual + "ms, expected about " + backoff + "ms",
+                actual >= backoff / 2 && actual < backoff / 2 + backoff);
+    }
+}
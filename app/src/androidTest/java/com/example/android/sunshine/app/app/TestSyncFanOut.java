@@ -0,0 +1,99 @@
+package com.example.android.sunshine.app.app;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Checks that the consumers a sync fans out to can't hold each other up: a consumer that hangs
+    is interrupted once its budget is spent while the others finish, and a consumer queued behind
+    busy threads still gets its whole budget once it starts.
+ */
+public class TestSyncFanOut extends AndroidTestCase {
+
+    private static final long SHORT_BUDGET_MS = 200;
+    private static final long LONG_BUDGET_MS = 5 * 1000;
+    private static final long WAIT_MS = 2 * 1000;
+
+    @Override
+    protected void tearDown() throws Exception {
+        // Leaves no consumer, and no wake lock, behind for the next test.
+        long deadline = SystemClock.elapsedRealtime() + LONG_BUDGET_MS;
+        while (SyncFanOut.getPendingCount() > 0 && SystemClock.elapsedRealtime() < deadline) {
+            Thread.sleep(10);
+        }
+        super.tearDown();
+    }
+
+    public void testSlowConsumerDoesNotStarveOthers() throws InterruptedException {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(3);
+        long timeouts = SyncFanOut.getTimeoutCount();
+
+        SyncFanOut.dispatch(getContext(), SyncTimings.STAGE_WEAR, SHORT_BUDGET_MS,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(LONG_BUDGET_MS);
+                        } catch (InterruptedException e) {
+                            interrupted.countDown();
+                        }
+                    }
+                });
+        for (int i = 0; i < 3; i++) {
+            SyncFanOut.dispatch(getContext(), SyncTimings.STAGE_WIDGETS, LONG_BUDGET_MS,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            finished.countDown();
+                        }
+                    });
+        }
+
+        assertTrue("Error: the other consumers waited for the slow one",
+                finished.await(WAIT_MS, TimeUnit.MILLISECONDS));
+        assertTrue("Error: the slow consumer wasn't interrupted",
+                interrupted.await(WAIT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(timeouts + 1, SyncFanOut.getTimeoutCount());
+    }
+
+    /*
+        Keeps every thread of the fan-out busy for longer than the budget of one more consumer.
+        That consumer's budget only starts once a thread is free, so it still runs to the end.
+     */
+    public void testBudgetStartsWhenConsumerRuns() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 4; i++) {
+            SyncFanOut.dispatch(getContext(), SyncTimings.STAGE_NOTIFICATION, LONG_BUDGET_MS,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    });
+        }
+        final CountDownLatch finished = new CountDownLatch(1);
+        SyncFanOut.dispatch(getContext(), SyncTimings.STAGE_MUZEI, SHORT_BUDGET_MS,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        SystemClock.sleep(SHORT_BUDGET_MS / 4);
+                        finished.countDown();
+                    }
+                });
+
+        // Well past the queued consumer's budget, had it started counting when it was queued
+        Thread.sleep(2 * SHORT_BUDGET_MS);
+        release.countDown();
+
+        assertTrue("Error: the queued consumer lost its budget while it waited",
+                finished.await(WAIT_MS, TimeUnit.MILLISECONDS));
+    }
+}
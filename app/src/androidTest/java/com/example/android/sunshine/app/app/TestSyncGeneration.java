@@ -0,0 +1,176 @@
+package com.example.android.sunshine.app.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.owmmock.MockOwmServer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Changes the location while a sync against the mock server is running.  A sync that learns of
+    the change before its commit stores nothing; one that learns of it after its commit keeps
+    the days, but tells none of the widgets, Muzei, the notification or the wearable.
+ */
+public class TestSyncGeneration extends AndroidTestCase {
+
+    private MockOwmServer mServer;
+    private String mPreferredLocation;
+
+    /*
+        Plays the settings screen at a chosen point of the sync, and records the fan-out instead
+        of running it.
+     */
+    private static class TestSyncAdapter extends SunshineSyncAdapter {
+        final List<String> dispatched = new ArrayList<String>();
+        Runnable onFetched;
+        Runnable onCommitted;
+
+        TestSyncAdapter(Context context) {
+            super(context, false);
+        }
+
+        @Override
+        FetchResult fetchForecast(SyncTarget target) {
+            FetchResult result = super.fetchForecast(target);
+            if (onFetched != null) {
+                onFetched.run();
+            }
+            return result;
+        }
+
+        @Override
+        void storeHourlyForecast(String locationSetting, HourlyCollector hourly) {
+            super.storeHourlyForecast(locationSetting, hourly);
+            if (onCommitted != null) {
+                onCommitted.run();
+            }
+        }
+
+        @Override
+        void dispatch(String stage, long budgetMs, Runnable consumer) {
+            synchronized (dispatched) {
+                dispatched.add(stage);
+            }
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new MockOwmServer();
+        mPreferredLocation = Utility.getPreferredLocation(getContext());
+        SyncCircuitBreaker.getInstance(getContext()).recordSuccess();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        setPreferredLocation(mPreferredLocation);
+        mServer.close();
+        ForecastResponseCache.getInstance(getContext()).clear();
+        super.tearDown();
+    }
+
+    public void testUnchangedLocationIsTold() {
+        String location = newLocation();
+        setPreferredLocation(location);
+        TestSyncAdapter syncAdapter = newSyncAdapter();
+
+        performSync(syncAdapter);
+
+        assertTrue("Error: the sync stored no days", countStoredDays(location) > 0);
+        assertEquals("Error: the sync didn't tell all four consumers",
+                4, syncAdapter.dispatched.size());
+    }
+
+    public void testAdvancedBeforeCommit() {
+        String location = newLocation();
+        setPreferredLocation(location);
+        TestSyncAdapter syncAdapter = newSyncAdapter();
+        syncAdapter.onFetched = new Runnable() {
+            @Override
+            public void run() {
+                SyncGeneration.advance();
+            }
+        };
+
+        performSync(syncAdapter);
+
+        assertTrue(mServer.getRequestCount() > 0);
+        assertEquals("Error: a stale sync stored days", 0, countStoredDays(location));
+        assertTrue("Error: a stale sync told " + syncAdapter.dispatched,
+                syncAdapter.dispatched.isEmpty());
+    }
+
+    /*
+        The location is changed without advancing the generation, as something other than the
+        settings screen might do.
+     */
+    public void testLocationChangedAfterCommit() {
+        String location = newLocation();
+        setPreferredLocation(location);
+        final String newLocation = newLocation();
+        TestSyncAdapter syncAdapter = newSyncAdapter();
+        syncAdapter.onCommitted = new Runnable() {
+            @Override
+            public void run() {
+                setPreferredLocation(newLocation);
+            }
+        };
+
+        performSync(syncAdapter);
+
+        assertTrue("Error: the committed days were lost", countStoredDays(location) > 0);
+        assertTrue("Error: a stale sync told " + syncAdapter.dispatched,
+                syncAdapter.dispatched.isEmpty());
+    }
+
+    private TestSyncAdapter newSyncAdapter() {
+        TestSyncAdapter syncAdapter = new TestSyncAdapter(getContext());
+        syncAdapter.setWeatherSource(new OpenWeatherMapSource(mServer.getForecastUrl(), "test"));
+        return syncAdapter;
+    }
+
+    /*
+        A location of its own, so nothing is answered by the response cache or revalidated
+        against a stored forecast.
+     */
+    private static String newLocation() {
+        return "generation-" + System.nanoTime();
+    }
+
+    private void performSync(SunshineSyncAdapter syncAdapter) {
+        syncAdapter.onPerformSync(null, new Bundle(),
+                getContext().getString(R.string.content_authority), null, new SyncResult());
+    }
+
+    private int countStoredDays(String location) {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocation(location),
+                new String[]{WeatherContract.WeatherEntry.TABLE_NAME + "."
+                        + WeatherContract.WeatherEntry._ID},
+                null, null, null);
+        assertNotNull(cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private void setPreferredLocation(String location) {
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(getContext()).edit();
+        editor.putString(getContext().getString(R.string.pref_location_key), location);
+        editor.remove(getContext().getString(R.string.pref_location_latitude));
+        editor.remove(getContext().getString(R.string.pref_location_longitude));
+        editor.commit();
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.android.sunshine.app.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Sends bursts of requests to a coordinator of its own and counts the syncs it asks for,
+    playing the sync adapter's part by hand.  The debounce runs on the main looper in real time,
+    so the timing checks leave some slack for a busy device.
+ */
+public class TestSyncRequestCoordinator extends AndroidTestCase {
+
+    private static final long BURST_GAP_MS = 100;
+    private static final long SLACK_MS = 400;
+
+    private TestCoordinator mCoordinator;
+    private String mPreferredLocation;
+
+    /*
+        Records when each sync was asked for instead of asking the sync manager.
+     */
+    private static class TestCoordinator extends SyncRequestCoordinator {
+        final BlockingQueue<Long> requests = new LinkedBlockingQueue<Long>();
+
+        @Override
+        void requestExpeditedSync(Context context) {
+            requests.add(SystemClock.elapsedRealtime());
+        }
+    }
+
+    /*
+        Keeps the statuses the listeners were told, in order.
+     */
+    private static class StatusListener implements SyncRequestCoordinator.Listener {
+        final List<Integer> statuses = new ArrayList<Integer>();
+        final CountDownLatch called;
+
+        StatusListener(int expectedCalls) {
+            called = new CountDownLatch(expectedCalls);
+        }
+
+        @Override
+        public synchronized void onSyncFinished(int locationStatus) {
+            statuses.add(locationStatus);
+            called.countDown();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCoordinator = new TestCoordinator();
+        mPreferredLocation = Utility.getPreferredLocation(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        setPreferredLocation(mPreferredLocation);
+        super.tearDown();
+    }
+
+    public void testBurstBecomesOneSync() throws InterruptedException {
+        StatusListener listener = new StatusListener(5);
+        long lastRequest = 0;
+        for (int i = 0; i < 5; i++) {
+            mCoordinator.requestSync(getContext(), listener);
+            lastRequest = SystemClock.elapsedRealtime();
+            Thread.sleep(BURST_GAP_MS);
+        }
+
+        Long requestedAt = mCoordinator.requests.poll(
+                SyncRequestCoordinator.DEBOUNCE_MS + SLACK_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("Error: the burst never became a sync", requestedAt);
+        assertTrue("Error: the sync was asked for before the burst settled",
+                requestedAt - lastRequest >= SyncRequestCoordinator.DEBOUNCE_MS - 10);
+
+        runSync(SunshineSyncAdapter.LOCATION_STATUS_OK);
+        assertTrue(listener.called.await(1, TimeUnit.SECONDS));
+        assertEquals(5, listener.statuses.size());
+        assertNull("Error: the burst asked for more than one sync",
+                mCoordinator.requests.poll(SLACK_MS, TimeUnit.MILLISECONDS));
+        assertEquals(4, mCoordinator.getCoalescedCount());
+    }
+
+    /*
+        Requests that keep coming closer together than the debounce still get their sync once
+        the first of them is MAX_DEBOUNCE_MS old.
+     */
+    public void testLongBurstIsCapped() throws InterruptedException {
+        long firstRequest = SystemClock.elapsedRealtime();
+        Long requestedAt = null;
+        long gap = SyncRequestCoordinator.DEBOUNCE_MS / 2;
+        long giveUpAt = firstRequest + 2 * SyncRequestCoordinator.MAX_DEBOUNCE_MS;
+        while (requestedAt == null && SystemClock.elapsedRealtime() < giveUpAt) {
+            mCoordinator.requestSync(getContext(), null);
+            requestedAt = mCoordinator.requests.poll(gap, TimeUnit.MILLISECONDS);
+        }
+
+        assertNotNull("Error: a steady stream of requests never became a sync", requestedAt);
+        long waited = requestedAt - firstRequest;
+        assertTrue("Error: asked for the sync after " + waited + "ms",
+                waited >= SyncRequestCoordinator.MAX_DEBOUNCE_MS - 10
+                        && waited < SyncRequestCoordinator.MAX_DEBOUNCE_MS + SLACK_MS);
+
+        runSync(SunshineSyncAdapter.LOCATION_STATUS_OK);
+        assertNull(mCoordinator.requests.poll(SLACK_MS, TimeUnit.MILLISECONDS));
+    }
+
+    /*
+        While a sync runs, requests for its location join it.  Requests after the location
+        changed are all served by one follow-up sync, asked for as soon as the running one ends.
+     */
+    public void testRequestsWhileRunningGetOneFollowUp() throws InterruptedException {
+        setPreferredLocation("coordinator-first");
+        StatusListener first = new StatusListener(2);
+        mCoordinator.requestSync(getContext(), first);
+        assertNotNull(mCoordinator.requests.poll(
+                SyncRequestCoordinator.DEBOUNCE_MS + SLACK_MS, TimeUnit.MILLISECONDS));
+
+        mCoordinator.onSyncStarted(getContext());
+        mCoordinator.requestSync(getContext(), first);
+
+        setPreferredLocation("coordinator-second");
+        StatusListener followUp = new StatusListener(3);
+        for (int i = 0; i < 3; i++) {
+            mCoordinator.requestSync(getContext(), followUp);
+        }
+        assertNull("Error: a sync was asked for while one was running",
+                mCoordinator.requests.poll(SyncRequestCoordinator.DEBOUNCE_MS + SLACK_MS,
+                        TimeUnit.MILLISECONDS));
+
+        mCoordinator.onSyncFinished(SunshineSyncAdapter.LOCATION_STATUS_OK);
+        assertTrue(first.called.await(1, TimeUnit.SECONDS));
+        assertNotNull("Error: no follow-up sync was asked for",
+                mCoordinator.requests.poll(SLACK_MS, TimeUnit.MILLISECONDS));
+        assertTrue("Error: the follow-up requests got the first sync's result",
+                followUp.statuses.isEmpty());
+
+        runSync(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN);
+        assertTrue(followUp.called.await(1, TimeUnit.SECONDS));
+        for (int status : followUp.statuses) {
+            assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN, status);
+        }
+        assertNull("Error: more than one follow-up sync was asked for",
+                mCoordinator.requests.poll(SLACK_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private void runSync(@SunshineSyncAdapter.LocationStatus int status) {
+        mCoordinator.onSyncStarted(getContext());
+        mCoordinator.onSyncFinished(status);
+    }
+
+    private void setPreferredLocation(String location) {
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(getContext()).edit();
+        editor.putString(getContext().getString(R.string.pref_location_key), location);
+        editor.commit();
+    }
+}
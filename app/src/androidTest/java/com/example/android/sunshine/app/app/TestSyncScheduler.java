@@ -0,0 +1,70 @@
+package com.example.android.sunshine.app.app;
+
+import android.test.AndroidTestCase;
+
+/*
+    Checks the sync interval SyncScheduler picks for each kind of input, starting from the
+    3 hour default: idle time, how often the forecast changed, charging and metered networks,
+    and that the result is always kept between an hour and a day.
+ */
+public class TestSyncScheduler extends AndroidTestCase {
+    private static final long HOUR_IN_MILLIS = 1000 * 60 * 60;
+    private static final long DAY_IN_MILLIS = HOUR_IN_MILLIS * 24;
+    private static final long NOW = 1419033600000L;
+
+    // Neither stable nor volatile
+    private static final float NEUTRAL_VOLATILITY = 0.5f;
+
+    private static final int DEFAULT = SunshineSyncAdapter.SYNC_INTERVAL;
+
+    public void testUsage() {
+        assertEquals(DEFAULT, interval(0, NEUTRAL_VOLATILITY));
+        assertEquals(DEFAULT, interval(NOW - HOUR_IN_MILLIS, NEUTRAL_VOLATILITY));
+        assertEquals(DEFAULT * 2, interval(NOW - 2 * DAY_IN_MILLIS, NEUTRAL_VOLATILITY));
+        assertEquals(DEFAULT * 4, interval(NOW - 4 * DAY_IN_MILLIS, NEUTRAL_VOLATILITY));
+        // A whole day, right at the limit
+        assertEquals(DEFAULT * 8, interval(NOW - 8 * DAY_IN_MILLIS, NEUTRAL_VOLATILITY));
+    }
+
+    public void testVolatility() {
+        assertEquals(DEFAULT / 2, interval(NOW, 0.9f));
+        assertEquals(DEFAULT, interval(NOW, 0.4f));
+        assertEquals(DEFAULT * 2, interval(NOW, 0.1f));
+    }
+
+    public void testChargingAndMetered() {
+        assertEquals("Error: charging on wifi didn't sync more often",
+                DEFAULT / 2, interval(true, true));
+        assertEquals("Error: on battery and a metered network didn't sync less often",
+                DEFAULT * 3 / 2, interval(false, false));
+        // Either one alone leaves the interval as it is.
+        assertEquals(DEFAULT, interval(true, false));
+        assertEquals(DEFAULT, interval(false, true));
+    }
+
+    public void testClamped() {
+        StringBuilder reason = new StringBuilder();
+        assertEquals("Error: a volatile forecast while charging synced more than hourly",
+                SyncScheduler.MIN_INTERVAL,
+                SyncScheduler.computeInterval(NOW, NOW, 0.9f, true, true, reason));
+
+        reason = new StringBuilder();
+        assertEquals("Error: an unused app with a stable forecast synced less than daily",
+                SyncScheduler.MAX_INTERVAL,
+                SyncScheduler.computeInterval(NOW - 8 * DAY_IN_MILLIS, NOW, 0.1f, false, false,
+                        reason));
+        assertEquals("unused for a week, stable forecast, on battery and metered network",
+                reason.toString());
+    }
+
+    private static int interval(long lastUse, float volatility) {
+        // Charging on a metered network neither shortens nor stretches the interval.
+        return SyncScheduler.computeInterval(lastUse, NOW, volatility, true, false,
+                new StringBuilder());
+    }
+
+    private static int interval(boolean charging, boolean unmetered) {
+        return SyncScheduler.computeInterval(NOW, NOW, NEUTRAL_VOLATILITY, charging, unmetered,
+                new StringBuilder());
+    }
+}
@@ -0,0 +1,370 @@
+package com.example.android.sunshine.app.app;
+
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.owmmock.MockOwmServer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+    Runs forecast fetches against a local mock of the OWM server, so the fetch path can be
+    load tested without a network or an API key.  Checks how each kind of server failure ends
+    up as a location status, and logs throughput and latency percentiles for sequential and
+    parallel fetches.  Whole syncs are run against the mock too, for what they store.
+ */
+public class TestSyncThroughput extends AndroidTestCase {
+    public static final String LOG_TAG = TestSyncThroughput.class.getSimpleName();
+
+    private static final int BENCHMARK_FETCHES = 64;
+    private static final int BENCHMARK_THREADS = 8;
+    private static final long LATENCY_MS = 40;
+    private static final long JITTER_MS = 20;
+
+    private MockOwmServer mServer;
+    private SunshineSyncAdapter mSyncAdapter;
+    private int mLocationCounter;
+    private String mPreferredLocation;
+    private final List<String> mSavedLocations = new ArrayList<String>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new MockOwmServer();
+        mSyncAdapter = new SunshineSyncAdapter(getContext(), false);
+        mSyncAdapter.setWeatherSource(
+                new OpenWeatherMapSource(mServer.getForecastUrl(), "test"));
+        mPreferredLocation = Utility.getPreferredLocation(getContext());
+        // Whole syncs must not be turned away because an earlier test made the server fail.
+        SyncCircuitBreaker.getInstance(getContext()).recordSuccess();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        setPreferredLocation(mPreferredLocation);
+        // Real syncs mustn't go on fetching the test locations.
+        for (String location : mSavedLocations) {
+            Utility.setLocationSaved(getContext(), location, false);
+        }
+        mServer.close();
+        ForecastResponseCache.getInstance(getContext()).clear();
+        super.tearDown();
+    }
+
+    /*
+        Every target gets a location of its own, so no fetch is answered by the response cache
+        or revalidated against a stored forecast.
+     */
+    private SunshineSyncAdapter.SyncTarget newTarget() {
+        return new SunshineSyncAdapter.SyncTarget(
+                "throughput-" + System.nanoTime() + "-" + mLocationCounter++, false);
+    }
+
+    public void testFetchFromMockServer() {
+        SunshineSyncAdapter.FetchResult result = mSyncAdapter.fetchForecast(newTarget());
+
+        assertEquals("Error: fetch from the mock server failed",
+                SunshineSyncAdapter.LOCATION_STATUS_OK, result.status);
+        assertNotNull("Error: no forecast was collected", result.forecast);
+        assertEquals("Error: wrong number of days", 14, result.forecast.days.size());
+        assertNotNull("Error: the ETag wasn't picked up", result.eTag);
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    public void testFailureModes() {
+        assertFailure(MockOwmServer.Failure.HTTP_500,
+                SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN);
+        assertFailure(MockOwmServer.Failure.COD_ERROR,
+                SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN);
+        assertFailure(MockOwmServer.Failure.DISCONNECT,
+                SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN);
+
+        mServer.setFailures(1, MockOwmServer.Failure.NOT_FOUND);
+        SunshineSyncAdapter.FetchResult result = mSyncAdapter.fetchForecast(newTarget());
+        assertEquals("Error: an unknown city wasn't reported as invalid",
+                SunshineSyncAdapter.LOCATION_STATUS_INVALID, result.status);
+        assertTrue("Error: an unknown city counted against the server", result.serverAnswered);
+
+        // A truncated body fails either in the reader or in the JSON parser.
+        mServer.setFailures(1, MockOwmServer.Failure.MALFORMED_JSON);
+        result = mSyncAdapter.fetchForecast(newTarget());
+        assertTrue("Error: a truncated forecast was accepted",
+                result.status == SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN
+                        || result.status == SunshineSyncAdapter.LOCATION_STATUS_SERVER_INVALID);
+        assertNull("Error: a truncated forecast would be stored", result.forecast);
+        assertTrue(result.serverFailed);
+    }
+
+    /*
+        The daily forecast of a location rarely changes within a day, its hourly points do.  A
+        sync whose daily request is answered with a 304 still has to store the new points.
+     */
+    public void testRevalidatedSyncRefreshesHourly() {
+        String location = newTarget().locationSetting;
+        setPreferredLocation(location);
+
+        performSync();
+        List<String> hourly = getStoredHourlyPoints(location);
+        assertFalse("Error: the sync stored no hourly points", hourly.isEmpty());
+
+        // A new hourly run, while the daily forecast stays the same.  Nothing is replayed from
+        // the response cache, so both requests go to the server.
+        mServer.setHourlyRevision(1);
+        ForecastResponseCache.getInstance(getContext()).clear();
+        performSync();
+
+        assertEquals("Error: the daily forecast wasn't revalidated",
+                1, mServer.getNotModifiedCount());
+        List<String> refreshed = getStoredHourlyPoints(location);
+        assertEquals("Error: wrong number of hourly days", hourly.size(), refreshed.size());
+        assertFalse("Error: the hourly points weren't refreshed after a 304",
+                hourly.equals(refreshed));
+    }
+
+    /*
+        The second sync of a day sends the stored ETag and gets a 304.  Validators from
+        yesterday aren't sent, so the first sync of a new day downloads the forecast again.
+     */
+    public void testETagRevalidation() {
+        String location = newTarget().locationSetting;
+        setPreferredLocation(location);
+        performSync();
+        Time localTime = new Time();
+        localTime.setToNow();
+        int today = Time.getJulianDay(System.currentTimeMillis(), localTime.gmtoff);
+        ForecastValidators validators = ForecastValidators.load(getContext(), location, today);
+        assertNotNull("Error: the sync didn't keep the ETag", validators.getETag());
+
+        ForecastResponseCache.getInstance(getContext()).clear();
+        performSync();
+        assertEquals("Error: the second sync wasn't answered with a 304",
+                1, mServer.getNotModifiedCount());
+
+        // Pretend the validators were saved yesterday.
+        ForecastValidators.load(getContext(), location, today - 1).save(validators.getETag(),
+                validators.getLastModified(), validators.getDigest());
+        ForecastResponseCache.getInstance(getContext()).clear();
+        long requests = mServer.getRequestCount();
+        performSync();
+        assertTrue(mServer.getRequestCount() > requests);
+        assertEquals("Error: yesterday's ETag was sent", 1, mServer.getNotModifiedCount());
+        assertTrue("Error: the new day's validators weren't saved",
+                ForecastValidators.load(getContext(), location, today).isCurrent());
+    }
+
+    public void testSavedLocationsAreSynced() {
+        String preferred = newTarget().locationSetting;
+        String first = saveLocation();
+        String second = saveLocation();
+        setPreferredLocation(preferred);
+
+        performSync();
+
+        assertTrue("Error: the preferred location got no days", countStoredDays(preferred) > 0);
+        assertTrue("Error: the first saved location got no days", countStoredDays(first) > 0);
+        assertTrue("Error: the second saved location got no days", countStoredDays(second) > 0);
+    }
+
+    public void testUnsavedLocationIsDropped() {
+        String preferred = newTarget().locationSetting;
+        String saved = saveLocation();
+        setPreferredLocation(preferred);
+        performSync();
+        assertTrue("Error: the saved location got no days", countStoredDays(saved) > 0);
+
+        Utility.setLocationSaved(getContext(), saved, false);
+        ForecastResponseCache.getInstance(getContext()).clear();
+        long requests = mServer.getRequestCount();
+        performSync();
+
+        // Only the preferred location's daily and hourly forecast are asked for.
+        assertEquals("Error: the unsaved location was still synced",
+                requests + 2, mServer.getRequestCount());
+    }
+
+    /*
+        Saves a new location, the way the forecast list's menu does.
+     */
+    private String saveLocation() {
+        String location = newTarget().locationSetting;
+        Utility.setLocationSaved(getContext(), location, true);
+        mSavedLocations.add(location);
+        return location;
+    }
+
+    private int countStoredDays(String location) {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocation(location),
+                new String[]{WeatherContract.WeatherEntry.TABLE_NAME + "."
+                        + WeatherContract.WeatherEntry._ID},
+                null, null, null);
+        assertNotNull(cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    /*
+        Runs a whole sync of the preferred location against the mock server.
+     */
+    private SyncResult performSync() {
+        SyncResult syncResult = new SyncResult();
+        mSyncAdapter.onPerformSync(null, new Bundle(),
+                getContext().getString(R.string.content_authority), null, syncResult);
+        return syncResult;
+    }
+
+    /*
+        Makes the location the preferred one, by name rather than by picked coordinates.
+     */
+    private void setPreferredLocation(String location) {
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(getContext()).edit();
+        editor.putString(getContext().getString(R.string.pref_location_key), location);
+        editor.remove(getContext().getString(R.string.pref_location_latitude));
+        editor.remove(getContext().getString(R.string.pref_location_longitude));
+        editor.commit();
+    }
+
+    /*
+        @return the stored hourly blobs of the location, in date order.
+     */
+    private List<String> getStoredHourlyPoints(String location) {
+        ArrayList<String> points = new ArrayList<String>();
+        Cursor locationCursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{location}, null);
+        assertNotNull(locationCursor);
+        if (!locationCursor.moveToFirst()) {
+            locationCursor.close();
+            return points;
+        }
+        long locationId = locationCursor.getLong(0);
+        locationCursor.close();
+
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.HourlyEntry.CONTENT_URI,
+                new String[]{WeatherContract.HourlyEntry.COLUMN_POINTS},
+                WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationId)},
+                WeatherContract.HourlyEntry.COLUMN_DATE + " ASC");
+        assertNotNull(cursor);
+        while (cursor.moveToNext()) {
+            points.add(Arrays.toString(cursor.getBlob(0)));
+        }
+        cursor.close();
+        return points;
+    }
+
+    /*
+        A 4xx is about the request, e.g. an unknown path or a bad API key, and says nothing about
+        the server's health.
+     */
+    public void testClientErrorIsNotAServerFailure() {
+        mSyncAdapter.setWeatherSource(
+                new OpenWeatherMapSource(mServer.getForecastUrl() + "/unknown", "test"));
+        SunshineSyncAdapter.FetchResult result = mSyncAdapter.fetchForecast(newTarget());
+
+        assertEquals("Error: an HTTP 404 wasn't reported as invalid",
+                SunshineSyncAdapter.LOCATION_STATUS_INVALID, result.status);
+        assertNull(result.forecast);
+        assertFalse("Error: an HTTP 404 counted against the server", result.serverFailed);
+    }
+
+    private void assertFailure(MockOwmServer.Failure failure, int expectedStatus) {
+        mServer.setFailures(1, failure);
+        SunshineSyncAdapter.FetchResult result = mSyncAdapter.fetchForecast(newTarget());
+        assertEquals("Error: wrong status for " + failure, expectedStatus, result.status);
+        assertNull("Error: a forecast was collected for " + failure, result.forecast);
+        assertTrue("Error: " + failure + " didn't count against the server", result.serverFailed);
+    }
+
+    public void testThroughput() throws Exception {
+        mServer.setLatency(LATENCY_MS, JITTER_MS).setPaddingBytesPerDay(256);
+
+        // Warm up the connection pool and the parser.
+        mSyncAdapter.fetchForecast(newTarget());
+
+        long[] sequential = new long[BENCHMARK_FETCHES];
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_FETCHES; i++) {
+            sequential[i] = timeFetch(newTarget());
+        }
+        long sequentialNanos = System.nanoTime() - start;
+
+        List<Callable<Long>> fetches = new ArrayList<Callable<Long>>(BENCHMARK_FETCHES);
+        for (int i = 0; i < BENCHMARK_FETCHES; i++) {
+            final SunshineSyncAdapter.SyncTarget target = newTarget();
+            fetches.add(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return timeFetch(target);
+                }
+            });
+        }
+        long[] parallel = new long[BENCHMARK_FETCHES];
+        ExecutorService pool = Executors.newFixedThreadPool(BENCHMARK_THREADS);
+        try {
+            start = System.nanoTime();
+            List<Future<Long>> futures = pool.invokeAll(fetches);
+            for (int i = 0; i < BENCHMARK_FETCHES; i++) {
+                parallel[i] = futures.get(i).get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        long parallelNanos = System.nanoTime() - start;
+
+        logResults("sequential", sequential, sequentialNanos);
+        logResults(BENCHMARK_THREADS + " threads", parallel, parallelNanos);
+        Log.d(LOG_TAG, "Server sent " + mServer.getBytesSent() + " bytes for "
+                + mServer.getRequestCount() + " requests");
+
+        assertEquals(2 * BENCHMARK_FETCHES + 1, mServer.getRequestCount());
+    }
+
+    /*
+        @return the latency of one fetch in nanoseconds; fails if the fetch did.
+     */
+    private long timeFetch(SunshineSyncAdapter.SyncTarget target) {
+        long start = System.nanoTime();
+        SunshineSyncAdapter.FetchResult result = mSyncAdapter.fetchForecast(target);
+        long elapsed = System.nanoTime() - start;
+        assertEquals("Error: fetch of " + target.locationSetting + " failed",
+                SunshineSyncAdapter.LOCATION_STATUS_OK, result.status);
+        return elapsed;
+    }
+
+    private static void logResults(String name, long[] latencies, long totalNanos) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        Log.d(LOG_TAG, String.format(Locale.US,
+                "%s: %.1f fetches/s, p50=%.1fms p95=%.1fms p99=%.1fms",
+                name, sorted.length / (totalNanos / 1e9),
+                percentile(sorted, 50) / 1e6, percentile(sorted, 95) / 1e6,
+                percentile(sorted, 99) / 1e6));
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Locale;
+
+/*
+    Logs how many weather rows per second the provider's bulk insert stores, for a sync's worth
+    of days, a thousand and a hundred thousand, next to the same rows written with db.insert one
+    by one in a single transaction.  Rewriting rows that are stored unchanged is timed too, since
+    that is what most syncs do.
+ */
+public class TestBulkInsertThroughput extends AndroidTestCase {
+    public static final String LOG_TAG = TestBulkInsertThroughput.class.getSimpleName();
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    // Rows per bulkInsert call, so a hundred thousand rows don't all sit on the heap at once
+    private static final int CHUNK_SIZE = 10000;
+
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteWeather();
+        Uri locationUri = mContext.getContentResolver().insert(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        mLocationId = ContentUris.parseId(locationUri);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteWeather();
+        // Like TestProvider, leave no locations behind
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    public void testThroughput() {
+        // Warm up the provider and SQLite.
+        bulkInsert(14);
+        deleteWeather();
+
+        for (int rows : new int[]{14, 1000, 100000}) {
+            long start = System.nanoTime();
+            assertEquals("Error: not every row was stored", rows, bulkInsert(rows));
+            logRate("bulkInsert", rows, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            assertEquals("Error: unchanged rows were written again", 0, bulkInsert(rows));
+            logRate("bulkInsert, unchanged", rows, System.nanoTime() - start);
+
+            deleteWeather();
+            start = System.nanoTime();
+            insertOneByOne(rows);
+            logRate("db.insert", rows, System.nanoTime() - start);
+            deleteWeather();
+        }
+    }
+
+    private int bulkInsert(int rows) {
+        int inserted = 0;
+        for (int first = 0; first < rows; first += CHUNK_SIZE) {
+            ContentValues[] values = createRows(first, Math.min(rows - first, CHUNK_SIZE));
+            inserted += mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+        }
+        return inserted;
+    }
+
+    private void insertOneByOne(int rows) {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        try {
+            for (int first = 0; first < rows; first += CHUNK_SIZE) {
+                ContentValues[] values = createRows(first, Math.min(rows - first, CHUNK_SIZE));
+                db.beginTransaction();
+                try {
+                    for (ContentValues value : values) {
+                        assertTrue(db.insert(WeatherEntry.TABLE_NAME, null, value) != -1);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    private ContentValues[] createRows(int first, int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            int day = first + i;
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherEntry.COLUMN_LOC_KEY, mLocationId);
+            weatherValues.put(WeatherEntry.COLUMN_DATE,
+                    WeatherContract.normalizeDate(TestUtilities.TEST_DATE + day * DAY_IN_MILLIS));
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, 1.1);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, 1.2 + 0.01 * (day % 10));
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, 1.3 - 0.01 * (day % 10));
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 75 + day % 10);
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, 65 - day % 10);
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5);
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, 321);
+            values[i] = weatherValues;
+        }
+        return values;
+    }
+
+    private void deleteWeather() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    private static void logRate(String name, int rows, long nanos) {
+        Log.d(LOG_TAG, String.format(Locale.US, "%s, %d rows: %.0f rows/s (%.1fms)",
+                name, rows, rows / (nanos / 1e9), nanos / 1e6));
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/*
+    Checks that weather.db is in write-ahead logging mode, and logs how long the forecast list
+    query takes while a large bulk insert is being written on another thread.
+ */
+public class TestConcurrentReads extends AndroidTestCase {
+    public static final String LOG_TAG = TestConcurrentReads.class.getSimpleName();
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    private static final int STORED_DAYS = 14;
+    private static final int SYNC_ROWS = 10000;
+
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_WEATHER_ID
+    };
+
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteWeather();
+        mLocationId = ContentUris.parseId(mContext.getContentResolver().insert(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues()));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteWeather();
+        // Like TestProvider, leave no locations behind
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+        super.tearDown();
+    }
+
+    public void testWriteAheadLogging() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getReadableDatabase();
+        Cursor cursor = db.rawQuery("PRAGMA journal_mode", null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: weather.db isn't in write-ahead logging mode",
+                "wal", cursor.getString(0).toLowerCase(Locale.US));
+        cursor.close();
+        dbHelper.close();
+    }
+
+    /*
+        Keeps running the forecast list query while another thread bulk inserts a large sync.
+        With write-ahead logging the reads go on during the insert's transaction instead of
+        waiting for it to end.
+     */
+    public void testReadsDuringBulkInsert() throws InterruptedException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createRows(0, STORED_DAYS));
+        final ContentValues[] syncRows = createRows(STORED_DAYS, SYNC_ROWS);
+
+        final long[] writeNanos = new long[1];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, syncRows);
+                writeNanos[0] = System.nanoTime() - start;
+            }
+        });
+
+        List<Long> latencies = new ArrayList<Long>();
+        writer.start();
+        while (writer.isAlive()) {
+            long start = System.nanoTime();
+            Cursor cursor = mContext.getContentResolver().query(
+                    WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                            TestUtilities.TEST_DATE),
+                    FORECAST_COLUMNS, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+            // The query only runs once the cursor is asked for its rows.
+            int count = cursor.getCount();
+            cursor.close();
+            long elapsed = System.nanoTime() - start;
+            // A read sees all of the sync or none of it.
+            assertTrue("Error: a read saw " + count + " days",
+                    count == STORED_DAYS || count == STORED_DAYS + SYNC_ROWS);
+            if (writer.isAlive()) {
+                latencies.add(elapsed);
+            }
+        }
+        writer.join();
+
+        Collections.sort(latencies);
+        Log.d(LOG_TAG, String.format(Locale.US,
+                "%d reads during a %.1fms bulk insert of %d rows: p50=%.2fms p95=%.2fms max=%.2fms",
+                latencies.size(), writeNanos[0] / 1e6, SYNC_ROWS,
+                percentile(latencies, 50) / 1e6, percentile(latencies, 95) / 1e6,
+                percentile(latencies, 100) / 1e6));
+        assertTrue("Error: no read got through while the sync was writing",
+                latencies.size() > 1);
+    }
+
+    private ContentValues[] createRows(int firstDay, int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            ContentValues weatherValues = TestUtilities.createWeatherValues(mLocationId);
+            weatherValues.put(WeatherEntry.COLUMN_DATE,
+                    TestUtilities.TEST_DATE + (firstDay + i) * DAY_IN_MILLIS);
+            values[i] = weatherValues;
+        }
+        return values;
+    }
+
+    private void deleteWeather() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    private static long percentile(List<Long> sorted, int percent) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percent / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+}
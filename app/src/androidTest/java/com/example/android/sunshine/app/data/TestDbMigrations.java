@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/*
+    Builds databases of every older schema version, starting from the version 2 schema as it
+    shipped, and checks that WeatherDbHelper upgrades them to the schema onCreate makes without
+    losing the stored locations and days.  Also logs how long upgrading a large database takes.
+ */
+public class TestDbMigrations extends AndroidTestCase {
+    public static final String LOG_TAG = TestDbMigrations.class.getSimpleName();
+
+    private static final String FRESH_DATABASE_NAME = "weather_fresh.db";
+
+    private static final int LARGE_LOCATIONS = 50;
+    private static final int LARGE_DAYS = 1000;
+
+    public void setUp() {
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mContext.deleteDatabase(FRESH_DATABASE_NAME);
+    }
+
+    public void tearDown() {
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mContext.deleteDatabase(FRESH_DATABASE_NAME);
+    }
+
+    public void testUpgradeFromEveryVersion() {
+        List<String> createdSchema = getCreatedSchema();
+
+        for (int version = WeatherDbHelper.FIRST_MIGRATABLE_VERSION;
+             version < WeatherDbHelper.DATABASE_VERSION; version++) {
+            mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+            SQLiteDatabase db = createVersion2Database();
+            populate(db, 1, 14);
+            WeatherDbHelper.upgrade(db, 2, version);
+            db.setVersion(version);
+            db.close();
+
+            WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+            db = dbHelper.getWritableDatabase();
+            assertEquals("Error: upgrading from version " + version + " ended up with another schema",
+                    createdSchema, getSchema(db));
+            assertEquals("Error: upgrading from version " + version + " lost locations",
+                    1, count(db, LocationEntry.TABLE_NAME));
+            assertEquals("Error: upgrading from version " + version + " lost days",
+                    14, count(db, WeatherEntry.TABLE_NAME));
+            assertEquals("Error: upgrading from version " + version + " changed the row ids",
+                    1, queryLong(db, "SELECT MIN(" + WeatherEntry._ID + ") FROM "
+                            + WeatherEntry.TABLE_NAME));
+
+            // A second row for a stored day is turned down, not swapped in with a new _ID.
+            ContentValues duplicate = TestUtilities.createWeatherValues(1);
+            duplicate.put(WeatherEntry.COLUMN_DATE, 0);
+            assertEquals("Error: the weather table still replaces on conflict after upgrading from "
+                    + version, -1, db.insert(WeatherEntry.TABLE_NAME, null, duplicate));
+            dbHelper.close();
+        }
+    }
+
+    public void testUpgradeLargeDatabase() {
+        SQLiteDatabase db = createVersion2Database();
+        populate(db, LARGE_LOCATIONS, LARGE_DAYS);
+        db.close();
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        long start = System.nanoTime();
+        db = dbHelper.getWritableDatabase();
+        long elapsed = System.nanoTime() - start;
+        Log.d(LOG_TAG, String.format(Locale.US,
+                "Upgrade from version 2 to %d with %d days of %d locations: %.1fms",
+                WeatherDbHelper.DATABASE_VERSION, LARGE_DAYS, LARGE_LOCATIONS, elapsed / 1e6));
+
+        assertEquals(LARGE_LOCATIONS, count(db, LocationEntry.TABLE_NAME));
+        assertEquals(LARGE_LOCATIONS * LARGE_DAYS, count(db, WeatherEntry.TABLE_NAME));
+        dbHelper.close();
+    }
+
+    /*
+        The database as version 2 created it: locations and weather, nothing else.
+     */
+    private SQLiteDatabase createVersion2Database() {
+        SQLiteDatabase db = mContext.openOrCreateDatabase(WeatherDbHelper.DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        db.execSQL("CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
+                LocationEntry._ID + " INTEGER PRIMARY KEY," +
+                LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
+                LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
+                LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                " );");
+        db.execSQL("CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+                WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+                " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);");
+        db.setVersion(2);
+        return db;
+    }
+
+    /*
+        Stores locations with ids 1 to locations and days 0 to days - 1 for each, with the
+        columns of version 2.
+     */
+    private static void populate(SQLiteDatabase db, int locations, int days) {
+        SQLiteStatement insertDay = db.compileStatement("INSERT INTO " + WeatherEntry.TABLE_NAME
+                + " (" + WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE + ", "
+                + WeatherEntry.COLUMN_SHORT_DESC + ", " + WeatherEntry.COLUMN_WEATHER_ID + ", "
+                + WeatherEntry.COLUMN_MIN_TEMP + ", " + WeatherEntry.COLUMN_MAX_TEMP + ", "
+                + WeatherEntry.COLUMN_HUMIDITY + ", " + WeatherEntry.COLUMN_PRESSURE + ", "
+                + WeatherEntry.COLUMN_WIND_SPEED + ", " + WeatherEntry.COLUMN_DEGREES
+                + ") VALUES (?, ?, 'Asteroids', 321, 65, 75, 1.2, 1.3, 5.5, 1.1)");
+        db.beginTransaction();
+        try {
+            for (int location = 1; location <= locations; location++) {
+                ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+                locationValues.put(LocationEntry._ID, location);
+                locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING,
+                        TestUtilities.TEST_LOCATION + "-" + location);
+                assertTrue(db.insert(LocationEntry.TABLE_NAME, null, locationValues) != -1);
+                for (int day = 0; day < days; day++) {
+                    insertDay.bindLong(1, location);
+                    insertDay.bindLong(2, day);
+                    insertDay.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insertDay.close();
+        }
+    }
+
+    private List<String> getCreatedSchema() {
+        SQLiteDatabase fresh = mContext.openOrCreateDatabase(FRESH_DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        try {
+            new WeatherDbHelper(mContext).onCreate(fresh);
+            return getSchema(fresh);
+        } finally {
+            fresh.close();
+        }
+    }
+
+    /*
+        The columns and indexes of the tables, one line each and sorted, as SQLite reports them.
+        The CREATE statements themselves differ between a created and an upgraded database.
+     */
+    private static List<String> getSchema(SQLiteDatabase db) {
+        ArrayList<String> schema = new ArrayList<String>();
+        String[] tables = {LocationEntry.TABLE_NAME, WeatherEntry.TABLE_NAME,
+                HourlyEntry.TABLE_NAME};
+        for (String table : tables) {
+            Cursor columns = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+            while (columns.moveToNext()) {
+                schema.add(table + " column " + columns.getString(columns.getColumnIndex("name"))
+                        + " " + columns.getString(columns.getColumnIndex("type"))
+                        + " notnull=" + columns.getInt(columns.getColumnIndex("notnull"))
+                        + " default=" + columns.getString(columns.getColumnIndex("dflt_value"))
+                        + " pk=" + columns.getInt(columns.getColumnIndex("pk")));
+            }
+            columns.close();
+
+            Cursor indexes = db.rawQuery("PRAGMA index_list(" + table + ")", null);
+            while (indexes.moveToNext()) {
+                String index = indexes.getString(indexes.getColumnIndex("name"));
+                StringBuilder line = new StringBuilder(table).append(" index ").append(index)
+                        .append(" unique=").append(indexes.getInt(indexes.getColumnIndex("unique")))
+                        .append(" on");
+                Cursor indexColumns = db.rawQuery("PRAGMA index_info(" + index + ")", null);
+                while (indexColumns.moveToNext()) {
+                    line.append(' ').append(
+                            indexColumns.getString(indexColumns.getColumnIndex("name")));
+                }
+                indexColumns.close();
+                schema.add(line.toString());
+            }
+            indexes.close();
+        }
+        Collections.sort(schema);
+        return schema;
+    }
+
+    private static long count(SQLiteDatabase db, String table) {
+        return queryLong(db, "SELECT COUNT(*) FROM " + table);
+    }
+
+    private static long queryLong(SQLiteDatabase db, String sql) {
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+}
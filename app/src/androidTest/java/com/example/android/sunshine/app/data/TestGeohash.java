@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.test.AndroidTestCase;
+
+/*
+    Checks the geohash cells the sync buckets picked locations into.
+ */
+public class TestGeohash extends AndroidTestCase {
+
+    public void testEncode() {
+        // The example from the geohash.org documentation
+        assertEquals("u4pruydqqvj", Geohash.encode(57.64911, 10.40744, 11));
+        assertEquals("u4pru", Geohash.encode(57.64911, 10.40744, 5));
+    }
+
+    public void testNearbyPointsShareACell() {
+        String cell = Geohash.encode(64.7488, -147.353, Geohash.LOCATION_PRECISION);
+        assertEquals("Error: a point 100m away ended up in another cell", cell,
+                Geohash.encode(64.7497, -147.353, Geohash.LOCATION_PRECISION));
+        assertFalse("Error: a point 50km away ended up in the same cell",
+                cell.equals(Geohash.encode(65.2, -147.353, Geohash.LOCATION_PRECISION)));
+    }
+
+    public void testCenterIsInTheCell() {
+        String cell = Geohash.encode(-33.8688, 151.2093, Geohash.LOCATION_PRECISION);
+        double[] center = Geohash.decodeCenter(cell);
+        assertEquals(-33.8688, center[0], 0.05);
+        assertEquals(151.2093, center[1], 0.05);
+        assertEquals("Error: the center of a cell isn't in the cell", cell,
+                Geohash.encode(center[0], center[1], Geohash.LOCATION_PRECISION));
+    }
+}
@@ -27,9 +27,12 @@ import android.os.Build;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.Arrays;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -51,6 +54,11 @@ public class TestProvider extends AndroidTestCase {
        the delete functionality in the ContentProvider.
      */
     public void deleteAllRecordsFromProvider() {
+        mContext.getContentResolver().delete(
+                HourlyEntry.CONTENT_URI,
+                null,
+                null
+        );
         mContext.getContentResolver().delete(
                 WeatherEntry.CONTENT_URI,
                 null,
@@ -286,6 +294,45 @@ public class TestProvider extends AndroidTestCase {
         cursor.close();
     }
 
+    /*
+        Inserting a location setting that is stored already updates that row and returns its id,
+        which the sync relies on to resolve a location in one call.
+     */
+    public void testLocationInsertIsUpsert() {
+        ContentValues values = TestUtilities.createNorthPoleLocationValues();
+        values.put(LocationEntry.COLUMN_SAVED, 1);
+        long locationRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, values));
+        assertTrue(locationRowId != -1);
+        assertEquals("Error: the inserted location wasn't cached", locationRowId,
+                LocationIdCache.getInstance().getId(TestUtilities.TEST_LOCATION));
+
+        ContentValues updatedValues = new ContentValues(values);
+        updatedValues.remove(LocationEntry.COLUMN_SAVED);
+        updatedValues.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Village");
+        long upsertedRowId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, updatedValues));
+        assertEquals("Error: inserting a stored location setting created a new row",
+                locationRowId, upsertedRowId);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                null
+        );
+        assertEquals("Error: expected exactly one location", 1, cursor.getCount());
+        updatedValues.put(LocationEntry.COLUMN_SAVED, 1);
+        TestUtilities.validateCursor("testLocationInsertIsUpsert.  Error validating upserted location.",
+                cursor, updatedValues);
+        cursor.close();
+
+        deleteAllRecordsFromProvider();
+        assertEquals("Error: deleting locations didn't clear the id cache", -1,
+                LocationIdCache.getInstance().getId(TestUtilities.TEST_LOCATION));
+    }
+
 
     // Make sure we can still delete after adding/updating stuff
     //
@@ -512,4 +559,270 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    /*
+        Bulk inserting days that are already stored, unchanged, should write nothing and not
+        notify anybody.  Changing a single day should write just that day.
+     */
+    public void testBulkInsertSkipsUnchangedDays() throws InterruptedException {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] bulkInsertContentValues = createBulkInsertWeatherValues(locationRowId);
+
+        int insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                bulkInsertContentValues);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, insertCount);
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+
+        insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        assertEquals("Error: unchanged days were rewritten", 0, insertCount);
+        weatherObserver.assertNoNotification(500);
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        ContentValues[] changedValues = createBulkInsertWeatherValues(locationRowId);
+        changedValues[3].put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+
+        weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+
+        insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                changedValues);
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        assertEquals("Error: only the changed day should have been written", 1, insertCount);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToPosition(3);
+        TestUtilities.validateCurrentRecord("testBulkInsertSkipsUnchangedDays.  Error validating WeatherEntry 3",
+                cursor, changedValues[3]);
+        cursor.close();
+    }
+
+    /*
+        A day that is written again with new values is updated in place, so it keeps its _ID,
+        whether it comes in through bulkInsert or insert.
+     */
+    public void testRewrittenDaysKeepTheirIds() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        long[] ids = queryWeatherIds();
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, ids.length);
+
+        ContentValues[] changedValues = createBulkInsertWeatherValues(locationRowId);
+        for (ContentValues values : changedValues) {
+            values.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        }
+        int insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                changedValues);
+        assertEquals("Error: every day changed", BULK_INSERT_RECORDS_TO_INSERT, insertCount);
+        assertTrue("Error: rewritten days got new ids", Arrays.equals(ids, queryWeatherIds()));
+
+        changedValues[0].put(WeatherEntry.COLUMN_SHORT_DESC, "Comets");
+        long insertedId = ContentUris.parseId(mContext.getContentResolver().insert(
+                WeatherEntry.CONTENT_URI, changedValues[0]));
+        assertEquals("Error: inserting a stored day created a new row", ids[0], insertedId);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToFirst();
+        TestUtilities.validateCurrentRecord("testRewrittenDaysKeepTheirIds.  Error validating WeatherEntry 0",
+                cursor, changedValues[0]);
+        cursor.close();
+    }
+
+    private long[] queryWeatherIds() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID},
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        long[] ids = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return ids;
+    }
+
+    /*
+        A canceled sync interrupts its thread while it commits.  The bulk insert has to give up
+        and leave the stored days exactly as they were.
+     */
+    public void testInterruptedBulkInsertRollsBack() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues[] storedValues = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, storedValues);
+
+        ContentValues[] changedValues = createBulkInsertWeatherValues(locationRowId);
+        for (ContentValues values : changedValues) {
+            values.put(WeatherEntry.COLUMN_MAX_TEMP, 99.5);
+        }
+        Thread.currentThread().interrupt();
+        int insertCount;
+        try {
+            insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                    changedValues);
+        } finally {
+            // Don't leak the interrupt into the next test.
+            Thread.interrupted();
+        }
+        assertEquals("Error: an interrupted bulk insert reported written days", 0, insertCount);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.moveToFirst();
+        for (int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord("testInterruptedBulkInsertRollsBack.  Error validating WeatherEntry " + i,
+                    cursor, storedValues[i]);
+        }
+        cursor.close();
+    }
+
+    /*
+        A sync commit stores every synced location at once.  Only the locations it wrote days
+        of get a new version, so the sync can tell whether the preferred one changed.
+     */
+    public void testSyncCommitVersionsWrittenLocations() {
+        long northPoleId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues savedLocation = TestUtilities.createNorthPoleLocationValues();
+        savedLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, "saved-location");
+        long savedId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, savedLocation));
+        // Trims nothing, every test day comes after the epoch.
+        Uri commitUri = WeatherEntry.buildSyncCommitUri(0);
+
+        long northPoleVersion = WeatherProvider.getLocationVersion(northPoleId);
+        long savedVersion = WeatherProvider.getLocationVersion(savedId);
+        assertEquals(2 * BULK_INSERT_RECORDS_TO_INSERT,
+                mContext.getContentResolver().bulkInsert(commitUri, createCommitValues(
+                        createBulkInsertWeatherValues(northPoleId),
+                        createBulkInsertWeatherValues(savedId))));
+        assertTrue(WeatherProvider.getLocationVersion(northPoleId) != northPoleVersion);
+        assertTrue(WeatherProvider.getLocationVersion(savedId) != savedVersion);
+
+        // Only a day of the saved location changes.
+        northPoleVersion = WeatherProvider.getLocationVersion(northPoleId);
+        savedVersion = WeatherProvider.getLocationVersion(savedId);
+        ContentValues[] changedValues = createBulkInsertWeatherValues(savedId);
+        changedValues[3].put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        assertEquals(1, mContext.getContentResolver().bulkInsert(commitUri, createCommitValues(
+                createBulkInsertWeatherValues(northPoleId), changedValues)));
+        assertEquals("Error: a location whose days didn't change got a new version",
+                northPoleVersion, WeatherProvider.getLocationVersion(northPoleId));
+        assertTrue(WeatherProvider.getLocationVersion(savedId) != savedVersion);
+    }
+
+    /*
+        A sync commit notifies each location it wrote days of.  A location whose days came back
+        unchanged gets no notification, even when another location in the same commit changed.
+     */
+    public void testSyncCommitNotifiesChangedLocationsOnly() throws InterruptedException {
+        long northPoleId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues savedLocation = TestUtilities.createNorthPoleLocationValues();
+        savedLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, "saved-location");
+        long savedId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, savedLocation));
+        Uri commitUri = WeatherEntry.buildSyncCommitUri(0);
+        mContext.getContentResolver().bulkInsert(commitUri, createCommitValues(
+                createBulkInsertWeatherValues(northPoleId),
+                createBulkInsertWeatherValues(savedId)));
+
+        TestUtilities.TestContentObserver northPoleObserver =
+                TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), true,
+                northPoleObserver);
+        TestUtilities.TestContentObserver savedObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation("saved-location"), true, savedObserver);
+
+        ContentValues[] changedValues = createBulkInsertWeatherValues(savedId);
+        changedValues[3].put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        assertEquals(1, mContext.getContentResolver().bulkInsert(commitUri, createCommitValues(
+                createBulkInsertWeatherValues(northPoleId), changedValues)));
+
+        savedObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(savedObserver);
+        northPoleObserver.assertNoNotification(500);
+        mContext.getContentResolver().unregisterContentObserver(northPoleObserver);
+    }
+
+    private static ContentValues[] createCommitValues(ContentValues[] first,
+                                                      ContentValues[] second) {
+        ContentValues[] values = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, values, first.length, second.length);
+        return values;
+    }
+
+    /*
+        Stores a day of hourly points as one blob and reads it back through the location and
+        date URI the detail screen uses.
+     */
+    public void testHourlyInsertReadProvider() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        long date = WeatherContract.normalizeDate(TestUtilities.TEST_DATE);
+        long threeHours = 3 * 60 * 60 * 1000;
+
+        HourlyForecast.Builder builder = new HourlyForecast.Builder(date);
+        for (int i = 0; i < 8; i++) {
+            builder.add(date + i * threeHours, -12.5 + i, 600 + i, 40 + i, 1013.2, 3.25, 45 * i);
+        }
+        ContentValues hourlyValues = new ContentValues();
+        hourlyValues.put(HourlyEntry.COLUMN_LOC_KEY, locationRowId);
+        hourlyValues.put(HourlyEntry.COLUMN_DATE, date);
+        hourlyValues.put(HourlyEntry.COLUMN_POINTS, builder.build());
+
+        int insertCount = mContext.getContentResolver().bulkInsert(HourlyEntry.CONTENT_URI,
+                new ContentValues[]{hourlyValues});
+        assertEquals(1, insertCount);
+        insertCount = mContext.getContentResolver().bulkInsert(HourlyEntry.CONTENT_URI,
+                new ContentValues[]{hourlyValues});
+        assertEquals("Error: an unchanged hourly day was rewritten", 0, insertCount);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                HourlyEntry.buildHourlyLocationWithDate(TestUtilities.TEST_LOCATION, date),
+                new String[]{HourlyEntry.COLUMN_POINTS},
+                null,
+                null,
+                null
+        );
+        assertTrue("Error: no hourly row for the location and date", cursor.moveToFirst());
+        HourlyForecast hourly = HourlyForecast.wrap(cursor.getBlob(0), date);
+        cursor.close();
+
+        assertEquals(8, hourly.getCount());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(date + i * threeHours, hourly.getTime(i));
+            assertEquals(-12.5 + i, hourly.getTemperature(i), 0.01);
+            assertEquals(600 + i, hourly.getWeatherId(i));
+            assertEquals(40 + i, hourly.getHumidity(i));
+            assertEquals(1013.2, hourly.getPressure(i), 0.1);
+            assertEquals(3.25, hourly.getWindSpeed(i), 0.01);
+            assertEquals(45.0 * i, hourly.getDegrees(i), 0.5);
+        }
+    }
 }
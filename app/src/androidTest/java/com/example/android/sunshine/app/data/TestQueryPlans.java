@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Runs the SQL the provider builds for each of its query URIs through EXPLAIN QUERY PLAN, with
+    the projections and selections the app actually uses, so a schema change can't quietly turn
+    an index search back into a scan of the table.
+
+    The plans are matched on the part of each line that reads the same across SQLite versions,
+    e.g. "USING COVERING INDEX weather_forecast_idx (location_id=? AND date>?)".
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    private SQLiteDatabase mDb;
+
+    public void setUp() {
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mDb = new WeatherDbHelper(mContext).getReadableDatabase();
+    }
+
+    public void tearDown() {
+        mDb.close();
+    }
+
+    public void testForecastListIsCovered() {
+        List<String> plan = explain(WeatherEntry.buildWeatherLocationWithStartDate(
+                        TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE),
+                FORECAST_COLUMNS, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertSearches(plan,
+                "(" + LocationEntry.COLUMN_LOCATION_SETTING + "=?)",
+                "USING COVERING INDEX " + WeatherDbHelper.WEATHER_FORECAST_INDEX + " ("
+                        + WeatherEntry.COLUMN_LOC_KEY + "=? AND " + WeatherEntry.COLUMN_DATE + ">?)");
+
+        plan = explain(WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                FORECAST_COLUMNS, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertSearches(plan,
+                "USING COVERING INDEX " + WeatherDbHelper.WEATHER_FORECAST_INDEX + " ("
+                        + WeatherEntry.COLUMN_LOC_KEY + "=?)");
+    }
+
+    public void testWeatherForDay() {
+        List<String> plan = explain(WeatherEntry.buildWeatherLocationWithDate(
+                        TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE),
+                null, null, null, null);
+        assertSearches(plan, "(" + LocationEntry.COLUMN_LOCATION_SETTING + "=?)");
+    }
+
+    public void testWeatherOfLocationId() {
+        // How the sync reads the forecast of another location in a picked location's cell
+        List<String> plan = explain(WeatherEntry.CONTENT_URI, null,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " >= ?",
+                new String[]{"1", Long.toString(TestUtilities.TEST_DATE)},
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertSearches(plan, WeatherDbHelper.WEATHER_FORECAST_INDEX + " ("
+                + WeatherEntry.COLUMN_LOC_KEY + "=? AND " + WeatherEntry.COLUMN_DATE + ">?)");
+    }
+
+    public void testLocationQueries() {
+        List<String> plan = explain(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{TestUtilities.TEST_LOCATION}, null);
+        assertSearches(plan, "(" + LocationEntry.COLUMN_LOCATION_SETTING + "=?)");
+
+        plan = explain(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_CITY_NAME},
+                LocationEntry.COLUMN_GEOHASH + " = ? AND "
+                        + LocationEntry.COLUMN_LOCATION_SETTING + " != ?",
+                new String[]{"u4pru", TestUtilities.TEST_LOCATION}, null);
+        assertSearches(plan, "USING INDEX " + WeatherDbHelper.LOCATION_GEOHASH_INDEX + " ("
+                + LocationEntry.COLUMN_GEOHASH + "=?)");
+
+        // The saved flag has no index on purpose: the table only holds the few places the user
+        // looked at, and an index on a yes/no column wouldn't beat reading them all.
+        plan = explain(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_LOCATION_SETTING},
+                LocationEntry.COLUMN_SAVED + " = 1", null, null);
+        assertEquals("Error: unexpected plan " + plan, 1, plan.size());
+        assertTrue("Error: unexpected plan " + plan, plan.get(0).startsWith("SCAN"));
+    }
+
+    public void testHourlyQueries() {
+        List<String> plan = explain(HourlyEntry.buildHourlyLocationWithDate(
+                        TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE),
+                new String[]{HourlyEntry.TABLE_NAME + "." + HourlyEntry.COLUMN_DATE,
+                        HourlyEntry.COLUMN_POINTS},
+                null, null, null);
+        assertSearches(plan, "(" + HourlyEntry.COLUMN_DATE + "=? AND "
+                + HourlyEntry.COLUMN_LOC_KEY + "=?)");
+
+        // The selection the sync trims old hourly days with
+        plan = explain(HourlyEntry.CONTENT_URI, new String[]{HourlyEntry._ID},
+                HourlyEntry.COLUMN_DATE + " < ?",
+                new String[]{Long.toString(TestUtilities.TEST_DATE)}, null);
+        assertSearches(plan, "(" + HourlyEntry.COLUMN_DATE + "<?)");
+    }
+
+    private List<String> explain(Uri uri, String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder) {
+        WeatherProvider.UriQuery query = WeatherProvider.buildQuery(uri, projection, selection,
+                selectionArgs, sortOrder);
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + query.sql, query.selectionArgs);
+        ArrayList<String> plan = new ArrayList<String>();
+        try {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detailIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan;
+    }
+
+    /*
+        Checks that every table is searched through an index, that nothing has to be sorted
+        afterwards, and that each expected piece shows up in the plan.
+     */
+    private static void assertSearches(List<String> plan, String... expected) {
+        for (String line : plan) {
+            assertFalse("Error: table scan in " + plan, line.startsWith("SCAN"));
+            assertFalse("Error: sort in " + plan, line.contains("TEMP B-TREE"));
+        }
+        for (String piece : expected) {
+            boolean found = false;
+            for (String line : plan) {
+                if (line.contains(piece)) {
+                    found = true;
+                    break;
+                }
+            }
+            assertTrue("Error: no \"" + piece + "\" in " + plan, found);
+        }
+    }
+}
@@ -36,6 +36,13 @@ public class TestUriMatcher extends AndroidTestCase {
     private static final Uri TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION_QUERY, TEST_DATE);
     // content://com.example.android.sunshine.app/location"
     private static final Uri TEST_LOCATION_DIR = WeatherContract.LocationEntry.CONTENT_URI;
+    // content://com.example.android.sunshine.app/sync_timings"
+    private static final Uri TEST_SYNC_TIMINGS_DIR = WeatherContract.SyncTimingsEntry.CONTENT_URI;
+    // content://com.example.android.sunshine.app/hourly"
+    private static final Uri TEST_HOURLY_DIR = WeatherContract.HourlyEntry.CONTENT_URI;
+    private static final Uri TEST_HOURLY_WITH_LOCATION_AND_DATE_DIR = WeatherContract.HourlyEntry.buildHourlyLocationWithDate(LOCATION_QUERY, TEST_DATE);
+    // content://com.example.android.sunshine.app/sync_commit/1419033600"
+    private static final Uri TEST_SYNC_COMMIT = WeatherContract.WeatherEntry.buildSyncCommitUri(TEST_DATE);
 
     /*
         Students: This function tests that your UriMatcher returns the correct integer value
@@ -53,5 +60,13 @@ public class TestUriMatcher extends AndroidTestCase {
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR), WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE);
         assertEquals("Error: The LOCATION URI was matched incorrectly.",
                 testMatcher.match(TEST_LOCATION_DIR), WeatherProvider.LOCATION);
+        assertEquals("Error: The SYNC TIMINGS URI was matched incorrectly.",
+                testMatcher.match(TEST_SYNC_TIMINGS_DIR), WeatherProvider.SYNC_TIMINGS);
+        assertEquals("Error: The HOURLY URI was matched incorrectly.",
+                testMatcher.match(TEST_HOURLY_DIR), WeatherProvider.HOURLY);
+        assertEquals("Error: The HOURLY WITH LOCATION AND DATE URI was matched incorrectly.",
+                testMatcher.match(TEST_HOURLY_WITH_LOCATION_AND_DATE_DIR), WeatherProvider.HOURLY_WITH_LOCATION_AND_DATE);
+        assertEquals("Error: The SYNC COMMIT URI was matched incorrectly.",
+                testMatcher.match(TEST_SYNC_COMMIT), WeatherProvider.SYNC_COMMIT);
     }
 }
@@ -158,6 +158,13 @@ public class TestUtilities extends AndroidTestCase {
             }.run();
             mHT.quit();
         }
+
+        public void assertNoNotification(long waitMillis) throws InterruptedException {
+            // Give a notification the time to arrive before concluding there wasn't one.
+            Thread.sleep(waitMillis);
+            mHT.quit();
+            assertFalse("Error: the content observer was notified", mContentChanged);
+        }
     }
 
     static TestContentObserver getTestContentObserver() {
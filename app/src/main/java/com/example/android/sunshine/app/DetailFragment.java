@@ -27,6 +27,8 @@ import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.CardView;
 import android.support.v7.widget.ShareActionProvider;
 import android.support.v7.widget.Toolbar;
+import android.text.format.DateFormat;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -38,9 +40,13 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.bumptech.glide.Glide;
+import com.example.android.sunshine.app.data.HourlyForecast;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.Date;
+
 /**
  * A placeholder fragment containing a simple view.
  */
@@ -57,6 +63,7 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
     private boolean mTransitionAnimation;
 
     private static final int DETAIL_LOADER = 0;
+    private static final int HOURLY_LOADER = 1;
 
     private static final String[] DETAIL_COLUMNS = {
             WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
@@ -87,6 +94,16 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
     public static final int COL_WEATHER_DEGREES = 8;
     public static final int COL_WEATHER_CONDITION_ID = 9;
 
+    // The hourly points of the day come as one packed blob, read only for the day shown.
+    private static final String[] HOURLY_COLUMNS = {
+            HourlyEntry.TABLE_NAME + "." + HourlyEntry.COLUMN_DATE,
+            HourlyEntry.COLUMN_POINTS
+    };
+
+    // These indices are tied to HOURLY_COLUMNS.
+    static final int COL_HOURLY_DATE = 0;
+    static final int COL_HOURLY_POINTS = 1;
+
     private ImageView mIconView;
     private TextView mDateView;
     private TextView mDescriptionView;
@@ -98,6 +115,8 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
     private TextView mWindLabelView;
     private TextView mPressureView;
     private TextView mPressureLabelView;
+    private TextView mHourlyView;
+    private TextView mHourlyLabelView;
 
     public DetailFragment() {
         setHasOptionsMenu(true);
@@ -125,6 +144,8 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
         mWindLabelView = (TextView) rootView.findViewById(R.id.detail_wind_label_textview);
         mPressureView = (TextView) rootView.findViewById(R.id.detail_pressure_textview);
         mPressureLabelView = (TextView) rootView.findViewById(R.id.detail_pressure_label_textview);
+        mHourlyView = (TextView) rootView.findViewById(R.id.detail_hourly_textview);
+        mHourlyLabelView = (TextView) rootView.findViewById(R.id.detail_hourly_label_textview);
         return rootView;
     }
 
@@ -154,6 +175,7 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         getLoaderManager().initLoader(DETAIL_LOADER, null, this);
+        getLoaderManager().initLoader(HOURLY_LOADER, null, this);
         super.onActivityCreated(savedInstanceState);
     }
 
@@ -165,11 +187,21 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
             Uri updatedUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(newLocation, date);
             mUri = updatedUri;
             getLoaderManager().restartLoader(DETAIL_LOADER, null, this);
+            getLoaderManager().restartLoader(HOURLY_LOADER, null, this);
         }
     }
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        if ( id == HOURLY_LOADER ) {
+            if ( null == mUri ) {
+                return null;
+            }
+            Uri hourlyUri = HourlyEntry.buildHourlyLocationWithDate(
+                    WeatherEntry.getLocationSettingFromUri(mUri),
+                    WeatherEntry.getDateFromUri(mUri));
+            return new CursorLoader(getActivity(), hourlyUri, HOURLY_COLUMNS, null, null, null);
+        }
         if ( null != mUri ) {
             // Now create and return a CursorLoader that will take care of
             // creating a Cursor for the data being displayed.
@@ -191,6 +223,10 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        if (loader.getId() == HOURLY_LOADER) {
+            bindHourly(data);
+            return;
+        }
         if (data != null && data.moveToFirst()) {
             ViewParent vp = getView().getParent();
             if ( vp instanceof CardView ) {
@@ -287,6 +323,46 @@ public class DetailFragment extends Fragment implements LoaderManager.LoaderCall
         }
     }
 
+    /*
+        Shows the hourly points of the day, if the sync stored any.  The blob is only decoded
+        here, for the one day on screen, and only the fields shown are read from it.
+     */
+    private void bindHourly(Cursor data) {
+        if (null == mHourlyView) {
+            return;
+        }
+        HourlyForecast hourly = null;
+        if (data != null && data.moveToFirst()) {
+            try {
+                hourly = HourlyForecast.wrap(data.getBlob(COL_HOURLY_POINTS),
+                        data.getLong(COL_HOURLY_DATE));
+            } catch (IllegalArgumentException e) {
+                Log.e(LOG_TAG, "Unreadable hourly forecast", e);
+            }
+        }
+        if (hourly == null || hourly.getCount() == 0) {
+            mHourlyView.setVisibility(View.GONE);
+            mHourlyLabelView.setVisibility(View.GONE);
+            return;
+        }
+
+        java.text.DateFormat timeFormat = DateFormat.getTimeFormat(getActivity());
+        StringBuilder points = new StringBuilder();
+        for (int i = 0; i < hourly.getCount(); i++) {
+            if (i > 0) {
+                points.append('\n');
+            }
+            points.append(getString(R.string.format_hourly_point,
+                    timeFormat.format(new Date(hourly.getTime(i))),
+                    Utility.formatTemperature(getActivity(), hourly.getTemperature(i))));
+        }
+        mHourlyView.setText(points);
+        mHourlyView.setContentDescription(getString(R.string.a11y_hourly, points));
+        mHourlyLabelView.setContentDescription(mHourlyView.getContentDescription());
+        mHourlyView.setVisibility(View.VISIBLE);
+        mHourlyLabelView.setVisibility(View.VISIBLE);
+    }
+
     @Override
     public void onLoaderReset(Loader<Cursor> loader) { }
 }
\ No newline at end of file
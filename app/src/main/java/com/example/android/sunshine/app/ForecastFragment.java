@@ -17,11 +17,13 @@ package com.example.android.sunshine.app;
 
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.TypedArray;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
@@ -59,6 +61,8 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     private int mChoiceMode;
     private boolean mHoldForTransition;
     private long mInitialSelectedDate = -1;
+    // Whether the shown location is synced even when it isn't the preferred one any more
+    private boolean mLocationSaved;
 
     private static final String SELECTED_KEY = "selected_position";
 
@@ -80,7 +84,8 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
             WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
             WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
             WeatherContract.LocationEntry.COLUMN_COORD_LAT,
-            WeatherContract.LocationEntry.COLUMN_COORD_LONG
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+            WeatherContract.LocationEntry.COLUMN_SAVED
     };
 
     // These indices are tied to FORECAST_COLUMNS.  If FORECAST_COLUMNS changes, these
@@ -94,6 +99,7 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     static final int COL_WEATHER_CONDITION_ID = 6;
     static final int COL_COORD_LAT = 7;
     static final int COL_COORD_LONG = 8;
+    static final int COL_LOCATION_SAVED = 9;
 
     /**
      * A callback interface that all activities containing this fragment must
@@ -136,6 +142,17 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         inflater.inflate(R.menu.forecastfragment, menu);
     }
 
+    @Override
+    public void onPrepareOptionsMenu(Menu menu) {
+        MenuItem saveItem = menu.findItem(R.id.action_save_location);
+        if (saveItem != null) {
+            // Only a location with a forecast is in the database to be saved.
+            saveItem.setVisible(mForecastAdapter != null && mForecastAdapter.getItemCount() > 0);
+            saveItem.setChecked(mLocationSaved);
+        }
+        super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // Handle action bar item clicks here. The action bar will
@@ -150,6 +167,10 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
             openPreferredLocationInMap();
             return true;
         }
+        if (id == R.id.action_save_location) {
+            setLocationSaved(!item.isChecked());
+            return true;
+        }
 
         return super.onOptionsItemSelected(item);
     }
@@ -293,6 +314,25 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         }
     }
 
+    /*
+        Saves or unsaves the shown location.  The sync then keeps refreshing it after the user
+        switches to another location, or stops doing so.  The loader picks up the new flag once
+        the provider wrote it.
+     */
+    private void setLocationSaved(final boolean saved) {
+        final Context context = getActivity().getApplicationContext();
+        final String locationSetting = Utility.getPreferredLocation(context);
+        mLocationSaved = saved;
+        getActivity().supportInvalidateOptionsMenu();
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                Utility.setLocationSaved(context, locationSetting, saved);
+                return null;
+            }
+        }.execute();
+    }
+
     @Override
     public void onSaveInstanceState(Bundle outState) {
         // When tablets rotate, the currently selected list item needs to be saved.
@@ -328,6 +368,8 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
         mForecastAdapter.swapCursor(data);
         updateEmptyView();
+        mLocationSaved = data.moveToFirst() && data.getInt(COL_LOCATION_SAVED) == 1;
+        getActivity().supportInvalidateOptionsMenu();
         if ( data.getCount() == 0 ) {
             getActivity().supportStartPostponedEnterTransition();
         } else {
@@ -30,6 +30,7 @@ import android.view.View;
 import android.widget.ImageView;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.app.SunshineSyncAdapter;
+import com.example.android.sunshine.app.app.SyncGeneration;
 import com.google.android.gms.location.places.Place;
 import com.google.android.gms.location.places.ui.PlacePicker;
 import com.google.android.gms.maps.model.LatLng;
@@ -153,7 +154,8 @@ public class SettingsActivity extends PreferenceActivity
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
         if ( key.equals(getString(R.string.pref_location_key)) ) {
-            // we've changed the location
+            // we've changed the location; whatever a running sync fetched is stale now
+            SyncGeneration.advance();
             // Wipe out any potential PlacePicker latlng values so that we can use this text entry.
             SharedPreferences.Editor editor = sharedPreferences.edit();
             editor.remove(getString(R.string.pref_location_latitude));
@@ -171,8 +173,7 @@ public class SettingsActivity extends PreferenceActivity
             // units have changed. update lists of weather entries accordingly
             getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
             //send data to wearable
-            Utility.SendDataToWearableTask sendDataToWearableTask = new Utility.SendDataToWearableTask();
-            sendDataToWearableTask.execute(this);
+            SunshineSyncAdapter.sendToWearable(getApplicationContext());
 
         } else if ( key.equals(getString(R.string.pref_location_status_key)) ) {
             // our location status has changed.  Update the summary accordingly
@@ -219,6 +220,8 @@ public class SettingsActivity extends PreferenceActivity
                 editor.putFloat(getString(R.string.pref_location_longitude),
                         (float) latLong.longitude);
                 editor.commit();
+                // The address may be unchanged while the coordinates aren't.
+                SyncGeneration.advance();
 
                 // Tell the SyncAdapter that we've changed the location, so that we can update
                 // our UI with new values. We need to do this manually because we are responding
@@ -16,22 +16,22 @@
 package com.example.android.sunshine.app;
 
 import android.annotation.SuppressLint;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.preference.PreferenceManager;
 import android.text.format.Time;
 import android.util.Log;
 
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.request.FutureTarget;
+import com.example.android.sunshine.app.app.ForecastSnapshot;
 import com.example.android.sunshine.app.app.SunshineSyncAdapter;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.google.android.gms.common.ConnectionResult;
@@ -49,6 +49,7 @@ import java.util.Date;
 import java.util.Locale;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class Utility {
     // We'll default our latlong to 0. Yay, "Earth!"
@@ -59,19 +60,6 @@ public class Utility {
             "Failed to connect to GoogleApiClient (error code = %d)";
 
 
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
-    };
-
-    // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
-
     public static boolean isLocationLatLonAvailable(Context context) {
         SharedPreferences prefs
                 = PreferenceManager.getDefaultSharedPreferences(context);
@@ -639,6 +627,32 @@ public class Utility {
         spe.apply();
     }
 
+    /**
+     * Adds a location to, or removes it from, the locations every sync refreshes.  A location
+     * that isn't in the database yet is added with its setting as a placeholder city name; the
+     * next sync fills in the real one.  This function should not be called from the UI thread
+     * because it writes to the content provider.
+     *
+     * @param c Context used to get the ContentResolver
+     * @param locationSetting The location string used to request updates from the server.
+     * @param saved true to refresh the location on every sync
+     */
+    static public void setLocationSaved(Context c, String locationSetting, boolean saved) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_SAVED, saved ? 1 : 0);
+        int updated = c.getContentResolver().update(WeatherContract.LocationEntry.CONTENT_URI,
+                values,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting});
+        if (updated == 0 && saved) {
+            values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            values.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, locationSetting);
+            values.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, DEFAULT_LATLONG);
+            values.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, DEFAULT_LATLONG);
+            c.getContentResolver().insert(WeatherContract.LocationEntry.CONTENT_URI, values);
+        }
+    }
+
     public static void sendDataToWearable(Context context){
         GoogleApiClient googleApiClient = new GoogleApiClient.Builder(context)
                 .addApi(Wearable.API)
@@ -649,56 +663,54 @@ public class Utility {
         ConnectionResult connectionResult = googleApiClient.blockingConnect(
                 GOOGLE_API_CLIENT_TIMEOUT_S, TimeUnit.SECONDS);
 
-       // Context context = getContext();
-
-        String locationQuery = Utility.getPreferredLocation(context);
-
-        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
-
-        // we'll query our contentProvider, as always
-        Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-
-        if (cursor.moveToFirst()) {
-            int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-            double high = cursor.getDouble(INDEX_MAX_TEMP);
-            double low = cursor.getDouble(INDEX_MIN_TEMP);
-            String highString = Utility.formatTemperature(context, high);
-            String lowString = Utility.formatTemperature(context,low);
-
-            //checking unit preference and convert temperatures if needed
-
-
-            int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
-            Resources resources = context.getResources();
-            int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
-            String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
-
-            // On Honeycomb and higher devices, we can retrieve the size of the large icon
-            // Prior to that, we use a fixed size
-            @SuppressLint("InlinedApi")
-            int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                    ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
-                    : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
-            @SuppressLint("InlinedApi")
-            int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
-                    ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
-                    : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+        if (!connectionResult.isSuccess() || !googleApiClient.isConnected()) {
+            Log.e(LOG_TAG, String.format(GOOGLE_API_CLIENT_ERROR_MSG, connectionResult.getErrorCode()));
+            return;
+        }
 
-            // Retrieve the large icon
-            Bitmap largeIcon;
-            try {
-                largeIcon = Glide.with(context)
+        // No check for a connected watch: the DataApi holds on to the item and delivers it when
+        // one connects.
+        try {
+            // Today's weather, formatted in the units setting, as the last sync published it
+            ForecastSnapshot.Day today = ForecastSnapshot.get(context).getToday();
+
+            if (today != null) {
+                int weatherId = today.weatherId;
+                String highString = today.high;
+                String lowString = today.low;
+
+                int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
+                Resources resources = context.getResources();
+                int artResourceId = Utility.getArtResourceForWeatherCondition(weatherId);
+                String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
+
+                // On Honeycomb and higher devices, we can retrieve the size of the large icon
+                // Prior to that, we use a fixed size
+                @SuppressLint("InlinedApi")
+                int largeIconWidth = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                        ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width)
+                        : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+                @SuppressLint("InlinedApi")
+                int largeIconHeight = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                        ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
+                        : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
+
+                // Retrieve the large icon, but don't wait for a slow download forever
+                Bitmap largeIcon;
+                FutureTarget<Bitmap> largeIconTarget = Glide.with(context)
                         .load(artUrl)
                         .asBitmap()
                         .error(artResourceId)
                         .fitCenter()
-                        .into(largeIconWidth, largeIconHeight).get();
-            } catch (InterruptedException | ExecutionException e) {
-                Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
-                largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
-            }
-
-            if (connectionResult.isSuccess() && googleApiClient.isConnected()){
+                        .into(largeIconWidth, largeIconHeight);
+                try {
+                    largeIcon = largeIconTarget.get(SunshineSyncAdapter.LARGE_ICON_TIMEOUT_S,
+                            TimeUnit.SECONDS);
+                } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                    Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
+                    Glide.clear(largeIconTarget);
+                    largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
+                }
 
                 PutDataMapRequest dataMap = PutDataMapRequest.create("/weather");
 
@@ -715,7 +727,8 @@ public class Utility {
 
                 // Send the data over
                 DataApi.DataItemResult result =
-                        Wearable.DataApi.putDataItem(googleApiClient, request).await();
+                        Wearable.DataApi.putDataItem(googleApiClient, request)
+                                .await(GOOGLE_API_CLIENT_TIMEOUT_S, TimeUnit.SECONDS);
 
                 if (!result.getStatus().isSuccess()) {
                     Log.e(LOG_TAG, String.format("Error sending data using DataApi (error code = %d)",
@@ -725,13 +738,10 @@ public class Utility {
                 }else{
                     Log.e(LOG_TAG, "Sent data to datalayer successfully.");
                 }
-            } else {
-                Log.e(LOG_TAG, String.format(GOOGLE_API_CLIENT_ERROR_MSG, connectionResult.getErrorCode()));
             }
+        } finally {
             googleApiClient.disconnect();
         }
-
-        cursor.close();
     }
 
     private static Asset createAssetFromBitmap(Bitmap bitmap) {
@@ -739,13 +749,4 @@ public class Utility {
         bitmap.compress(Bitmap.CompressFormat.PNG, 100, byteStream);
         return Asset.createFromBytes(byteStream.toByteArray());
     }
-
-    public static class SendDataToWearableTask extends AsyncTask<Context,Void,Void>{
-
-        @Override
-        protected Void doInBackground(Context... params) {
-            sendDataToWearable(params[0]);
-            return null;
-        }
-    }
 }
\ No newline at end of file
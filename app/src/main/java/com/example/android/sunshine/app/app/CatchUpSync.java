@@ -0,0 +1,162 @@
+package com.example.android.sunshine.app.app;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * One extra sync once the network is back after a sync failed for lack of it, instead of
+ * waiting for the next periodic sync with stale data on screen.
+ *
+ * The catch-up is armed when a sync ends with {@link SunshineSyncAdapter#LOCATION_STATUS_SERVER_DOWN}
+ * and fires at most once: a JobScheduler job with a network constraint on Lollipop and up, a
+ * connectivity receiver that is only enabled while armed below that.  A sync that succeeds
+ * first, periodic or not, disarms it.  The first sync to end without success after the catch-up
+ * fired, whether it failed, was canceled or was turned away by the circuit breaker, doesn't arm
+ * it again; the periodic sync takes over from there.  Nothing is armed while the circuit
+ * breaker keeps syncs away from the server.
+ *
+ * The state lives in the shared preferences so it survives process restarts.
+ * {@link #onSyncFinished} uses commit to write it and should not be called from the UI thread.
+ */
+class CatchUpSync {
+    private static final String LOG_TAG = CatchUpSync.class.getSimpleName();
+
+    static final int STATE_IDLE = 0;
+    // Waiting for the network
+    static final int STATE_ARMED = 1;
+    // The catch-up sync was requested and hasn't finished yet
+    static final int STATE_FIRED = 2;
+
+    static final int JOB_ID = 4004;
+    // When the network is up but the server isn't, don't retry straight away.
+    static final long MIN_DELAY_MS = 2 * 60 * 1000; // 2 minutes
+
+    private static final String PREFS_NAME = "catch_up_sync";
+    private static final String KEY_STATE = "state";
+
+    private CatchUpSync() {
+    }
+
+    /**
+     * Arms or disarms the catch-up according to how a sync went.  Called by the sync adapter
+     * at the end of every sync, however it ended.
+     *
+     * @param status the preferred location's status, or LOCATION_STATUS_UNKNOWN if the sync
+     * ended before it had one
+     */
+    static synchronized void onSyncFinished(Context context,
+                                            @SunshineSyncAdapter.LocationStatus int status) {
+        SharedPreferences prefs = getPrefs(context);
+        int state = prefs.getInt(KEY_STATE, STATE_IDLE);
+        if (status == SunshineSyncAdapter.LOCATION_STATUS_OK) {
+            if (state != STATE_IDLE) {
+                disarm(context);
+                setState(prefs, STATE_IDLE);
+            }
+        } else if (state == STATE_FIRED) {
+            // That was the one extra fetch.
+            Log.d(LOG_TAG, "Catch-up sync didn't succeed, leaving it to the periodic sync");
+            setState(prefs, STATE_IDLE);
+        } else if (status == SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN
+                && state == STATE_IDLE
+                && SyncCircuitBreaker.getInstance(context).getOpenUntil() == 0) {
+            Log.d(LOG_TAG, "Sync failed, catching up once the network is back");
+            arm(context);
+            setState(prefs, STATE_ARMED);
+        }
+    }
+
+    /**
+     * Requests the catch-up sync.  Called on the main thread once the network is back.
+     */
+    static void fire(Context context) {
+        if (onNetworkBack(context)) {
+            SunshineSyncAdapter.syncImmediately(context);
+        }
+    }
+
+    /**
+     * Disarms the catch-up and marks it fired.  The state is written with apply, since this
+     * runs on the main thread.
+     *
+     * @return true if it was armed, so the catch-up sync has to be requested
+     */
+    static synchronized boolean onNetworkBack(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        disarm(context);
+        if (prefs.getInt(KEY_STATE, STATE_IDLE) != STATE_ARMED) {
+            // A sync caught up first.
+            return false;
+        }
+        Log.d(LOG_TAG, "Network is back, catching up");
+        prefs.edit().putInt(KEY_STATE, STATE_FIRED).apply();
+        return true;
+    }
+
+    static int getState(Context context) {
+        return getPrefs(context).getInt(KEY_STATE, STATE_IDLE);
+    }
+
+    private static void arm(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            scheduleJob(context);
+        } else {
+            setReceiverEnabled(context, true);
+        }
+    }
+
+    private static void disarm(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            cancelJob(context);
+        } else {
+            setReceiverEnabled(context, false);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void scheduleJob(Context context) {
+        JobScheduler jobScheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        JobInfo job = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, CatchUpSyncJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setMinimumLatency(MIN_DELAY_MS)
+                .build();
+        // Replaces the job if it is scheduled already, so there is never more than one.
+        jobScheduler.schedule(job);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void cancelJob(Context context) {
+        JobScheduler jobScheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        jobScheduler.cancel(JOB_ID);
+    }
+
+    /*
+        The receiver is disabled in the manifest, so connectivity changes only wake us up while
+        a catch-up is armed.
+     */
+    private static void setReceiverEnabled(Context context, boolean enabled) {
+        context.getPackageManager().setComponentEnabledSetting(
+                new ComponentName(context, CatchUpSyncReceiver.class),
+                enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                        : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                PackageManager.DONT_KILL_APP);
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static void setState(SharedPreferences prefs, int state) {
+        prefs.edit().putInt(KEY_STATE, state).commit();
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.android.sunshine.app.app;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Build;
+
+/**
+ * Fires the {@link CatchUpSync} once JobScheduler sees a network, on Lollipop and up.  The sync
+ * itself runs in the sync adapter, so the job is done as soon as it has been requested.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class CatchUpSyncJobService extends JobService {
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        CatchUpSync.fire(getApplicationContext());
+        return false;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return false;
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.android.sunshine.app.app;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/**
+ * Fires the {@link CatchUpSync} once a network connects, before Lollipop.  Only enabled while
+ * a catch-up is armed.
+ */
+public class CatchUpSyncReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        if (activeNetwork != null && activeNetwork.isConnected()) {
+            CatchUpSync.fire(context.getApplicationContext());
+        }
+    }
+}
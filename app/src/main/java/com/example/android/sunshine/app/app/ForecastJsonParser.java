@@ -0,0 +1,321 @@
+package com.example.android.sunshine.app.app;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+
+/**
+ * Parses the OpenWeatherMap daily forecast response.
+ *
+ * On Honeycomb and higher the response is streamed with a {@link JsonReader} and every day is
+ * handed to the {@link Callback} as soon as it has been read, so we never hold the raw response
+ * String or a full JSONObject tree in memory.  Older devices fall back to the JSONObject parser.
+ */
+class ForecastJsonParser {
+
+    // These are the names of the JSON objects that need to be extracted.
+
+    // Location information
+    static final String OWM_CITY = "city";
+    static final String OWM_CITY_NAME = "name";
+    static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    static final String OWM_LATITUDE = "lat";
+    static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    static final String OWM_LIST = "list";
+
+    static final String OWM_PRESSURE = "pressure";
+    static final String OWM_HUMIDITY = "humidity";
+    static final String OWM_WINDSPEED = "speed";
+    static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    static final String OWM_TEMPERATURE = "temp";
+    static final String OWM_MAX = "max";
+    static final String OWM_MIN = "min";
+
+    static final String OWM_WEATHER = "weather";
+    static final String OWM_DESCRIPTION = "main";
+    static final String OWM_WEATHER_ID = "id";
+
+    static final String OWM_MESSAGE_CODE = "cod";
+
+    // Every one of these has to be present for a day to be stored.
+    private static final String[] REQUIRED_DAY_COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID
+    };
+
+    /**
+     * Receives the parsed forecast while the response is still being read.
+     */
+    interface Callback {
+        void onCity(String cityName, double lat, double lon);
+
+        /**
+         * @param dayIndex position of the day in the response, 0 being today
+         * @param weatherValues the parsed values, without location key and date
+         */
+        void onDay(int dayIndex, ContentValues weatherValues);
+    }
+
+    private ForecastJsonParser() {
+    }
+
+    /**
+     * Parses the forecast from the given stream.  The stream is consumed but not closed.
+     *
+     * @return the message code ("cod") sent by OWM, or HTTP_OK if there was none.  When this is
+     * not HTTP_OK the callback may not have received the city or any days.
+     */
+    static int parse(InputStream in, Callback callback) throws IOException, JSONException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return parseStreaming(in, callback);
+        }
+        return parseTree(in, callback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static int parseStreaming(InputStream in, Callback callback) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        int messageCode = HttpURLConnection.HTTP_OK;
+        boolean sawCity = false;
+        boolean sawList = false;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    messageCode = reader.nextInt();
+                    if (messageCode != HttpURLConnection.HTTP_OK) {
+                        // The rest of the response is only an error message.
+                        return messageCode;
+                    }
+                } else if (OWM_CITY.equals(name)) {
+                    readCity(reader, callback);
+                    sawCity = true;
+                } else if (OWM_LIST.equals(name)) {
+                    readDays(reader, callback);
+                    sawList = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        }
+
+        if (!sawCity) {
+            throw new JSONException("No value for " + OWM_CITY);
+        }
+        if (!sawList) {
+            throw new JSONException("No value for " + OWM_LIST);
+        }
+        return messageCode;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readCity(JsonReader reader, Callback callback)
+            throws IOException, JSONException {
+        String cityName = null;
+        double lat = Double.NaN;
+        double lon = Double.NaN;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        lat = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        lon = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (cityName == null || Double.isNaN(lat) || Double.isNaN(lon)) {
+            throw new JSONException("Incomplete " + OWM_CITY + " object");
+        }
+        callback.onCity(cityName, lat, lon);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readDays(JsonReader reader, Callback callback)
+            throws IOException, JSONException {
+        int dayIndex = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            ContentValues weatherValues = new ContentValues();
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_PRESSURE.equals(name)) {
+                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, reader.nextDouble());
+                } else if (OWM_HUMIDITY.equals(name)) {
+                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, reader.nextInt());
+                } else if (OWM_WINDSPEED.equals(name)) {
+                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, reader.nextDouble());
+                } else if (OWM_WIND_DIRECTION.equals(name)) {
+                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, reader.nextDouble());
+                } else if (OWM_TEMPERATURE.equals(name)) {
+                    // Temperatures are in a child object called "temp".  Try not to name variables
+                    // "temp" when working with temperature.  It confuses everybody.
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String temperatureName = reader.nextName();
+                        if (OWM_MAX.equals(temperatureName)) {
+                            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, reader.nextDouble());
+                        } else if (OWM_MIN.equals(temperatureName)) {
+                            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, reader.nextDouble());
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else if (OWM_WEATHER.equals(name)) {
+                    // Description is in a child array called "weather", which is 1 element long.
+                    // That element also contains a weather code.
+                    reader.beginArray();
+                    if (reader.hasNext()) {
+                        readWeatherObject(reader, weatherValues);
+                    }
+                    while (reader.hasNext()) {
+                        reader.skipValue();
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            checkRequiredColumns(weatherValues, dayIndex);
+            callback.onDay(dayIndex++, weatherValues);
+        }
+        reader.endArray();
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readWeatherObject(JsonReader reader, ContentValues weatherValues)
+            throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_DESCRIPTION.equals(name)) {
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, reader.nextString());
+            } else if (OWM_WEATHER_ID.equals(name)) {
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, reader.nextInt());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void checkRequiredColumns(ContentValues weatherValues, int dayIndex)
+            throws JSONException {
+        for (String column : REQUIRED_DAY_COLUMNS) {
+            if (!weatherValues.containsKey(column)) {
+                throw new JSONException("Day " + dayIndex + " has no value for " + column);
+            }
+        }
+    }
+
+    /**
+     * The original parser: reads the whole response into a String and builds a JSONObject tree
+     * before handing out any days.  Only used where JsonReader isn't available.
+     */
+    static int parseTree(InputStream in, Callback callback) throws IOException, JSONException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        StringBuilder buffer = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line).append('\n');
+        }
+        if (buffer.length() == 0) {
+            // Stream was empty.  No point in parsing.
+            throw new EOFException("Empty forecast response");
+        }
+
+        JSONObject forecastJson = new JSONObject(buffer.toString());
+
+        // do we have an error?
+        if (forecastJson.has(OWM_MESSAGE_CODE)) {
+            int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
+            if (errorCode != HttpURLConnection.HTTP_OK) {
+                return errorCode;
+            }
+        }
+
+        JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+
+        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
+        callback.onCity(cityJson.getString(OWM_CITY_NAME),
+                cityCoord.getDouble(OWM_LATITUDE), cityCoord.getDouble(OWM_LONGITUDE));
+
+        for (int i = 0; i < weatherArray.length(); i++) {
+            // Get the JSON object representing the day
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            JSONObject weatherObject =
+                    dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+            JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
+
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, dayForecast.getInt(OWM_HUMIDITY));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, dayForecast.getDouble(OWM_PRESSURE));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, dayForecast.getDouble(OWM_WINDSPEED));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, dayForecast.getDouble(OWM_WIND_DIRECTION));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, temperatureObject.getDouble(OWM_MAX));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, temperatureObject.getDouble(OWM_MIN));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, weatherObject.getString(OWM_DESCRIPTION));
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherObject.getInt(OWM_WEATHER_ID));
+
+            callback.onDay(i, weatherValues);
+        }
+        return HttpURLConnection.HTTP_OK;
+    }
+}
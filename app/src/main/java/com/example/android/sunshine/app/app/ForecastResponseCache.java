@@ -0,0 +1,303 @@
+package com.example.android.sunshine.app.app;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A small disk cache of raw forecast responses, keyed by the request URI.
+ *
+ * Syncs are requested from several places (account creation, a location change, resuming the
+ * app) and often back to back.  A response younger than {@link #TTL_MILLIS} is replayed from
+ * disk instead of going to the network.  The cache keeps at most {@link #MAX_ENTRIES} entries
+ * and {@link #MAX_BYTES} bytes, evicting the least recently used entries first.
+ *
+ * A forecast body doesn't carry its dates; the parser dates the days from the local day the
+ * sync runs on.  An entry is therefore only replayed on the local julian day it was written
+ * for, even if it is younger than the TTL, so a response fetched before midnight isn't stored
+ * again a day off.
+ *
+ * Each entry file starts with the time it was written and that julian day; the file's
+ * modification time is bumped on every hit and is what the LRU order is based on.
+ */
+class ForecastResponseCache {
+    private static final String LOG_TAG = ForecastResponseCache.class.getSimpleName();
+
+    static final long TTL_MILLIS = 10 * 60 * 1000; // 10 minutes
+    static final int MAX_ENTRIES = 32;
+    static final long MAX_BYTES = 1024 * 1024;
+
+    private static final String CACHE_DIR = "forecast_responses";
+    private static final String TEMP_PREFIX = "tmp";
+
+    private static ForecastResponseCache sInstance;
+
+    private final File mDirectory;
+
+    ForecastResponseCache(File directory) {
+        mDirectory = directory;
+    }
+
+    static synchronized ForecastResponseCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ForecastResponseCache(
+                    new File(context.getApplicationContext().getCacheDir(), CACHE_DIR));
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param julianDay the local julian day the caller dates the forecast from
+     * @return the cached body for the given request if it is younger than the TTL and was
+     * written for the same julian day, or null.  The caller must close the stream.
+     */
+    synchronized InputStream get(String requestUri, int julianDay) {
+        File entry = getEntryFile(requestUri);
+        if (!entry.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)));
+            long writtenAt = in.readLong();
+            int writtenFor = in.readInt();
+            long age = now() - writtenAt;
+            if (age < 0 || age >= TTL_MILLIS || writtenFor != julianDay) {
+                in.close();
+                entry.delete();
+                return null;
+            }
+            // Most recently used now
+            entry.setLastModified(now());
+            return in;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error reading cached response", e);
+            closeQuietly(in);
+            entry.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Starts caching the body of a response while it is being read.  Nothing becomes visible to
+     * {@link #get} until {@link Writer#commit()} is called.
+     *
+     * @param julianDay the local julian day the caller dates the forecast from
+     */
+    Writer startWrite(String requestUri, int julianDay, InputStream body) throws IOException {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        File temp = File.createTempFile(TEMP_PREFIX, null, mDirectory);
+        return new Writer(getEntryFile(requestUri), temp, julianDay, body);
+    }
+
+    private File getEntryFile(String requestUri) {
+        return new File(mDirectory, keyFor(requestUri));
+    }
+
+    private static String keyFor(String requestUri) {
+        try {
+            byte[] hash = MessageDigest.getInstance("MD5").digest(requestUri.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(requestUri.hashCode());
+        } catch (IOException e) {
+            return Integer.toHexString(requestUri.hashCode());
+        }
+    }
+
+    private synchronized void install(File temp, File entry) {
+        entry.delete();
+        if (!temp.renameTo(entry)) {
+            temp.delete();
+            return;
+        }
+        entry.setLastModified(now());
+        trim();
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache is within its bounds.
+     */
+    private void trim() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        int entries = 0;
+        long bytes = 0;
+        for (File file : files) {
+            if (!file.getName().startsWith(TEMP_PREFIX)) {
+                entries++;
+                bytes += file.length();
+            }
+        }
+        for (int i = 0; i < files.length && (entries > MAX_ENTRIES || bytes > MAX_BYTES); i++) {
+            File file = files[i];
+            if (file.getName().startsWith(TEMP_PREFIX)) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                entries--;
+                bytes -= length;
+            }
+        }
+    }
+
+    /**
+     * Drops every committed entry.  Writes in progress are left alone.
+     */
+    synchronized void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.getName().startsWith(TEMP_PREFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the current time in milliseconds since the epoch; tests move it along.
+     */
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Copies everything read from a response body into a temporary file.
+     */
+    class Writer {
+        private final File mEntry;
+        private final File mTemp;
+        private final InputStream mTee;
+        private OutputStream mOut;
+
+        Writer(File entry, File temp, int julianDay, InputStream body) throws IOException {
+            mEntry = entry;
+            mTemp = temp;
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+            out.writeLong(now());
+            out.writeInt(julianDay);
+            mOut = out;
+            mTee = new FilterInputStream(body) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    int read = super.read(buffer, offset, count);
+                    if (read > 0) {
+                        write(buffer, offset, read);
+                    }
+                    return read;
+                }
+
+                @Override
+                public long skip(long byteCount) throws IOException {
+                    // Skipped bytes still have to end up in the cache.
+                    byte[] buffer = new byte[(int) Math.min(byteCount, 1024)];
+                    int read = read(buffer, 0, buffer.length);
+                    return read < 0 ? 0 : read;
+                }
+            };
+        }
+
+        /**
+         * @return the body to read from instead of the response body.
+         */
+        InputStream getInputStream() {
+            return mTee;
+        }
+
+        private void write(byte[] buffer, int offset, int count) {
+            if (mOut == null) {
+                return;
+            }
+            try {
+                mOut.write(buffer, offset, count);
+            } catch (IOException e) {
+                // Caching is best effort; the sync goes on without it.
+                Log.e(LOG_TAG, "Error writing cached response", e);
+                abort();
+            }
+        }
+
+        /**
+         * Reads whatever the parser left of the body and makes the entry visible.
+         */
+        void commit() throws IOException {
+            if (mOut == null) {
+                return;
+            }
+            byte[] buffer = new byte[1024];
+            while (mTee.read(buffer) != -1) {
+                // the tee does the copying
+            }
+            if (mOut == null) {
+                // Writing to the cache failed on the way.
+                return;
+            }
+            mOut.close();
+            mOut = null;
+            install(mTemp, mEntry);
+        }
+
+        /**
+         * Throws away what was copied so far.
+         */
+        void abort() {
+            closeQuietly(mOut);
+            mOut = null;
+            mTemp.delete();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.android.sunshine.app.app;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherProvider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The forecast of the preferred location from today on, formatted for display in the units
+ * setting, as the widgets, Muzei, the notification and the wearable show it.
+ *
+ * The sync publishes a new snapshot after every commit that changed the preferred location's
+ * forecast, before it tells those consumers, so they all read the same one instead of each
+ * querying the provider and formatting today's row again.  A snapshot is only handed out while
+ * it matches the location, the units and the local day, and nothing has written to the weather
+ * since it was built; otherwise {@link #get} builds a fresh one.  Snapshots are immutable and
+ * safe to share between threads.
+ */
+public class ForecastSnapshot {
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherContract.WeatherEntry.TABLE_NAME + "." + WeatherContract.WeatherEntry._ID,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP
+    };
+    // these indices must match the projection
+    private static final int INDEX_ID = 0;
+    private static final int INDEX_DATE = 1;
+    private static final int INDEX_WEATHER_ID = 2;
+    private static final int INDEX_SHORT_DESC = 3;
+    private static final int INDEX_MAX_TEMP = 4;
+    private static final int INDEX_MIN_TEMP = 5;
+
+    private static volatile ForecastSnapshot sCurrent;
+
+    /**
+     * One day of the forecast, ready to show.
+     */
+    public static class Day {
+        public final long id;
+        public final long date;
+        public final int weatherId;
+        public final String description;
+        // Formatted in the units setting
+        public final String high;
+        public final String low;
+        // "Today", "Tomorrow", a day name or a date
+        public final String friendlyDate;
+
+        Day(long id, long date, int weatherId, String description, String high, String low,
+            String friendlyDate) {
+            this.id = id;
+            this.date = date;
+            this.weatherId = weatherId;
+            this.description = description;
+            this.high = high;
+            this.low = low;
+            this.friendlyDate = friendlyDate;
+        }
+    }
+
+    public final String locationSetting;
+    private final boolean mMetric;
+    private final int mJulianDay;
+    // WeatherProvider.getWeatherVersion() from before the days were queried
+    private final long mWeatherVersion;
+    private final List<Day> mDays;
+
+    private ForecastSnapshot(String locationSetting, boolean metric, int julianDay,
+                             long weatherVersion, List<Day> days) {
+        this.locationSetting = locationSetting;
+        mMetric = metric;
+        mJulianDay = julianDay;
+        mWeatherVersion = weatherVersion;
+        mDays = Collections.unmodifiableList(days);
+    }
+
+    /**
+     * @return the days from today on, in date order; empty if nothing is stored.
+     */
+    public List<Day> getDays() {
+        return mDays;
+    }
+
+    /**
+     * @return the first day of the forecast, normally today, or null if nothing is stored.
+     */
+    public Day getToday() {
+        return mDays.isEmpty() ? null : mDays.get(0);
+    }
+
+    /**
+     * @return the snapshot for the current location and units.  Queries the provider if the
+     * published one doesn't match, so don't call it from the UI thread.
+     */
+    public static ForecastSnapshot get(Context context) {
+        String locationSetting = Utility.getPreferredLocation(context);
+        boolean metric = Utility.isMetric(context);
+        int julianDay = getLocalJulianDay();
+        ForecastSnapshot current = sCurrent;
+        if (current != null && current.locationSetting.equals(locationSetting)
+                && current.mMetric == metric && current.mJulianDay == julianDay
+                && current.mWeatherVersion == WeatherProvider.getWeatherVersion()) {
+            return current;
+        }
+        current = build(context, locationSetting, metric, julianDay);
+        sCurrent = current;
+        return current;
+    }
+
+    /**
+     * Builds the snapshot from what is stored now and hands it to everyone who asks from here
+     * on.  Called by the sync once its forecasts are committed.
+     */
+    static ForecastSnapshot publish(Context context) {
+        ForecastSnapshot snapshot = build(context, Utility.getPreferredLocation(context),
+                Utility.isMetric(context), getLocalJulianDay());
+        sCurrent = snapshot;
+        return snapshot;
+    }
+
+    private static ForecastSnapshot build(Context context, String locationSetting,
+                                          boolean metric, int julianDay) {
+        // Read first, so a write that lands while the query runs leaves this snapshot stale.
+        long weatherVersion = WeatherProvider.getWeatherVersion();
+        ArrayList<Day> days = new ArrayList<Day>();
+        Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                locationSetting, System.currentTimeMillis());
+        Cursor cursor = context.getContentResolver().query(weatherForLocationUri,
+                FORECAST_COLUMNS, null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    long date = cursor.getLong(INDEX_DATE);
+                    days.add(new Day(cursor.getLong(INDEX_ID),
+                            date,
+                            cursor.getInt(INDEX_WEATHER_ID),
+                            cursor.getString(INDEX_SHORT_DESC),
+                            Utility.formatTemperature(context, cursor.getDouble(INDEX_MAX_TEMP)),
+                            Utility.formatTemperature(context, cursor.getDouble(INDEX_MIN_TEMP)),
+                            Utility.getFriendlyDayString(context, date, false)));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return new ForecastSnapshot(locationSetting, metric, julianDay, weatherVersion, days);
+    }
+
+    // Friendly dates change at midnight, so a snapshot only lasts for the day it was built on.
+    private static int getLocalJulianDay() {
+        Time localTime = new Time();
+        localTime.setToNow();
+        return Time.getJulianDay(System.currentTimeMillis(), localTime.gmtoff);
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.android.sunshine.app.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers, per location setting, the HTTP validators (ETag / Last-Modified) and a digest of the
+ * last forecast body we stored.  The sync uses them to ask the server for the forecast only if it
+ * changed, and to skip the database writes and fan-out when the body turns out to be identical.
+ *
+ * Validators are tied to the local day they were stored on: the same body means different dates
+ * once the day rolls over, so they are ignored on any other day.
+ */
+class ForecastValidators {
+    private static final String PREFS_NAME = "forecast_validators";
+
+    private static final String KEY_ETAG = "etag:";
+    private static final String KEY_LAST_MODIFIED = "last_modified:";
+    private static final String KEY_DIGEST = "digest:";
+    private static final String KEY_DAY = "day:";
+    private static final String KEY_SHORT_CIRCUITED = "short_circuited_syncs";
+
+    private final SharedPreferences mPrefs;
+    private final String mLocationSetting;
+    private final int mJulianDay;
+    private final boolean mSameDay;
+
+    private ForecastValidators(Context context, String locationSetting, int julianDay) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mLocationSetting = locationSetting;
+        mJulianDay = julianDay;
+        mSameDay = mPrefs.getInt(KEY_DAY + locationSetting, -1) == julianDay;
+    }
+
+    /**
+     * @param locationSetting The location string used to request updates from the server, or
+     *                        the key of a geohash cell, see
+     *                        {@link SunshineSyncAdapter.SyncTarget#getValidatorsKey()}.
+     * @param julianDay The local julian day the forecast is being synced for.
+     */
+    static ForecastValidators load(Context context, String locationSetting, int julianDay) {
+        return new ForecastValidators(context, locationSetting, julianDay);
+    }
+
+    /**
+     * @return true if validators were stored for this location today.
+     */
+    boolean isCurrent() {
+        return mSameDay;
+    }
+
+    String getETag() {
+        return mSameDay ? mPrefs.getString(KEY_ETAG + mLocationSetting, null) : null;
+    }
+
+    String getLastModified() {
+        return mSameDay ? mPrefs.getString(KEY_LAST_MODIFIED + mLocationSetting, null) : null;
+    }
+
+    /**
+     * @return the digest of the forecast we stored today, or null.
+     */
+    String getDigest() {
+        return mSameDay ? mPrefs.getString(KEY_DIGEST + mLocationSetting, null) : null;
+    }
+
+    /**
+     * @return true if the given digest is the one of the forecast we stored today.
+     */
+    boolean matchesDigest(String digest) {
+        return mSameDay && digest != null
+                && digest.equals(mPrefs.getString(KEY_DIGEST + mLocationSetting, null));
+    }
+
+    /**
+     * Stores the validators of a forecast that was just written to the database.  This function
+     * should not be called from the UI thread because it uses commit to write to the shared
+     * preferences.
+     */
+    void save(String eTag, String lastModified, String digest) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        putOrRemove(editor, KEY_ETAG + mLocationSetting, eTag);
+        putOrRemove(editor, KEY_LAST_MODIFIED + mLocationSetting, lastModified);
+        putOrRemove(editor, KEY_DIGEST + mLocationSetting, digest);
+        editor.putInt(KEY_DAY + mLocationSetting, mJulianDay);
+        editor.commit();
+    }
+
+    private static void putOrRemove(SharedPreferences.Editor editor, String key, String value) {
+        if (value == null) {
+            editor.remove(key);
+        } else {
+            editor.putString(key, value);
+        }
+    }
+
+    /**
+     * Counts a sync that was answered from the validators and did no downstream work.
+     *
+     * @return the number of short-circuited syncs so far
+     */
+    static long incrementShortCircuitCount(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        long count = prefs.getLong(KEY_SHORT_CIRCUITED, 0) + 1;
+        prefs.edit().putLong(KEY_SHORT_CIRCUITED, count).apply();
+        return count;
+    }
+
+    static long getShortCircuitCount(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getLong(KEY_SHORT_CIRCUITED, 0);
+    }
+}
@@ -0,0 +1,215 @@
+package com.example.android.sunshine.app.app;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+
+/**
+ * Parses the OpenWeatherMap 3-hourly forecast response.  Like {@link ForecastJsonParser} it
+ * streams the response where JsonReader is available and hands every point to the
+ * {@link Callback} as soon as it has been read.
+ */
+class HourlyJsonParser {
+
+    // Every point is an element of the "list" array.
+    static final String OWM_TIME = "dt";
+
+    // Temperature, pressure and humidity are children of the "main" object.
+    static final String OWM_MAIN = "main";
+    static final String OWM_TEMPERATURE = "temp";
+
+    // Wind speed and direction are children of the "wind" object.
+    static final String OWM_WIND = "wind";
+
+    /**
+     * Receives the parsed points while the response is still being read.
+     */
+    interface Callback {
+        /**
+         * @param time the time of the point, in milliseconds since the epoch
+         */
+        void onPoint(long time, double temperature, int weatherId, int humidity,
+                     double pressure, double windSpeed, double degrees);
+    }
+
+    private HourlyJsonParser() {
+    }
+
+    /**
+     * Parses the forecast from the given stream.  The stream is consumed but not closed.
+     *
+     * @return the message code ("cod") sent by OWM, or HTTP_OK if there was none.
+     */
+    static int parse(InputStream in, Callback callback) throws IOException, JSONException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return parseStreaming(in, callback);
+        }
+        return parseTree(in, callback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static int parseStreaming(InputStream in, Callback callback) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        int messageCode = HttpURLConnection.HTTP_OK;
+        boolean sawList = false;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (ForecastJsonParser.OWM_MESSAGE_CODE.equals(name)) {
+                    messageCode = reader.nextInt();
+                    if (messageCode != HttpURLConnection.HTTP_OK) {
+                        return messageCode;
+                    }
+                } else if (ForecastJsonParser.OWM_LIST.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        readPoint(reader, callback);
+                    }
+                    reader.endArray();
+                    sawList = true;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        }
+
+        if (!sawList) {
+            throw new JSONException("No value for " + ForecastJsonParser.OWM_LIST);
+        }
+        return messageCode;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readPoint(JsonReader reader, Callback callback)
+            throws IOException, JSONException {
+        long time = -1;
+        double temperature = Double.NaN;
+        double pressure = Double.NaN;
+        int humidity = -1;
+        int weatherId = -1;
+        double windSpeed = 0;
+        double degrees = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_TIME.equals(name)) {
+                time = reader.nextLong() * 1000;
+            } else if (OWM_MAIN.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String mainName = reader.nextName();
+                    if (OWM_TEMPERATURE.equals(mainName)) {
+                        temperature = reader.nextDouble();
+                    } else if (ForecastJsonParser.OWM_PRESSURE.equals(mainName)) {
+                        pressure = reader.nextDouble();
+                    } else if (ForecastJsonParser.OWM_HUMIDITY.equals(mainName)) {
+                        humidity = reader.nextInt();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WIND.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String windName = reader.nextName();
+                    if (ForecastJsonParser.OWM_WINDSPEED.equals(windName)) {
+                        windSpeed = reader.nextDouble();
+                    } else if (ForecastJsonParser.OWM_WIND_DIRECTION.equals(windName)) {
+                        degrees = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (ForecastJsonParser.OWM_WEATHER.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (weatherId == -1 && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            if (ForecastJsonParser.OWM_WEATHER_ID.equals(reader.nextName())) {
+                                weatherId = reader.nextInt();
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (time < 0 || Double.isNaN(temperature) || Double.isNaN(pressure) || humidity < 0
+                || weatherId < 0) {
+            throw new JSONException("Incomplete hourly point");
+        }
+        callback.onPoint(time, temperature, weatherId, humidity, pressure, windSpeed, degrees);
+    }
+
+    /**
+     * Reads the whole response into a JSONObject tree first.  Only used where JsonReader isn't
+     * available.
+     */
+    static int parseTree(InputStream in, Callback callback) throws IOException, JSONException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        StringBuilder buffer = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line).append('\n');
+        }
+        if (buffer.length() == 0) {
+            throw new EOFException("Empty hourly forecast response");
+        }
+
+        JSONObject forecastJson = new JSONObject(buffer.toString());
+        if (forecastJson.has(ForecastJsonParser.OWM_MESSAGE_CODE)) {
+            int errorCode = forecastJson.getInt(ForecastJsonParser.OWM_MESSAGE_CODE);
+            if (errorCode != HttpURLConnection.HTTP_OK) {
+                return errorCode;
+            }
+        }
+
+        JSONArray pointArray = forecastJson.getJSONArray(ForecastJsonParser.OWM_LIST);
+        for (int i = 0; i < pointArray.length(); i++) {
+            JSONObject point = pointArray.getJSONObject(i);
+            JSONObject main = point.getJSONObject(OWM_MAIN);
+            JSONObject wind = point.optJSONObject(OWM_WIND);
+            JSONObject weather =
+                    point.getJSONArray(ForecastJsonParser.OWM_WEATHER).getJSONObject(0);
+
+            callback.onPoint(point.getLong(OWM_TIME) * 1000,
+                    main.getDouble(OWM_TEMPERATURE),
+                    weather.getInt(ForecastJsonParser.OWM_WEATHER_ID),
+                    main.getInt(ForecastJsonParser.OWM_HUMIDITY),
+                    main.getDouble(ForecastJsonParser.OWM_PRESSURE),
+                    wind != null ? wind.optDouble(ForecastJsonParser.OWM_WINDSPEED, 0) : 0,
+                    wind != null ? wind.optDouble(ForecastJsonParser.OWM_WIND_DIRECTION, 0) : 0);
+        }
+        return HttpURLConnection.HTTP_OK;
+    }
+}
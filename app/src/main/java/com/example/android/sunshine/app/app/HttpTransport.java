@@ -0,0 +1,351 @@
+package com.example.android.sunshine.app.app;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The one place forecast fetches go through.  Every request asks for gzip, has connect and read
+ * timeouts and a cap on the decoded response size.  Connections are only disconnected when a
+ * response can't be read to the end: once it has been, including the body of an error nobody
+ * parsed, and closed, HttpURLConnection returns the socket to its keep-alive pool and the next
+ * sync can reuse it instead of setting up a new one.
+ *
+ * The transport counts bytes received on the wire against bytes handed to the parser, so we
+ * can see what compression saves.
+ */
+public class HttpTransport {
+    private static final String LOG_TAG = HttpTransport.class.getSimpleName();
+
+    static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+    static final int READ_TIMEOUT_MS = 20 * 1000;
+    // A 16 day forecast is a few KB; anything near this is not a forecast.
+    static final int MAX_RESPONSE_BYTES = 512 * 1024;
+
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    private static final String ENCODING_GZIP = "gzip";
+
+    // What is left of a response after the parser is done is usually a newline or the gzip
+    // trailer, and error bodies are short pages.  Read at most this much so the connection can
+    // be reused, otherwise drop it.
+    private static final int MAX_DRAIN_BYTES = 8 * 1024;
+
+    private static final HttpTransport sInstance = new HttpTransport();
+
+    private final AtomicLong mWireBytes = new AtomicLong();
+    private final AtomicLong mDecodedBytes = new AtomicLong();
+    private final AtomicLong mRequests = new AtomicLong();
+
+    private HttpTransport() {
+    }
+
+    public static HttpTransport getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Issues a GET request.  The caller must close the returned response.
+     *
+     * @param url the resource to fetch
+     * @param requestHeaders extra request headers, may be null
+     */
+    public Response get(URL url, Map<String, String> requestHeaders) throws IOException {
+        return get(url, requestHeaders, null);
+    }
+
+    /**
+     * Same as {@link #get(URL, Map)}, and aborts the request as soon as the given cancellation
+     * is canceled, even while connecting.
+     *
+     * @param cancellation may be null
+     */
+    public Response get(URL url, Map<String, String> requestHeaders, Cancellation cancellation)
+            throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        urlConnection.setRequestMethod("GET");
+        urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        urlConnection.setReadTimeout(READ_TIMEOUT_MS);
+        // Asking for gzip ourselves turns off the transparent decompression, which lets us see
+        // the compressed size.  We decompress in Response.getBody().
+        urlConnection.setRequestProperty(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+        if (requestHeaders != null) {
+            for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                urlConnection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        Response response = new Response(urlConnection, cancellation);
+        if (cancellation != null) {
+            cancellation.register(response);
+        }
+        mRequests.incrementAndGet();
+        try {
+            urlConnection.connect();
+        } catch (IOException e) {
+            response.close();
+            throw e;
+        }
+        return response;
+    }
+
+    public long getWireBytes() {
+        return mWireBytes.get();
+    }
+
+    public long getDecodedBytes() {
+        return mDecodedBytes.get();
+    }
+
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    /**
+     * A response from {@link #get}.  Closing it releases the connection back to the pool.
+     */
+    public class Response implements Closeable {
+        private final HttpURLConnection mConnection;
+        private final Cancellation mCancellation;
+        private InputStream mBody;
+        private volatile boolean mAborted;
+
+        Response(HttpURLConnection connection, Cancellation cancellation) {
+            mConnection = connection;
+            mCancellation = cancellation;
+        }
+
+        public int getCode() throws IOException {
+            return mConnection.getResponseCode();
+        }
+
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        /**
+         * @return the decoded response body.  Reading past {@link #MAX_RESPONSE_BYTES} throws an
+         * IOException.
+         */
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                InputStream wire = new CountingInputStream(mConnection.getInputStream(),
+                        mWireBytes, Long.MAX_VALUE);
+                if (ENCODING_GZIP.equalsIgnoreCase(mConnection.getContentEncoding())) {
+                    wire = new GZIPInputStream(wire);
+                }
+                mBody = new CountingInputStream(wire, mDecodedBytes, MAX_RESPONSE_BYTES);
+            }
+            return mBody;
+        }
+
+        /**
+         * Drops the connection.  May be called from any thread; a read blocked on the socket
+         * fails straight away.
+         */
+        void abort() {
+            mAborted = true;
+            mConnection.disconnect();
+        }
+
+        @Override
+        public void close() {
+            if (mCancellation != null) {
+                mCancellation.unregister(this);
+            }
+            if (mAborted) {
+                return;
+            }
+            if (mBody == null) {
+                releaseUnreadBody();
+                return;
+            }
+            drainAndClose(mBody);
+        }
+
+        /**
+         * Nobody read the body, e.g. of a 304 or an error.  A 304 has none; anything else is
+         * read to the end, like a body the parser left, or the connection is dropped.  Either way
+         * it doesn't sit half read on a socket that can't go back to the pool.
+         */
+        private void releaseUnreadBody() {
+            try {
+                int code = mConnection.getResponseCode();
+                if (code == HttpURLConnection.HTTP_NOT_MODIFIED
+                        || code == HttpURLConnection.HTTP_NO_CONTENT) {
+                    return;
+                }
+                // HttpURLConnection throws for the input stream of an error, and hands out the
+                // error stream only for errors; null means there is no body.
+                InputStream body = code >= HttpURLConnection.HTTP_BAD_REQUEST
+                        ? mConnection.getErrorStream() : mConnection.getInputStream();
+                if (body != null) {
+                    drainAndClose(new CountingInputStream(body, mWireBytes, Long.MAX_VALUE));
+                }
+            } catch (IOException e) {
+                mConnection.disconnect();
+            }
+        }
+
+        private void drainAndClose(InputStream body) {
+            try {
+                byte[] buffer = new byte[1024];
+                int drained = 0;
+                int read;
+                while (drained < MAX_DRAIN_BYTES && (read = body.read(buffer)) != -1) {
+                    drained += read;
+                }
+                if (drained >= MAX_DRAIN_BYTES) {
+                    // Too much left over; don't keep this connection around.
+                    mConnection.disconnect();
+                }
+            } catch (IOException e) {
+                mConnection.disconnect();
+            }
+            try {
+                body.close();
+            } catch (final IOException e) {
+                Log.e(LOG_TAG, "Error closing stream", e);
+            }
+        }
+    }
+
+    /**
+     * Lets another thread stop requests and reads in flight.  Once canceled, every registered
+     * response is aborted, so blocking socket calls fail at once, and an
+     * {@link InterruptibleInputStream} fails its next read.
+     */
+    public static class Cancellation {
+        private final Set<Response> mResponses = new HashSet<Response>();
+        private volatile boolean mCanceled;
+
+        public boolean isCanceled() {
+            return mCanceled;
+        }
+
+        public void cancel() {
+            Response[] responses;
+            synchronized (this) {
+                mCanceled = true;
+                responses = mResponses.toArray(new Response[mResponses.size()]);
+                mResponses.clear();
+            }
+            for (Response response : responses) {
+                response.abort();
+            }
+        }
+
+        private void register(Response response) throws InterruptedIOException {
+            synchronized (this) {
+                if (!mCanceled) {
+                    mResponses.add(response);
+                    return;
+                }
+            }
+            response.abort();
+            throw new InterruptedIOException("Canceled");
+        }
+
+        private synchronized void unregister(Response response) {
+            mResponses.remove(response);
+        }
+    }
+
+    /**
+     * Fails reads with an InterruptedIOException once the cancellation is canceled or the
+     * reading thread is interrupted, so a parser reading from it stops at the next read.
+     */
+    static class InterruptibleInputStream extends FilterInputStream {
+        private final Cancellation mCancellation;
+
+        InterruptibleInputStream(InputStream in, Cancellation cancellation) {
+            super(in);
+            mCancellation = cancellation;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCanceled();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            checkCanceled();
+            return super.read(buffer, offset, count);
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            checkCanceled();
+            return super.skip(byteCount);
+        }
+
+        private void checkCanceled() throws InterruptedIOException {
+            if ((mCancellation != null && mCancellation.isCanceled())
+                    || Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Canceled");
+            }
+        }
+    }
+
+    /**
+     * Adds every byte read to a counter and fails once more than the given limit was read.
+     */
+    static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong mTotal;
+        private final long mLimit;
+        private long mCount;
+
+        CountingInputStream(InputStream in, AtomicLong total, long limit) {
+            super(in);
+            mTotal = total;
+            mLimit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long skipped = super.skip(byteCount);
+            if (skipped > 0) {
+                count(skipped);
+            }
+            return skipped;
+        }
+
+        private void count(long bytes) throws IOException {
+            mCount += bytes;
+            mTotal.addAndGet(bytes);
+            if (mCount > mLimit) {
+                throw new IOException("Response exceeds " + mLimit + " bytes");
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.android.sunshine.app.app;
+
+import android.net.Uri;
+
+import com.example.android.sunshine.app.BuildConfig;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * The OpenWeatherMap daily and 3-hourly forecast APIs.  The base URL can be pointed elsewhere,
+ * e.g. at a mock server that speaks the same protocol; the hourly forecast is expected next to
+ * the daily one, without the "/daily".
+ */
+class OpenWeatherMapSource implements WeatherSource {
+    // Possible parameters are avaiable at OWM's forecast API page, at
+    // http://openweathermap.org/API#forecast
+    static final String FORECAST_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily";
+    private static final String DAILY_SUFFIX = "/daily";
+    private static final String QUERY_PARAM = "q";
+    private static final String LAT_PARAM = "lat";
+    private static final String LON_PARAM = "lon";
+    private static final String FORMAT_PARAM = "mode";
+    private static final String UNITS_PARAM = "units";
+    private static final String DAYS_PARAM = "cnt";
+    private static final String APPID_PARAM = "APPID";
+
+    private static final String FORMAT = "json";
+    private static final String UNITS = "metric";
+
+    private final String mBaseUrl;
+    private final String mHourlyBaseUrl;
+    private final String mApiKey;
+
+    OpenWeatherMapSource() {
+        this(FORECAST_BASE_URL, BuildConfig.OPEN_WEATHER_MAP_API_KEY);
+    }
+
+    OpenWeatherMapSource(String baseUrl, String apiKey) {
+        mBaseUrl = baseUrl;
+        mHourlyBaseUrl = baseUrl.endsWith(DAILY_SUFFIX)
+                ? baseUrl.substring(0, baseUrl.length() - DAILY_SUFFIX.length()) : null;
+        mApiKey = apiKey;
+    }
+
+    @Override
+    public URL buildForecastUrl(SunshineSyncAdapter.SyncTarget target, int numDays)
+            throws IOException {
+        Uri.Builder uriBuilder = newQuery(mBaseUrl, target);
+        Uri builtUri = uriBuilder.appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
+                .build();
+        return new URL(builtUri.toString());
+    }
+
+    @Override
+    public URL buildHourlyForecastUrl(SunshineSyncAdapter.SyncTarget target) throws IOException {
+        if (mHourlyBaseUrl == null) {
+            return null;
+        }
+        return new URL(newQuery(mHourlyBaseUrl, target).build().toString());
+    }
+
+    private Uri.Builder newQuery(String baseUrl, SunshineSyncAdapter.SyncTarget target) {
+        Uri.Builder uriBuilder = Uri.parse(baseUrl).buildUpon();
+
+        // Instead of always building the query based off of the location string, we want to
+        // potentially build a query using a lat/lon value. This will be the case when we are
+        // syncing based off of a new location from the Place Picker API. So we need to check
+        // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
+        // service may not understand the location address provided by the Place Picker API
+        // and the user could end up with no weather! The horror!
+        if (target.latitude != null && target.longitude != null) {
+            uriBuilder.appendQueryParameter(LAT_PARAM, target.latitude)
+                    .appendQueryParameter(LON_PARAM, target.longitude);
+        } else {
+            uriBuilder.appendQueryParameter(QUERY_PARAM, target.locationSetting);
+        }
+
+        return uriBuilder.appendQueryParameter(FORMAT_PARAM, FORMAT)
+                .appendQueryParameter(UNITS_PARAM, UNITS)
+                .appendQueryParameter(APPID_PARAM, mApiKey);
+    }
+
+    @Override
+    public int parseForecast(InputStream in, ForecastJsonParser.Callback callback)
+            throws IOException, JSONException {
+        return ForecastJsonParser.parse(in, callback);
+    }
+
+    @Override
+    public int parseHourlyForecast(InputStream in, HourlyJsonParser.Callback callback)
+            throws IOException, JSONException {
+        return HourlyJsonParser.parse(in, callback);
+    }
+}
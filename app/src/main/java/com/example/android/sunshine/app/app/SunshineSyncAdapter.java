@@ -17,6 +17,7 @@ import android.content.SyncRequest;
 import android.content.SyncResult;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
@@ -30,11 +31,15 @@ import android.text.format.Time;
 import android.util.Log;
 
 import com.bumptech.glide.Glide;
-import com.example.android.sunshine.app.BuildConfig;
+import com.bumptech.glide.request.FutureTarget;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.Geohash;
+import com.example.android.sunshine.app.data.HourlyForecast;
+import com.example.android.sunshine.app.data.LocationIdCache;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherProvider;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
@@ -44,54 +49,61 @@ import com.google.android.gms.wearable.PutDataMapRequest;
 import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.Vector;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.TimeUnit;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter  {
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
     public static final String ACTION_DATA_UPDATED =
             "com.example.android.sunshine.app.ACTION_DATA_UPDATED";
-    // Interval at which to sync with the weather, in seconds.
+    // Interval at which to sync with the weather, in seconds.  SyncScheduler adapts it from here.
     // 60 seconds (1 minute) * 180 = 3 hours
     public static final int SYNC_INTERVAL = 60 * 180;
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
+    // Upper bound on forecasts fetched at the same time when saved locations are synced
+    private static final int MAX_PARALLEL_FETCHES = 8;
+
+    // HTTP validators used to revalidate a stored forecast
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
 
     public static final int GOOGLE_API_CLIENT_TIMEOUT_S = 10; // 10 seconds
+    public static final int LARGE_ICON_TIMEOUT_S = 10; // 10 seconds
     private Context mContext;
+    private WeatherSource mWeatherSource = new OpenWeatherMapSource();
+    // Replaced at the start of every sync; canceled by onSyncCanceled()
+    private volatile HttpTransport.Cancellation mCancellation = new HttpTransport.Cancellation();
     public static final String GOOGLE_API_CLIENT_ERROR_MSG =
             "Failed to connect to GoogleApiClient (error code = %d)";
 
 
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
-    };
-
-    // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
-
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
     public @interface LocationStatus {}
@@ -108,197 +120,537 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter  {
 
     }
 
+    /**
+     * Fetches forecasts from the given source instead of OpenWeatherMap, e.g. a mock server.
+     */
+    void setWeatherSource(WeatherSource weatherSource) {
+        mWeatherSource = weatherSource;
+    }
+
+    /**
+     * Called by the sync manager, on its own thread, when this sync is canceled.  Aborting every
+     * request in flight makes blocked socket reads fail at once, so fetches and parses end within
+     * milliseconds; the sync thread is interrupted as well, which makes the provider roll back a
+     * commit that is under way.
+     */
+    @Override
+    public void onSyncCanceled() {
+        Log.d(LOG_TAG, "Sync canceled");
+        mCancellation.cancel();
+        super.onSyncCanceled();
+    }
+
+    private boolean isCanceled() {
+        return mCancellation.isCanceled() || Thread.currentThread().isInterrupted();
+    }
+
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
         Log.d(LOG_TAG, "Starting sync");
+        mCancellation = new HttpTransport.Cancellation();
+
+        SyncRequestCoordinator coordinator = SyncRequestCoordinator.getInstance();
+        coordinator.onSyncStarted(getContext());
+        SyncTimings.startAllocationCounting();
+        SyncTimings.Timer syncTimer = SyncTimings.start(SyncTimings.STAGE_SYNC);
+        @LocationStatus int locationStatus = LOCATION_STATUS_UNKNOWN;
+        try {
+            SyncCircuitBreaker circuitBreaker = SyncCircuitBreaker.getInstance(getContext());
+            if (!circuitBreaker.allowRequest()) {
+                // The server kept failing; don't even try until the backoff is over.
+                long openUntil = circuitBreaker.getOpenUntil();
+                Log.d(LOG_TAG, "Circuit open, skipping sync for "
+                        + (openUntil - System.currentTimeMillis()) / 1000 + "s");
+                syncResult.delayUntil = openUntil / 1000;
+                locationStatus = LOCATION_STATUS_SERVER_DOWN;
+                setLocationStatus(getContext(), locationStatus);
+                return;
+            }
+
+            // Tags the sync, so its results can be dropped if the location changes meanwhile.
+            SyncGeneration.Snapshot generation = SyncGeneration.snapshot(getContext());
+            List<SyncTarget> targets = getSyncTargets(getContext(), generation.locationSetting);
+            if (circuitBreaker.isProbing()) {
+                // One request tells us whether the server is back.
+                targets = targets.subList(0, 1);
+            }
+            List<FetchResult> results = fetchForecasts(targets);
+            if (isCanceled()) {
+                // Whatever was fetched is thrown away; it says nothing about the server either.
+                Log.d(LOG_TAG, "Sync canceled before commit");
+                circuitBreaker.releaseProbe();
+                return;
+            }
+            recordServerHealth(circuitBreaker, results, syncResult);
+            locationStatus = commitForecasts(results, syncResult, generation);
+        } finally {
+            syncTimer.stop();
+            SyncTimings.stopAllocationCounting();
+            // Also when the sync was skipped, canceled or threw, so a fired catch-up never
+            // stays fired.
+            CatchUpSync.onSyncFinished(getContext(), locationStatus);
+            // Everyone who asked for this sync, or joined it, learns how it went.
+            coordinator.onSyncFinished(locationStatus);
+        }
+
+        HttpTransport transport = HttpTransport.getInstance();
+        Log.d(LOG_TAG, "Transport totals: " + transport.getRequestCount() + " requests, "
+                + transport.getWireBytes() + " bytes on the wire, "
+                + transport.getDecodedBytes() + " bytes decoded");
+    }
+
+    /**
+     * A location to fetch the forecast for.  Only the preferred location may be queried by
+     * latitude and longitude, and only its result is reported as the location status.
+     */
+    static class SyncTarget {
+        final String locationSetting;
+        final boolean preferred;
+        String latitude;
+        String longitude;
+        // The geohash cell of the coordinates; the query asks for the cell's center
+        String geohash;
+
+        SyncTarget(String locationSetting, boolean preferred) {
+            this.locationSetting = locationSetting;
+            this.preferred = preferred;
+        }
+
+        /**
+         * @return the key the forecast validators are kept under.  Points in one cell share
+         * them, since they share the request.
+         */
+        String getValidatorsKey() {
+            return geohash != null ? "geohash:" + geohash : locationSetting;
+        }
+    }
+
+    /**
+     * The outcome of fetching one {@link SyncTarget}.  Fetches don't write to the database; the
+     * results are committed together once every fetch is done.
+     */
+    static class FetchResult {
+        final SyncTarget target;
+        @LocationStatus int status = LOCATION_STATUS_UNKNOWN;
+        // Set when a new forecast has to be stored
+        ForecastCollector forecast;
+        // Set when the forecast we already have is still current
+        boolean unchanged;
+        // Set when the server was asked and answered with a forecast, a 304, a 4xx or OWM's 404
+        boolean serverAnswered;
+        // Set on IOExceptions, 5xx responses, unexpected cod values and invalid JSON from the
+        // server
+        boolean serverFailed;
+        ForecastValidators validators;
+        String eTag;
+        String lastModified;
+        String digest;
+        // The hourly points of the preferred location, if they could be fetched
+        HourlyCollector hourly;
+
+        FetchResult(SyncTarget target) {
+            this.target = target;
+        }
+    }
+
+    /**
+     * @param locationQuery the preferred location
+     * @return the preferred location followed by every saved location.
+     */
+    private static List<SyncTarget> getSyncTargets(Context context, String locationQuery) {
+        ArrayList<SyncTarget> targets = new ArrayList<SyncTarget>();
 
         // We no longer need just the location String, but also potentially the latitude and
         // longitude, in case we are syncing based on a new Place Picker API result.
-        Context context = getContext();
-        String locationQuery = Utility.getPreferredLocation(context);
-        String locationLatitude = String.valueOf(Utility.getLocationLatitude(context));
-        String locationLongitude = String.valueOf(Utility.getLocationLongitude(context));
+        SyncTarget preferred = new SyncTarget(locationQuery, true);
+        if (Utility.isLocationLatLonAvailable(context)) {
+            // Ask for the center of the point's cell rather than the point itself, so a point
+            // picked a few hundred meters away makes the same request and hits the same caches.
+            preferred.geohash = Geohash.encode(Utility.getLocationLatitude(context),
+                    Utility.getLocationLongitude(context), Geohash.LOCATION_PRECISION);
+            double[] center = Geohash.decodeCenter(preferred.geohash);
+            preferred.latitude = String.valueOf(center[0]);
+            preferred.longitude = String.valueOf(center[1]);
+        }
+        targets.add(preferred);
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                WeatherContract.LocationEntry.COLUMN_SAVED + " = 1",
+                null,
+                null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                String locationSetting = cursor.getString(0);
+                if (!locationQuery.equals(locationSetting)) {
+                    targets.add(new SyncTarget(locationSetting, false));
+                }
+            }
+            cursor.close();
+        }
+        return targets;
+    }
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+    /**
+     * Fetches every target, at most {@link #MAX_PARALLEL_FETCHES} at a time, so a sync takes
+     * about as long as its slowest fetch rather than the sum of all of them.
+     */
+    private List<FetchResult> fetchForecasts(List<SyncTarget> targets) {
+        ArrayList<FetchResult> results = new ArrayList<FetchResult>(targets.size());
+        if (targets.size() == 1) {
+            // The usual case; no need for a pool.
+            results.add(fetchForecast(targets.get(0)));
+            return results;
+        }
 
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
+        ArrayList<Callable<FetchResult>> fetches =
+                new ArrayList<Callable<FetchResult>>(targets.size());
+        for (final SyncTarget target : targets) {
+            fetches.add(new Callable<FetchResult>() {
+                @Override
+                public FetchResult call() {
+                    return fetchForecast(target);
+                }
+            });
+        }
 
+        ExecutorService pool =
+                Executors.newFixedThreadPool(Math.min(targets.size(), MAX_PARALLEL_FETCHES));
         try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String LAT_PARAM = "lat";
-            final String LON_PARAM = "lon";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri.Builder uriBuilder = Uri.parse(FORECAST_BASE_URL).buildUpon();
-
-            // Instead of always building the query based off of the location string, we want to
-            // potentially build a query using a lat/lon value. This will be the case when we are
-            // syncing based off of a new location from the Place Picker API. So we need to check
-            // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
-            // service may not understand the location address provided by the Place Picker API
-            // and the user could end up with no weather! The horror!
-            if (Utility.isLocationLatLonAvailable(context)) {
-                uriBuilder.appendQueryParameter(LAT_PARAM, locationLatitude)
-                        .appendQueryParameter(LON_PARAM, locationLongitude);
-            } else {
-                uriBuilder.appendQueryParameter(QUERY_PARAM, locationQuery);
+            List<Future<FetchResult>> futures = pool.invokeAll(fetches);
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, "Error fetching " + targets.get(i).locationSetting, e);
+                    FetchResult failed = new FetchResult(targets.get(i));
+                    failed.status = LOCATION_STATUS_SERVER_INVALID;
+                    results.add(failed);
+                }
             }
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "Interrupted while fetching forecasts", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
 
-            Uri builtUri = uriBuilder.appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
+    /**
+     * Fetches and parses the forecast for one location.  Safe to call from several threads at
+     * once: everything it touches is either local or thread safe.
+     */
+    FetchResult fetchForecast(SyncTarget target) {
+        FetchResult result = fetchDailyForecast(target);
+
+        // Only the preferred location is shown in detail, so only it gets hourly points.  They
+        // are extra; a fetch that fails leaves the daily forecast alone.  The hourly forecast
+        // changes more often than the daily one, so it is fetched even when the daily forecast
+        // was unchanged, replayed or shared with another location in the cell.
+        if (target.preferred && result.status == LOCATION_STATUS_OK && !isCanceled()) {
+            result.hourly = fetchHourlyForecast(target);
+        }
+        return result;
+    }
 
-            URL url = new URL(builtUri.toString());
+    /**
+     * Fetches and parses the daily forecast for one location.
+     */
+    private FetchResult fetchDailyForecast(SyncTarget target) {
+        Context context = getContext();
+        String locationQuery = target.locationSetting;
+        FetchResult result = new FetchResult(target);
 
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
+        // This needs to be declared outside the try/catch
+        // so that it can be closed in the finally block.
+        HttpTransport.Response response = null;
+        InputStream cachedBody = null;
+        ForecastResponseCache.Writer cacheWriter = null;
 
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
+        int numDays = 14;
+
+        try {
+            URL url = mWeatherSource.buildForecastUrl(target, numDays);
+
+            ForecastCollector forecast = new ForecastCollector(numDays);
+
+            // If we already stored today's forecast for this location, only ask for it again
+            // if it changed since.
+            ForecastValidators validators = ForecastValidators.load(context,
+                    target.getValidatorsKey(), forecast.julianStartDay);
+            result.validators = validators;
+            boolean canRevalidate = validators.isCurrent() && hasStoredForecast(locationQuery);
+
+            // A new point in the cell of a location whose forecast we stored today shares that
+            // forecast, and its validators; the server has nothing newer to say about the cell.
+            if (target.geohash != null && validators.isCurrent() && !canRevalidate
+                    && loadForecastInCell(target, forecast)) {
+                Log.d(LOG_TAG, "Reusing the forecast of cell " + target.geohash + " for "
+                        + locationQuery);
+                result.status = LOCATION_STATUS_OK;
+                result.forecast = forecast;
+                result.eTag = validators.getETag();
+                result.lastModified = validators.getLastModified();
+                result.digest = validators.getDigest();
+                return result;
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
+
+            HashMap<String, String> requestHeaders = new HashMap<String, String>();
+            if (canRevalidate) {
+                String eTag = validators.getETag();
+                String lastModified = validators.getLastModified();
+                if (eTag != null) {
+                    requestHeaders.put(HEADER_IF_NONE_MATCH, eTag);
+                }
+                if (lastModified != null) {
+                    requestHeaders.put(HEADER_IF_MODIFIED_SINCE, lastModified);
+                }
             }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
+            // A response for the very same request that is only a few minutes old is replayed
+            // from disk; back to back syncs then never touch the radio.  Only on the day it was
+            // fetched though, since the days are dated from julianStartDay.
+            ForecastResponseCache responseCache = ForecastResponseCache.getInstance(context);
+            String requestUri = url.toString();
+            InputStream inputStream = responseCache.get(requestUri, forecast.julianStartDay);
+            boolean fromCache = inputStream != null;
+
+            if (fromCache) {
+                Log.d(LOG_TAG, "Replaying cached response for " + locationQuery);
+                cachedBody = inputStream;
+            } else {
+                // Create the request to OpenWeatherMap.  The transport takes care of compression,
+                // timeouts and connection reuse.
+                SyncTimings.Timer connectTimer = SyncTimings.start(SyncTimings.STAGE_CONNECT);
+                response = HttpTransport.getInstance().get(url, requestHeaders, mCancellation);
+                int responseCode = response.getCode();
+                connectTimer.stop();
+
+                if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    result.serverAnswered = true;
+                    result.unchanged = true;
+                    result.status = LOCATION_STATUS_OK;
+                    return result;
+                }
+                // Checked before the body is asked for, since HttpURLConnection throws on error
+                // codes.  A 4xx is about our request, not the server's health, so only 5xx
+                // responses count against the circuit breaker.
+                if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                        && responseCode < HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                    Log.d(LOG_TAG, "HTTP " + responseCode + " for " + locationQuery);
+                    result.serverAnswered = true;
+                    result.status = LOCATION_STATUS_INVALID;
+                    return result;
+                }
+                if (responseCode != HttpURLConnection.HTTP_OK) {
+                    Log.d(LOG_TAG, "HTTP " + responseCode + " for " + locationQuery);
+                    result.serverFailed = true;
+                    result.status = LOCATION_STATUS_SERVER_DOWN;
+                    return result;
+                }
+
+                inputStream = response.getBody();
+                try {
+                    cacheWriter = responseCache.startWrite(requestUri, forecast.julianStartDay,
+                            inputStream);
+                    inputStream = cacheWriter.getInputStream();
+                } catch (IOException e) {
+                    // Caching is best effort; read straight from the response.
+                    Log.e(LOG_TAG, "Unable to cache response", e);
+                }
+            }
+
+            // Keep a digest of the body as it streams by, so we can tell an unchanged forecast
+            // from a new one without keeping the old response around.
+            MessageDigest bodyDigest = newBodyDigest();
+            if (bodyDigest != null) {
+                inputStream = new DigestInputStream(inputStream, bodyDigest);
+            }
+            AtomicLong bodyBytes = new AtomicLong();
+            inputStream = new HttpTransport.CountingInputStream(inputStream, bodyBytes,
+                    Long.MAX_VALUE);
+            // A cancel stops the parser at its next read, cached body or not.
+            inputStream = new HttpTransport.InterruptibleInputStream(inputStream, mCancellation);
+
+            // Parse the forecast straight off the wire.  Days are collected as they are read,
+            // so we never hold the raw response or a JSON object tree in memory.
+            SyncTimings.Timer parseTimer = SyncTimings.start(fromCache
+                    ? SyncTimings.STAGE_CACHE_PARSE : SyncTimings.STAGE_DOWNLOAD_PARSE);
+            int messageCode = mWeatherSource.parseForecast(inputStream, forecast);
+            parseTimer.stop(bodyBytes.get(), forecast.days.size());
+            result.serverAnswered = !fromCache && (messageCode == HttpURLConnection.HTTP_OK
+                    || messageCode == HttpURLConnection.HTTP_NOT_FOUND);
+            result.serverFailed = !fromCache && !result.serverAnswered;
+
+            switch (messageCode) {
+                case HttpURLConnection.HTTP_OK:
+                    // Only good forecasts are worth replaying.
+                    commitToCache(cacheWriter);
+                    cacheWriter = null;
+                    result.status = LOCATION_STATUS_OK;
+                    result.digest = bodyDigest != null ? toHex(bodyDigest.digest()) : null;
+                    if (canRevalidate && validators.matchesDigest(result.digest)) {
+                        result.unchanged = true;
+                    } else {
+                        result.forecast = forecast;
+                        if (fromCache) {
+                            // A replayed body came with the validators we already have.
+                            result.eTag = validators.getETag();
+                            result.lastModified = validators.getLastModified();
+                        } else {
+                            result.eTag = response.getHeader(HEADER_ETAG);
+                            result.lastModified = response.getHeader(HEADER_LAST_MODIFIED);
+                        }
+                    }
+                    break;
+                case HttpURLConnection.HTTP_NOT_FOUND:
+                    result.status = LOCATION_STATUS_INVALID;
+                    break;
+                default:
+                    result.status = LOCATION_STATUS_SERVER_DOWN;
+                    break;
             }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
         } catch (IOException e) {
+            if (isCanceled()) {
+                // Our own doing, not the server's
+                Log.d(LOG_TAG, "Fetch of " + locationQuery + " canceled");
+                return result;
+            }
             Log.e(LOG_TAG, "Error ", e);
             // If the code didn't successfully get the weather data, there's no point in attempting
             // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+            result.status = LOCATION_STATUS_SERVER_DOWN;
+            result.serverFailed = true;
         } catch (JSONException e) {
             Log.e(LOG_TAG, e.getMessage(), e);
             e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            result.status = LOCATION_STATUS_SERVER_INVALID;
+            result.serverFailed = true;
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            if (cacheWriter != null) {
+                cacheWriter.abort();
             }
-            if (reader != null) {
+            if (cachedBody != null) {
                 try {
-                    reader.close();
+                    cachedBody.close();
                 } catch (final IOException e) {
                     Log.e(LOG_TAG, "Error closing stream", e);
                 }
             }
+            // Closing the response, rather than disconnecting, keeps the connection around for
+            // the next sync.
+            if (response != null) {
+                response.close();
+            }
         }
-        return;
+        return result;
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
+     * Fetches the hourly points for one location.
      *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * @return the points grouped by day, or null if there are none.
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
-
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
-
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
-
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
-
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
-
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
-
-        final String OWM_MESSAGE_CODE = "cod";
-
+    private HourlyCollector fetchHourlyForecast(SyncTarget target) {
+        Context context = getContext();
+        HttpTransport.Response response = null;
+        InputStream cachedBody = null;
+        ForecastResponseCache.Writer cacheWriter = null;
+        SyncTimings.Timer hourlyTimer = SyncTimings.start(SyncTimings.STAGE_HOURLY);
+        HourlyCollector hourly = new HourlyCollector();
         try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-            Context context = getContext();
+            URL url = mWeatherSource.buildHourlyForecastUrl(target);
+            if (url == null) {
+                return null;
+            }
 
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+            // Replayed like the daily forecast, so back to back syncs don't fetch it again.
+            ForecastResponseCache responseCache = ForecastResponseCache.getInstance(context);
+            int today = Time.getJulianDay(System.currentTimeMillis(), hourly.gmtOffset);
+            InputStream inputStream = responseCache.get(url.toString(), today);
+            if (inputStream != null) {
+                cachedBody = inputStream;
+            } else {
+                response = HttpTransport.getInstance().get(url, null, mCancellation);
+                if (response.getCode() != HttpURLConnection.HTTP_OK) {
+                    Log.d(LOG_TAG, "No hourly forecast for " + target.locationSetting
+                            + " (HTTP " + response.getCode() + ")");
+                    return null;
+                }
+                inputStream = response.getBody();
+                try {
+                    cacheWriter = responseCache.startWrite(url.toString(), today, inputStream);
+                    inputStream = cacheWriter.getInputStream();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Unable to cache response", e);
                 }
             }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
+            inputStream = new HttpTransport.InterruptibleInputStream(inputStream, mCancellation);
+            int messageCode = mWeatherSource.parseHourlyForecast(inputStream, hourly);
+            if (messageCode != HttpURLConnection.HTTP_OK || hourly.days.isEmpty()) {
+                return null;
+            }
+            commitToCache(cacheWriter);
+            cacheWriter = null;
+            return hourly;
+        } catch (IOException | JSONException e) {
+            Log.e(LOG_TAG, "Error fetching hourly forecast", e);
+            return null;
+        } finally {
+            hourlyTimer.stop(0, hourly.pointCount);
+            if (cacheWriter != null) {
+                cacheWriter.abort();
+            }
+            if (cachedBody != null) {
+                try {
+                    cachedBody.close();
+                } catch (final IOException e) {
+                    Log.e(LOG_TAG, "Error closing stream", e);
+                }
+            }
+            if (response != null) {
+                response.close();
+            }
+        }
+    }
 
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+    /**
+     * Makes a parsed response replayable.  Caching is best effort: a response that was parsed
+     * is good whether or not it made it to the cache, so a failure here is only logged.
+     *
+     * @param cacheWriter may be null; aborted if the commit fails
+     */
+    private void commitToCache(ForecastResponseCache.Writer cacheWriter) {
+        if (cacheWriter == null) {
+            return;
+        }
+        try {
+            cacheWriter.commit();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to cache response", e);
+            cacheWriter.abort();
+        }
+    }
 
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
+    /**
+     * Collects the days handed out by {@link ForecastJsonParser} while the response is read.
+     * Dates are assigned as the days arrive; the location key is filled in by
+     * {@link #storeForecast} once the location row is known, since OWM doesn't promise to send
+     * the city before the list.
+     */
+    static class ForecastCollector implements ForecastJsonParser.Callback {
+        final ArrayList<ContentValues> days;
+        final int julianStartDay;
+        final Time dayTime;
+        String cityName;
+        double cityLatitude;
+        double cityLongitude;
 
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
+        ForecastCollector(int expectedDays) {
+            days = new ArrayList<ContentValues>(expectedDays);
 
             // OWM returns daily forecasts based upon the local time of the city that is being
             // asked for, which means that we need to know the GMT offset to translate this data
@@ -308,97 +660,409 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter  {
             // current day, we're going to take advantage of that to get a nice
             // normalized UTC date for all of our weather.
 
-            Time dayTime = new Time();
-            dayTime.setToNow();
+            Time localTime = new Time();
+            localTime.setToNow();
 
             // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+            julianStartDay = Time.getJulianDay(System.currentTimeMillis(), localTime.gmtoff);
 
             // now we work exclusively in UTC
             dayTime = new Time();
+        }
+
+        @Override
+        public void onCity(String cityName, double lat, double lon) {
+            this.cityName = cityName;
+            cityLatitude = lat;
+            cityLongitude = lon;
+        }
+
+        @Override
+        public void onDay(int dayIndex, ContentValues weatherValues) {
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    dayTime.setJulianDay(julianStartDay + dayIndex));
+            days.add(weatherValues);
+        }
+
+        /**
+         * @return the normalized UTC date of the day before the first forecast day.
+         */
+        long getYesterday() {
+            return dayTime.setJulianDay(julianStartDay - 1);
+        }
+    }
+
+    /**
+     * Packs the points handed out by {@link HourlyJsonParser} into one blob per day.  Points are
+     * put on the day of the device's time zone they fall on, the same way the daily forecast's
+     * days are dated.
+     */
+    static class HourlyCollector implements HourlyJsonParser.Callback {
+        // In date order; OWM sends the points in time order.
+        final LinkedHashMap<Long, HourlyForecast.Builder> days =
+                new LinkedHashMap<Long, HourlyForecast.Builder>();
+        final long gmtOffset;
+        final Time dayTime;
+        int pointCount;
+
+        HourlyCollector() {
+            Time localTime = new Time();
+            localTime.setToNow();
+            gmtOffset = localTime.gmtoff;
+            dayTime = new Time();
+        }
 
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
-
-                double high;
-                double low;
-
-                String description;
-                int weatherId;
-
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
-
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
-
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
-
-                ContentValues weatherValues = new ContentValues();
-
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-
-                cVVector.add(weatherValues);
+        @Override
+        public void onPoint(long time, double temperature, int weatherId, int humidity,
+                            double pressure, double windSpeed, double degrees) {
+            long date = dayTime.setJulianDay(Time.getJulianDay(time, gmtOffset));
+            HourlyForecast.Builder day = days.get(date);
+            if (day == null) {
+                day = new HourlyForecast.Builder(date);
+                days.put(date, day);
             }
+            if (day.getCount() < HourlyForecast.MAX_POINTS) {
+                day.add(time, temperature, weatherId, humidity, pressure, windSpeed, degrees);
+                pointCount++;
+            }
+        }
 
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[]{Long.toString(dayTime.setJulianDay(julianStartDay - 1))});
-
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
-                //send data to wearable
-                Utility.SendDataToWearableTask sendDataToWearableTask = new Utility.SendDataToWearableTask();
-                sendDataToWearableTask.execute(mContext);
+        /**
+         * @return one row per day, for the given location.
+         */
+        ContentValues[] toRows(long locationId) {
+            ContentValues[] rows = new ContentValues[days.size()];
+            int i = 0;
+            for (HourlyForecast.Builder day : days.values()) {
+                ContentValues hourlyValues = new ContentValues();
+                hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, locationId);
+                hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_DATE, day.getDate());
+                hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_POINTS, day.build());
+                rows[i++] = hourlyValues;
+            }
+            return rows;
+        }
+    }
 
+    /**
+     * Tells the circuit breaker how the server did.  One good answer means the server is up,
+     * even if other locations failed; responses replayed from the cache don't count either way.
+     */
+    private void recordServerHealth(SyncCircuitBreaker circuitBreaker, List<FetchResult> results,
+                                    SyncResult syncResult) {
+        boolean answered = false;
+        boolean failed = false;
+        for (FetchResult result : results) {
+            answered |= result.serverAnswered;
+            failed |= result.serverFailed;
+        }
+        if (answered) {
+            circuitBreaker.recordSuccess();
+        } else if (failed) {
+            syncResult.stats.numIoExceptions++;
+            long openUntil = circuitBreaker.recordFailure();
+            if (openUntil > 0) {
+                syncResult.delayUntil = openUntil / 1000;
             }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
+        } else {
+            // E.g. a probe answered from the response cache; the next sync asks the server.
+            circuitBreaker.releaseProbe();
+        }
+    }
 
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+    /**
+     * Stores every new forecast in a single bulk insert, so the provider writes them in one
+     * transaction, then lets everything that shows weather know if the preferred location
+     * changed.  Nothing is written, and nobody is told, once the location changed since the
+     * sync started; the sync requested for the new location does all of that.
+     *
+     * @return the location status of the preferred location
+     */
+    private @LocationStatus int commitForecasts(List<FetchResult> results, SyncResult syncResult,
+                                                SyncGeneration.Snapshot generation) {
+        if (generation.isStale(getContext())) {
+            Log.d(LOG_TAG, "Location changed during sync, dropping results for "
+                    + generation.locationSetting);
+            return LOCATION_STATUS_UNKNOWN;
         }
+
+        ArrayList<ContentValues> rows = new ArrayList<ContentValues>();
+        ArrayList<FetchResult> stored = new ArrayList<FetchResult>();
+        long yesterday = Long.MAX_VALUE;
+        // Set when the preferred location's forecast is part of the commit
+        long preferredLocationId = -1;
+        @LocationStatus int preferredStatus = LOCATION_STATUS_UNKNOWN;
+
+        for (FetchResult result : results) {
+            if (result.target.preferred) {
+                preferredStatus = result.status;
+            }
+            if (result.unchanged) {
+                onForecastUnchanged(result.target.locationSetting, syncResult);
+            } else if (result.forecast != null) {
+                ForecastCollector forecast = result.forecast;
+                SyncTimings.Timer locationTimer = SyncTimings.start(SyncTimings.STAGE_ADD_LOCATION);
+                long locationId = addLocation(result.target.locationSetting, forecast.cityName,
+                        forecast.cityLatitude, forecast.cityLongitude, result.target.geohash);
+                locationTimer.stop();
+                for (ContentValues weatherValues : forecast.days) {
+                    weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+                }
+                rows.addAll(forecast.days);
+                if (!forecast.days.isEmpty()) {
+                    yesterday = Math.min(yesterday, forecast.getYesterday());
+                }
+                stored.add(result);
+                if (result.target.preferred) {
+                    preferredLocationId = locationId;
+                }
+            } else {
+                Log.d(LOG_TAG, "No forecast for " + result.target.locationSetting
+                        + " (status " + result.status + ")");
+            }
+        }
+
+        int inserted = 0;
+        // Set when the commit wrote days of the preferred location; only those are on screen
+        boolean preferredChanged = false;
+        // add to database
+        if ( rows.size() > 0 ) {
+            long preferredVersion = WeatherProvider.getLocationVersion(preferredLocationId);
+            ContentValues[] cvArray = new ContentValues[rows.size()];
+            rows.toArray(cvArray);
+            // The provider writes the days that changed and deletes the ones before today (so
+            // we don't build up an endless history) in one transaction, then notifies each
+            // location that changed once.
+            SyncTimings.Timer commitTimer = SyncTimings.start(SyncTimings.STAGE_COMMIT);
+            inserted = getContext().getContentResolver().bulkInsert(
+                    WeatherContract.WeatherEntry.buildSyncCommitUri(yesterday), cvArray);
+            commitTimer.stop(0, inserted);
+            preferredChanged = preferredLocationId != -1
+                    && WeatherProvider.getLocationVersion(preferredLocationId) != preferredVersion;
+            if (isCanceled()) {
+                // The provider rolled the commit back.  Leave everything else as it was too: no
+                // validators for forecasts we don't have, no status, no fan-out.
+                Log.d(LOG_TAG, "Sync canceled during commit");
+                return LOCATION_STATUS_UNKNOWN;
+            }
+        }
+
+        for (FetchResult result : results) {
+            if (result.hourly != null && !isCanceled()) {
+                storeHourlyForecast(result.target.locationSetting, result.hourly);
+            }
+        }
+
+        // Only remember the validators once the forecast they describe is stored.
+        for (FetchResult result : stored) {
+            result.validators.save(result.eTag, result.lastModified, result.digest);
+        }
+
+        // The forecasts are stored, but if the location changed while they were written they
+        // are no longer the ones on screen: no fan-out, and the status belongs to the new sync.
+        if (generation.isStale(getContext())) {
+            Log.d(LOG_TAG, "Location changed during commit, skipping updates for "
+                    + generation.locationSetting);
+            return LOCATION_STATUS_UNKNOWN;
+        }
+
+        // Widgets, Muzei, the notification and the wearable only show the preferred location.
+        // They run side by side, each within its own time budget.  The sync doesn't wait; the
+        // fan-out keeps the device awake until they are done.
+        if (preferredChanged) {
+            // Built once here; every consumer below reads it instead of querying again.
+            ForecastSnapshot.publish(getContext());
+            dispatch(SyncTimings.STAGE_WIDGETS,
+                    SyncFanOut.WIDGETS_BUDGET_MS, new Runnable() {
+                        @Override
+                        public void run() {
+                            updateWidgets();
+                        }
+                    });
+            dispatch(SyncTimings.STAGE_MUZEI,
+                    SyncFanOut.MUZEI_BUDGET_MS, new Runnable() {
+                        @Override
+                        public void run() {
+                            updateMuzei();
+                        }
+                    });
+            dispatch(SyncTimings.STAGE_NOTIFICATION,
+                    SyncFanOut.NOTIFICATION_BUDGET_MS, new Runnable() {
+                        @Override
+                        public void run() {
+                            notifyWeather();
+                        }
+                    });
+            //send data to wearable
+            dispatch(SyncTimings.STAGE_WEAR,
+                    SyncFanOut.WEAR_BUDGET_MS, new Runnable() {
+                        @Override
+                        public void run() {
+                            Utility.sendDataToWearable(mContext);
+                        }
+                    });
+        }
+        Log.d(LOG_TAG, "Sync Complete. " + results.size() + " locations, " + inserted + " of "
+                + rows.size() + " days changed");
+        setLocationStatus(getContext(), preferredStatus);
+        SyncScheduler.onSyncCompleted(getContext(), preferredStatus == LOCATION_STATUS_OK,
+                preferredChanged);
+        return preferredStatus;
+    }
+
+    /**
+     * Called when the server told us (or the body digest showed) that the forecast we already
+     * stored is still current.  Nothing downstream needs to run: no database writes, no widget,
+     * Muzei, notification or wearable updates.
+     */
+    private void onForecastUnchanged(String locationSetting, SyncResult syncResult) {
+        syncResult.stats.numSkippedEntries++;
+        long shortCircuited = ForecastValidators.incrementShortCircuitCount(getContext());
+        Log.d(LOG_TAG, "Forecast for " + locationSetting + " unchanged ("
+                + shortCircuited + " syncs short-circuited so far)");
+    }
+
+    /**
+     * Hands a consumer to the fan-out; tests record what a sync dispatched instead.
+     */
+    void dispatch(String stage, long budgetMs, Runnable consumer) {
+        SyncFanOut.dispatch(getContext(), stage, budgetMs, consumer);
+    }
+
+    /**
+     * Stores the hourly points of a location whose row exists, and drops days that are past.
+     * Runs after the daily forecasts were committed; tests change the location here.
+     */
+    void storeHourlyForecast(String locationSetting, HourlyCollector hourly) {
+        long locationId = getLocationId(locationSetting);
+        if (locationId == -1) {
+            return;
+        }
+        ContentResolver resolver = getContext().getContentResolver();
+        // Unchanged days are skipped by the provider, like the daily ones.
+        int inserted = resolver.bulkInsert(WeatherContract.HourlyEntry.CONTENT_URI,
+                hourly.toRows(locationId));
+        long today = hourly.dayTime.setJulianDay(
+                Time.getJulianDay(System.currentTimeMillis(), hourly.gmtOffset));
+        resolver.delete(WeatherContract.HourlyEntry.CONTENT_URI,
+                WeatherContract.HourlyEntry.COLUMN_DATE + " < ?",
+                new String[]{Long.toString(today)});
+        Log.d(LOG_TAG, inserted + " of " + hourly.days.size() + " hourly days changed");
+    }
+
+    /**
+     * @return the row id of the location, or -1 if it isn't stored.
+     */
+    private long getLocationId(String locationSetting) {
+        long cachedId = LocationIdCache.getInstance().getId(locationSetting);
+        if (cachedId != -1) {
+            return cachedId;
+        }
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        if (cursor == null) {
+            return -1;
+        }
+        long locationId = cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        cursor.close();
+        return locationId;
+    }
+
+    /**
+     * Fills the collector with the forecast, from today on, of another location stored in the
+     * target's geohash cell.
+     *
+     * @return false if there is no such location or it has no forecast from today on.
+     */
+    private boolean loadForecastInCell(SyncTarget target, ForecastCollector forecast) {
+        ContentResolver resolver = getContext().getContentResolver();
+        Cursor locationCursor = resolver.query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+                        WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                        WeatherContract.LocationEntry.COLUMN_COORD_LONG},
+                WeatherContract.LocationEntry.COLUMN_GEOHASH + " = ? AND "
+                        + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " != ?",
+                new String[]{target.geohash, target.locationSetting},
+                null);
+        if (locationCursor == null) {
+            return false;
+        }
+        String today = Long.toString(forecast.dayTime.setJulianDay(forecast.julianStartDay));
+        try {
+            while (locationCursor.moveToNext()) {
+                Cursor weatherCursor = resolver.query(
+                        WeatherContract.WeatherEntry.CONTENT_URI,
+                        null,
+                        WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND "
+                                + WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                        new String[]{Long.toString(locationCursor.getLong(0)), today},
+                        WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+                if (weatherCursor == null) {
+                    continue;
+                }
+                try {
+                    while (weatherCursor.moveToNext()) {
+                        ContentValues weatherValues = new ContentValues();
+                        DatabaseUtils.cursorRowToContentValues(weatherCursor, weatherValues);
+                        // Stored under the target's own location by commitForecasts
+                        weatherValues.remove(WeatherContract.WeatherEntry._ID);
+                        forecast.days.add(weatherValues);
+                    }
+                } finally {
+                    weatherCursor.close();
+                }
+                if (!forecast.days.isEmpty()) {
+                    forecast.onCity(locationCursor.getString(1), locationCursor.getDouble(2),
+                            locationCursor.getDouble(3));
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            locationCursor.close();
+        }
+    }
+
+    /**
+     * @return true if there are forecast rows from today on for the given location.  We only
+     * revalidate when there is something to keep, otherwise a wiped database would never refill.
+     */
+    private boolean hasStoredForecast(String locationSetting) {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                        locationSetting, System.currentTimeMillis()),
+                new String[]{WeatherContract.WeatherEntry.TABLE_NAME + "." + WeatherContract.WeatherEntry._ID},
+                null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        boolean hasForecast = cursor.moveToFirst();
+        cursor.close();
+        return hasForecast;
+    }
+
+    private static MessageDigest newBodyDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
     }
 
     private void updateWidgets() {
@@ -434,18 +1098,12 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter  {
 
             if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
                 // Last sync was more than 1 day ago, let's send a notification with the weather.
-                String locationQuery = Utility.getPreferredLocation(context);
-
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
+                // The snapshot the sync just published has today's weather, already formatted
+                ForecastSnapshot.Day today = ForecastSnapshot.get(context).getToday();
 
-                // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
+                if (today != null) {
+                    int weatherId = today.weatherId;
+                    String desc = today.description;
 
                     int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
                     Resources resources = context.getResources();
@@ -463,17 +1121,19 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter  {
                             ? resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
                             : resources.getDimensionPixelSize(R.dimen.notification_large_icon_default);
 
-                    // Retrieve the large icon
+                    // Retrieve the large icon, but don't wait for a slow download forever
                     Bitmap largeIcon;
+                    FutureTarget<Bitmap> largeIconTarget = Glide.with(context)
+                            .load(artUrl)
+                            .asBitmap()
+                            .error(artResourceId)
+                            .fitCenter()
+                            .into(largeIconWidth, largeIconHeight);
                     try {
-                        largeIcon = Glide.with(context)
-                                .load(artUrl)
-                                .asBitmap()
-                                .error(artResourceId)
-                                .fitCenter()
-                                .into(largeIconWidth, largeIconHeight).get();
-                    } catch (InterruptedException | ExecutionException e) {
+                        largeIcon = largeIconTarget.get(LARGE_ICON_TIMEOUT_S, TimeUnit.SECONDS);
+                    } catch (InterruptedException | ExecutionException | TimeoutException e) {
                         Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
+                        Glide.clear(largeIconTarget);
                         largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
                     }
                     String title = context.getString(R.string.app_name);
@@ -481,8 +1141,8 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter  {
                     // Define the text of the forecast.
                     String contentText = String.format(context.getString(R.string.format_notification),
                             desc,
-                            Utility.formatTemperature(context, high),
-                            Utility.formatTemperature(context, low));
+                            today.high,
+                            today.low);
 
                     // NotificationCompatBuilder is a very convenient way to build backward-compatible
                     // notifications.  Just throw in some data.
@@ -521,7 +1181,6 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter  {
                     editor.putLong(lastNotificationKey, System.currentTimeMillis());
                     editor.commit();
                 }
-                cursor.close();
             }
         }
     }
@@ -533,47 +1192,36 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter  {
      * @param cityName A human-readable city name, e.g "Mountain View"
      * @param lat the latitude of the city
      * @param lon the longitude of the city
+     * @param geohash the geohash cell the location was picked in, or null
      * @return the row ID of the added location.
      */
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
-
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
-
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
+    long addLocation(String locationSetting, String cityName, double lat, double lon,
+                     String geohash) {
+        // A location we resolved before, with the same city details, needs no trip to the
+        // provider at all.
+        long locationId = LocationIdCache.getInstance().getId(locationSetting, cityName, lat, lon,
+                geohash);
+        if (locationId != -1) {
+            return locationId;
+        }
 
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
+        // Otherwise a single upsert stores the location, or fills in what the server sent for a
+        // saved location that still has a placeholder, and hands back the row id either way.
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        if (cityName != null) {
             locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
             locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
             locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
-
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
-
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_GEOHASH, geohash);
         }
+        Uri insertedUri = getContext().getContentResolver().insert(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                locationValues
+        );
 
-        locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
+        // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
+        return ContentUris.parseId(insertedUri);
     }
 
     /**
@@ -596,10 +1244,42 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter  {
     }
 
     /**
-     * Helper method to have the sync adapter sync immediately
+     * Helper method to have the sync adapter sync immediately.  Requests made in quick
+     * succession are merged into one sync.
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
+        syncImmediately(context, null);
+    }
+
+    /**
+     * Same as {@link #syncImmediately(Context)}, and tells the listener how the sync went.
+     * @param context The context used to access the account service
+     * @param listener Called on the main thread once the sync finished, may be null
+     */
+    public static void syncImmediately(Context context, SyncRequestCoordinator.Listener listener) {
+        SyncRequestCoordinator.getInstance().requestSync(context, listener);
+    }
+
+    /**
+     * Sends today's weather to the wearable in the background, under the same time budget as
+     * the send that follows a sync.
+     */
+    public static void sendToWearable(final Context context) {
+        SyncFanOut.dispatch(context, SyncTimings.STAGE_WEAR, SyncFanOut.WEAR_BUDGET_MS,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        Utility.sendDataToWearable(context);
+                    }
+                });
+    }
+
+    /**
+     * Queues an expedited manual sync.  Only {@link SyncRequestCoordinator} should call this;
+     * everyone else goes through {@link #syncImmediately}.
+     */
+    static void requestExpeditedSync(Context context) {
         Bundle bundle = new Bundle();
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
@@ -5,6 +5,9 @@ import android.content.Intent;
 import android.os.IBinder;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 public class SunshineSyncService extends Service {
     private static final Object sSyncAdapterLock = new Object();
     private static SunshineSyncAdapter sSunshineSyncAdapter = null;
@@ -23,4 +26,15 @@ public class SunshineSyncService extends Service {
     public IBinder onBind(Intent intent) {
         return sSunshineSyncAdapter.getSyncAdapterBinder();
     }
+
+    // adb shell dumpsys activity service SunshineSyncService
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        SyncTimings.getInstance().dump(writer);
+        SyncRequestCoordinator coordinator = SyncRequestCoordinator.getInstance();
+        writer.println("Immediate syncs: " + coordinator.getRequestedCount() + " requested, "
+                + coordinator.getCoalescedCount() + " coalesced, "
+                + coordinator.getExecutedCount() + " executed");
+        writer.println("Fan-out consumers out of time: " + SyncFanOut.getTimeoutCount());
+    }
 }
\ No newline at end of file
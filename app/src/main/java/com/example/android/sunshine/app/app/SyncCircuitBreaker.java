@@ -0,0 +1,181 @@
+package com.example.android.sunshine.app.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Keeps syncs away from a forecast server that keeps failing.
+ *
+ * After {@link #FAILURE_THRESHOLD} failed syncs in a row the circuit opens and every sync
+ * returns straight away until the backoff is over.  The backoff doubles each time the circuit
+ * opens again, up to {@link #MAX_BACKOFF_MS}, and is jittered so devices that saw the same outage
+ * don't all come back at once.  Once it is over, a single probe sync is let through: if it
+ * succeeds the circuit closes, if it fails the circuit opens again with a longer backoff.  A
+ * probe that ends without telling either way, e.g. because the sync was canceled, lets the next
+ * sync probe instead.
+ *
+ * The state lives in the shared preferences so it survives between sync runs and process
+ * restarts.  This class should not be used from the UI thread because it uses commit to write to
+ * the shared preferences.
+ */
+class SyncCircuitBreaker {
+    private static final String LOG_TAG = SyncCircuitBreaker.class.getSimpleName();
+
+    static final int STATE_CLOSED = 0;
+    static final int STATE_OPEN = 1;
+    static final int STATE_HALF_OPEN = 2;
+
+    static final int FAILURE_THRESHOLD = 3;
+    static final long BASE_BACKOFF_MS = 60 * 1000; // 1 minute
+    static final long MAX_BACKOFF_MS = 2 * 60 * 60 * 1000; // 2 hours
+    // A probe that never reported back (the process died) doesn't block syncs forever.
+    static final long PROBE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    private static final String PREFS_NAME = "sync_circuit_breaker";
+    private static final String KEY_STATE = "state";
+    private static final String KEY_FAILURES = "failures";
+    private static final String KEY_OPENED = "opened";
+    private static final String KEY_OPEN_UNTIL = "open_until";
+    private static final String KEY_PROBE_STARTED = "probe_started";
+
+    private static final Random sRandom = new Random();
+    private static SyncCircuitBreaker sInstance;
+
+    private final SharedPreferences mPrefs;
+
+    SyncCircuitBreaker(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    static synchronized SyncCircuitBreaker getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SyncCircuitBreaker(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return true if a sync may go to the server now.  When the circuit was open and its
+     * backoff is over, this lets exactly one probe through; check {@link #isProbing()}.
+     */
+    synchronized boolean allowRequest() {
+        long now = now();
+        switch (mPrefs.getInt(KEY_STATE, STATE_CLOSED)) {
+            case STATE_OPEN:
+                if (now < mPrefs.getLong(KEY_OPEN_UNTIL, 0)) {
+                    return false;
+                }
+                startProbe(now);
+                return true;
+            case STATE_HALF_OPEN:
+                if (now - mPrefs.getLong(KEY_PROBE_STARTED, 0) < PROBE_TIMEOUT_MS) {
+                    // Somebody else is probing already.
+                    return false;
+                }
+                startProbe(now);
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    private void startProbe(long now) {
+        Log.d(LOG_TAG, "Backoff over, probing the server");
+        mPrefs.edit()
+                .putInt(KEY_STATE, STATE_HALF_OPEN)
+                .putLong(KEY_PROBE_STARTED, now)
+                .commit();
+    }
+
+    /**
+     * Ends the probe without a verdict, when the probing sync was canceled or never reached the
+     * server.  The circuit goes back to open with its backoff over, so the next sync probes
+     * straight away instead of waiting for {@link #PROBE_TIMEOUT_MS}.
+     */
+    synchronized void releaseProbe() {
+        if (mPrefs.getInt(KEY_STATE, STATE_CLOSED) != STATE_HALF_OPEN) {
+            return;
+        }
+        Log.d(LOG_TAG, "Probe ended without an answer");
+        mPrefs.edit()
+                .putInt(KEY_STATE, STATE_OPEN)
+                .putLong(KEY_OPEN_UNTIL, now())
+                .remove(KEY_PROBE_STARTED)
+                .commit();
+    }
+
+    /**
+     * @return true if the sync that was let through is the single probe.
+     */
+    synchronized boolean isProbing() {
+        return mPrefs.getInt(KEY_STATE, STATE_CLOSED) == STATE_HALF_OPEN;
+    }
+
+    /**
+     * @return when the circuit may let a sync through again, in milliseconds since the epoch;
+     * 0 if it is not open.
+     */
+    synchronized long getOpenUntil() {
+        return mPrefs.getInt(KEY_STATE, STATE_CLOSED) == STATE_OPEN
+                ? mPrefs.getLong(KEY_OPEN_UNTIL, 0) : 0;
+    }
+
+    synchronized void recordSuccess() {
+        if (mPrefs.getInt(KEY_STATE, STATE_CLOSED) != STATE_CLOSED) {
+            Log.d(LOG_TAG, "Server recovered, closing the circuit");
+        }
+        if (mPrefs.getInt(KEY_FAILURES, 0) == 0 && mPrefs.getInt(KEY_OPENED, 0) == 0
+                && mPrefs.getInt(KEY_STATE, STATE_CLOSED) == STATE_CLOSED) {
+            // Nothing to write; the common case.
+            return;
+        }
+        mPrefs.edit()
+                .putInt(KEY_STATE, STATE_CLOSED)
+                .putInt(KEY_FAILURES, 0)
+                .putInt(KEY_OPENED, 0)
+                .remove(KEY_OPEN_UNTIL)
+                .remove(KEY_PROBE_STARTED)
+                .commit();
+    }
+
+    /**
+     * @return when the circuit lets a sync through again, in milliseconds since the epoch; 0 if
+     * it is still closed.
+     */
+    synchronized long recordFailure() {
+        int failures = mPrefs.getInt(KEY_FAILURES, 0) + 1;
+        boolean probing = mPrefs.getInt(KEY_STATE, STATE_CLOSED) == STATE_HALF_OPEN;
+        if (!probing && failures < FAILURE_THRESHOLD) {
+            mPrefs.edit().putInt(KEY_FAILURES, failures).commit();
+            return 0;
+        }
+
+        int opened = mPrefs.getInt(KEY_OPENED, 0) + 1;
+        long backoff = BASE_BACKOFF_MS << Math.min(opened - 1, 16);
+        backoff = Math.min(backoff, MAX_BACKOFF_MS);
+        // Somewhere between half and one and a half times the backoff
+        backoff = backoff / 2 + (long) (sRandom.nextDouble() * backoff);
+        long openUntil = now() + backoff;
+
+        Log.d(LOG_TAG, "Opening the circuit for " + backoff / 1000 + "s after " + failures
+                + " failures");
+        mPrefs.edit()
+                .putInt(KEY_STATE, STATE_OPEN)
+                .putInt(KEY_FAILURES, failures)
+                .putInt(KEY_OPENED, opened)
+                .putLong(KEY_OPEN_UNTIL, openUntil)
+                .remove(KEY_PROBE_STARTED)
+                .commit();
+        return openUntil;
+    }
+
+    /**
+     * @return the current time in milliseconds since the epoch; tests move it along.
+     */
+    long now() {
+        return System.currentTimeMillis();
+    }
+}
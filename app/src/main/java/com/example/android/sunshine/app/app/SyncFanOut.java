@@ -0,0 +1,146 @@
+package com.example.android.sunshine.app.app;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the work that follows a sync (widgets, Muzei, the notification, the wearable) off the
+ * sync thread and side by side, so a slow art download or an absent watch neither stretches the
+ * sync nor holds up the other consumers.
+ *
+ * Every consumer gets a time budget, counted from when a thread picks it up.  A consumer still
+ * running when its budget is spent is interrupted; blocking calls in the consumers use timeouts
+ * of their own as well, since not all of them react to interrupts.
+ *
+ * The sync returns before the consumers are done, and the sync manager's wake lock goes with it,
+ * so the fan-out holds a partial wake lock of its own until every consumer finished or ran out of
+ * time.
+ */
+class SyncFanOut {
+    private static final String LOG_TAG = SyncFanOut.class.getSimpleName();
+
+    // Budgets, in milliseconds
+    static final long WIDGETS_BUDGET_MS = 2 * 1000;
+    static final long MUZEI_BUDGET_MS = 2 * 1000;
+    static final long NOTIFICATION_BUDGET_MS = 15 * 1000;
+    static final long WEAR_BUDGET_MS = 20 * 1000;
+
+    // One thread per consumer, gone again a little while after the fan-out.
+    private static final int MAX_THREADS = 4;
+    private static final long KEEP_ALIVE_S = 30;
+    // Backstop for the wake lock, well past the longest budget
+    private static final long MAX_WAKE_LOCK_MS = 60 * 1000;
+
+    private static final ThreadPoolExecutor sExecutor;
+    private static final ScheduledThreadPoolExecutor sWatchdog;
+
+    private static final AtomicLong sTimeouts = new AtomicLong();
+
+    // Guarded by SyncFanOut.class
+    private static PowerManager.WakeLock sWakeLock;
+    private static int sPending;
+
+    static {
+        sExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE_S,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        sExecutor.allowCoreThreadTimeOut(true);
+        sWatchdog = new ScheduledThreadPoolExecutor(1);
+        sWatchdog.setKeepAliveTime(KEEP_ALIVE_S, TimeUnit.SECONDS);
+        sWatchdog.allowCoreThreadTimeOut(true);
+    }
+
+    private SyncFanOut() {
+    }
+
+    /**
+     * Runs a consumer in the background and returns straight away.
+     *
+     * @param stage the {@link SyncTimings} stage the consumer's time is recorded under
+     * @param budgetMs how long the consumer may run before it is interrupted
+     */
+    static void dispatch(Context context, final String stage, final long budgetMs,
+                         final Runnable consumer) {
+        // Done once the consumer returns or the watchdog cancels it, whichever comes first.
+        final FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                // Off the sync thread, where allocations aren't counted
+                SyncTimings.Timer timer = SyncTimings.startWithoutAllocations(stage);
+                try {
+                    consumer.run();
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Error in " + stage, e);
+                } finally {
+                    timer.stop();
+                }
+            }
+        }, null) {
+            @Override
+            protected void done() {
+                onConsumerDone();
+            }
+        };
+
+        onConsumerQueued(context);
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // The budget starts now; time spent queued behind other consumers doesn't count.
+                sWatchdog.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!task.isDone()) {
+                            long timeouts = sTimeouts.incrementAndGet();
+                            Log.w(LOG_TAG, stage + " ran out of time (" + timeouts
+                                    + " timeouts so far)");
+                            task.cancel(true);
+                        }
+                    }
+                }, budgetMs, TimeUnit.MILLISECONDS);
+                task.run();
+            }
+        });
+    }
+
+    private static synchronized void onConsumerQueued(Context context) {
+        if (sWakeLock == null) {
+            PowerManager powerManager =
+                    (PowerManager) context.getApplicationContext().getSystemService(
+                            Context.POWER_SERVICE);
+            sWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, LOG_TAG);
+            sWakeLock.setReferenceCounted(false);
+        }
+        if (sPending++ == 0) {
+            sWakeLock.acquire(MAX_WAKE_LOCK_MS);
+        }
+    }
+
+    private static synchronized void onConsumerDone() {
+        if (--sPending == 0 && sWakeLock.isHeld()) {
+            sWakeLock.release();
+        }
+    }
+
+    /**
+     * @return the number of consumers that were queued or running and haven't finished or run
+     * out of time yet
+     */
+    static synchronized int getPendingCount() {
+        return sPending;
+    }
+
+    /**
+     * @return the number of consumers that were interrupted for running out of time
+     */
+    static long getTimeoutCount() {
+        return sTimeouts.get();
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.android.sunshine.app.app;
+
+import android.content.Context;
+
+import com.example.android.sunshine.app.Utility;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts changes of the preferred location, so a sync that was started for the old location can
+ * tell that its results are stale.
+ *
+ * A sync takes a {@link Snapshot} when it starts and checks it before it writes anything or
+ * tells the widgets, Muzei, the notification and the wearable; the settings screen calls
+ * {@link #advance} whenever the location changes.  The settings screen and the sync adapter run
+ * in the same process, so the counter doesn't need to be persisted.  The location itself is
+ * compared as well, in case it was changed by something that doesn't advance the counter.
+ */
+public class SyncGeneration {
+    private static final AtomicInteger sGeneration = new AtomicInteger();
+
+    private SyncGeneration() {
+    }
+
+    /**
+     * Marks every sync running now as stale.
+     */
+    public static void advance() {
+        sGeneration.incrementAndGet();
+    }
+
+    static Snapshot snapshot(Context context) {
+        return new Snapshot(sGeneration.get(), Utility.getPreferredLocation(context));
+    }
+
+    /**
+     * The generation and location a sync was started with.
+     */
+    static class Snapshot {
+        final int generation;
+        final String locationSetting;
+
+        private Snapshot(int generation, String locationSetting) {
+            this.generation = generation;
+            this.locationSetting = locationSetting;
+        }
+
+        /**
+         * @return true if the location changed since the snapshot was taken.
+         */
+        boolean isStale(Context context) {
+            return generation != sGeneration.get()
+                    || !locationSetting.equals(Utility.getPreferredLocation(context));
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.android.sunshine.app.app;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+
+import java.util.ArrayList;
+
+/**
+ * Merges requests for an immediate sync.  Account creation, a location change and the Place
+ * Picker result all ask for a sync within moments of each other; each used to queue its own
+ * expedited sync.
+ *
+ * Requests are debounced: a burst of them becomes one sync once no new request arrived for
+ * {@link #DEBOUNCE_MS} (but never later than {@link #MAX_DEBOUNCE_MS} after the first one).
+ * A request made while a sync is already queued or running for the same location joins it and
+ * gets its result.  A request made while a sync for a different location is running queues
+ * exactly one follow-up sync, which every later request joins.
+ *
+ * Listeners are called on the main thread.
+ */
+public class SyncRequestCoordinator {
+    private static final String LOG_TAG = SyncRequestCoordinator.class.getSimpleName();
+
+    static final long DEBOUNCE_MS = 500;
+    static final long MAX_DEBOUNCE_MS = 2000;
+    // A requested sync that never started (no network, sync disabled) stops absorbing requests.
+    static final long REQUEST_TIMEOUT_MS = 60 * 1000;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_PENDING = 1;
+    private static final int STATE_REQUESTED = 2;
+    private static final int STATE_RUNNING = 3;
+
+    /**
+     * Gets told how the sync a request ended up in went.
+     */
+    public interface Listener {
+        void onSyncFinished(@SunshineSyncAdapter.LocationStatus int locationStatus);
+    }
+
+    private static final SyncRequestCoordinator sInstance = new SyncRequestCoordinator();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mDebounced = new Runnable() {
+        @Override
+        public void run() {
+            onDebounceElapsed();
+        }
+    };
+
+    private Context mContext;
+    private int mState = STATE_IDLE;
+    private long mFirstPendingAt;
+    private long mRequestedAt;
+    // The location the running sync reads its forecast for
+    private String mRunningLocation;
+    private boolean mFollowUp;
+
+    // Listeners waiting for the next sync to finish
+    private ArrayList<Listener> mWaiting = new ArrayList<Listener>();
+    // Listeners waiting for the sync that runs after the current one
+    private ArrayList<Listener> mFollowUpWaiting = new ArrayList<Listener>();
+
+    private long mRequested;
+    private long mCoalesced;
+    private long mExecuted;
+
+    SyncRequestCoordinator() {
+    }
+
+    public static SyncRequestCoordinator getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Asks for a sync as soon as possible.
+     *
+     * @param listener gets the result of the sync this request ends up in, may be null
+     */
+    public synchronized void requestSync(Context context, Listener listener) {
+        mContext = context.getApplicationContext();
+        mRequested++;
+        long now = SystemClock.elapsedRealtime();
+
+        if (mState == STATE_REQUESTED && now - mRequestedAt > REQUEST_TIMEOUT_MS) {
+            Log.d(LOG_TAG, "Requested sync never started; requesting again");
+            mState = STATE_IDLE;
+        }
+
+        switch (mState) {
+            case STATE_IDLE:
+                mState = STATE_PENDING;
+                mFirstPendingAt = now;
+                addListener(mWaiting, listener);
+                mHandler.postDelayed(mDebounced, DEBOUNCE_MS);
+                break;
+            case STATE_PENDING:
+                mCoalesced++;
+                addListener(mWaiting, listener);
+                // Wait for the burst to settle, but not forever.
+                mHandler.removeCallbacks(mDebounced);
+                long delay = Math.min(DEBOUNCE_MS, mFirstPendingAt + MAX_DEBOUNCE_MS - now);
+                mHandler.postDelayed(mDebounced, Math.max(0, delay));
+                break;
+            case STATE_REQUESTED:
+                // Not started yet, so it will read the current settings.
+                mCoalesced++;
+                addListener(mWaiting, listener);
+                break;
+            case STATE_RUNNING:
+                if (!mFollowUp && Utility.getPreferredLocation(mContext).equals(mRunningLocation)) {
+                    mCoalesced++;
+                    addListener(mWaiting, listener);
+                } else {
+                    // The running sync is for something else; one more sync covers everyone
+                    // who asks until it starts.
+                    if (mFollowUp) {
+                        mCoalesced++;
+                    }
+                    mFollowUp = true;
+                    addListener(mFollowUpWaiting, listener);
+                }
+                break;
+        }
+    }
+
+    private static void addListener(ArrayList<Listener> listeners, Listener listener) {
+        if (listener != null) {
+            listeners.add(listener);
+        }
+    }
+
+    private synchronized void onDebounceElapsed() {
+        if (mState == STATE_PENDING) {
+            issueSync();
+        }
+    }
+
+    private void issueSync() {
+        mState = STATE_REQUESTED;
+        mRequestedAt = SystemClock.elapsedRealtime();
+        requestExpeditedSync(mContext);
+    }
+
+    /**
+     * Hands the sync to the sync manager; tests count the requests instead.
+     */
+    void requestExpeditedSync(Context context) {
+        SunshineSyncAdapter.requestExpeditedSync(context);
+    }
+
+    /**
+     * Called by the sync adapter when it starts syncing, whoever asked for the sync.
+     */
+    synchronized void onSyncStarted(Context context) {
+        mContext = context.getApplicationContext();
+        mHandler.removeCallbacks(mDebounced);
+        if (mState == STATE_PENDING) {
+            // A periodic sync beat the debounce; it serves the pending requests just as well.
+            mCoalesced++;
+        }
+        mState = STATE_RUNNING;
+        mRunningLocation = Utility.getPreferredLocation(context);
+        mExecuted++;
+    }
+
+    /**
+     * Called by the sync adapter when it is done, with the status of the preferred location.
+     */
+    synchronized void onSyncFinished(@SunshineSyncAdapter.LocationStatus final int locationStatus) {
+        final ArrayList<Listener> finished = mWaiting;
+        mWaiting = mFollowUpWaiting;
+        mFollowUpWaiting = new ArrayList<Listener>();
+        mRunningLocation = null;
+
+        if (mFollowUp) {
+            mFollowUp = false;
+            issueSync();
+        } else {
+            mState = STATE_IDLE;
+        }
+
+        Log.d(LOG_TAG, "Sync finished: " + mRequested + " requested, " + mCoalesced
+                + " coalesced, " + mExecuted + " executed");
+
+        if (!finished.isEmpty()) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Listener listener : finished) {
+                        listener.onSyncFinished(locationStatus);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the number of immediate syncs asked for
+     */
+    public synchronized long getRequestedCount() {
+        return mRequested;
+    }
+
+    /**
+     * @return the number of requests that were served by a sync somebody else asked for
+     */
+    public synchronized long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    /**
+     * @return the number of syncs that actually ran, periodic ones included
+     */
+    public synchronized long getExecutedCount() {
+        return mExecuted;
+    }
+}
@@ -0,0 +1,250 @@
+package com.example.android.sunshine.app.app;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.AsyncTask;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Picks the periodic sync interval instead of always syncing every {@link
+ * SunshineSyncAdapter#SYNC_INTERVAL} seconds.
+ *
+ * The interval grows when the app hasn't been opened for days and when syncs keep bringing
+ * back the same forecast, and shrinks when the forecast keeps changing or the device is charging
+ * on an unmetered network.  It always stays between {@link #MIN_INTERVAL} and
+ * {@link #MAX_INTERVAL}.
+ *
+ * Every decision is logged, together with the number of syncs and how stale the forecast was
+ * whenever the app was opened, so the effect of the scheduler can be measured.
+ *
+ * The app and the sync both update the counters, so every read-modify-write of them holds the
+ * class lock.
+ */
+public class SyncScheduler {
+    private static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+
+    // Intervals are in seconds, like the ones ContentResolver takes.
+    static final int MIN_INTERVAL = 60 * 60; // 1 hour
+    static final int MAX_INTERVAL = 60 * 60 * 24; // 1 day
+
+    private static final long HOUR_IN_MILLIS = 1000 * 60 * 60;
+    private static final long DAY_IN_MILLIS = HOUR_IN_MILLIS * 24;
+
+    // How much weight the latest sync has in the volatility average
+    private static final float VOLATILITY_WEIGHT = 0.3f;
+    private static final float HIGH_VOLATILITY = 0.6f;
+    private static final float LOW_VOLATILITY = 0.2f;
+
+    private static final int MAX_LOGGED_DECISIONS = 20;
+
+    private static final String PREFS_NAME = "sync_scheduler";
+    private static final String KEY_LAST_APP_USE = "last_app_use";
+    private static final String KEY_VOLATILITY = "volatility";
+    private static final String KEY_INTERVAL = "interval";
+    private static final String KEY_LAST_SUCCESS = "last_success";
+    private static final String KEY_SYNC_COUNT = "sync_count";
+    private static final String KEY_STALENESS_SUM = "staleness_sum";
+    private static final String KEY_STALENESS_COUNT = "staleness_count";
+    private static final String KEY_DECISIONS = "decisions";
+
+    private SyncScheduler() {
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Called whenever the app comes to the foreground.  Records how old the forecast the user
+     * is about to see is, and brings the interval back down if it grew while the app was unused.
+     *
+     * Must be called from the UI thread.  Loading the preferences and reconfiguring the periodic
+     * sync both reach the disk or other processes, so the work is done on a background thread.
+     */
+    public static void recordAppUsage(Context context) {
+        final Context appContext = context.getApplicationContext();
+        final long now = System.currentTimeMillis();
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                recordAppUsage(appContext, now);
+                return null;
+            }
+        }.execute();
+    }
+
+    static synchronized void recordAppUsage(Context context, long now) {
+        SharedPreferences prefs = getPrefs(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putLong(KEY_LAST_APP_USE, now);
+
+        long lastSuccess = prefs.getLong(KEY_LAST_SUCCESS, 0);
+        if (lastSuccess > 0) {
+            editor.putLong(KEY_STALENESS_SUM, prefs.getLong(KEY_STALENESS_SUM, 0) + now - lastSuccess);
+            editor.putLong(KEY_STALENESS_COUNT, prefs.getLong(KEY_STALENESS_COUNT, 0) + 1);
+        }
+        editor.apply();
+
+        reschedule(context, "app used");
+    }
+
+    /**
+     * Called by the sync adapter once a sync is done.  This function should not be called from
+     * the UI thread because it reconfigures the periodic sync.
+     *
+     * @param succeeded true if the preferred location's forecast is current
+     * @param changed true if the sync brought a different forecast than the one we had
+     */
+    static synchronized void onSyncCompleted(Context context, boolean succeeded,
+                                             boolean changed) {
+        SharedPreferences prefs = getPrefs(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putLong(KEY_SYNC_COUNT, prefs.getLong(KEY_SYNC_COUNT, 0) + 1);
+        if (succeeded) {
+            float volatility = prefs.getFloat(KEY_VOLATILITY, 0.5f);
+            volatility += VOLATILITY_WEIGHT * ((changed ? 1f : 0f) - volatility);
+            editor.putFloat(KEY_VOLATILITY, volatility);
+            editor.putLong(KEY_LAST_SUCCESS, System.currentTimeMillis());
+        }
+        editor.apply();
+
+        reschedule(context, succeeded ? (changed ? "forecast changed" : "forecast unchanged")
+                : "sync failed");
+    }
+
+    /**
+     * Recomputes the interval and reconfigures the periodic sync if it changed.
+     */
+    static synchronized void reschedule(Context context, String trigger) {
+        SharedPreferences prefs = getPrefs(context);
+        StringBuilder reason = new StringBuilder();
+        int interval = computeInterval(prefs.getLong(KEY_LAST_APP_USE, 0),
+                System.currentTimeMillis(), prefs.getFloat(KEY_VOLATILITY, 0.5f),
+                isCharging(context), isUnmetered(context), reason);
+        int current = prefs.getInt(KEY_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL);
+        if (interval == current) {
+            return;
+        }
+
+        SunshineSyncAdapter.configurePeriodicSync(context, interval, interval / 3);
+
+        String decision = System.currentTimeMillis() + " " + trigger + ": " + current + "s -> "
+                + interval + "s (" + reason + ")";
+        Log.d(LOG_TAG, decision);
+
+        // Keep the latest decisions, newest first.
+        String decisions = decision + "\n" + prefs.getString(KEY_DECISIONS, "");
+        int end = -1;
+        for (int i = 0; i < MAX_LOGGED_DECISIONS; i++) {
+            end = decisions.indexOf('\n', end + 1);
+            if (end == -1) {
+                break;
+            }
+        }
+        if (end != -1) {
+            decisions = decisions.substring(0, end);
+        }
+
+        prefs.edit()
+                .putInt(KEY_INTERVAL, interval)
+                .putString(KEY_DECISIONS, decisions)
+                .apply();
+    }
+
+    /**
+     * @param lastUse when the app was last opened, or 0 if it never was
+     * @param volatility how often syncs brought a changed forecast lately, from 0 to 1
+     * @param reason gets what the interval was based on appended
+     * @return the sync interval in seconds
+     */
+    static int computeInterval(long lastUse, long now, float volatility, boolean charging,
+                               boolean unmetered, StringBuilder reason) {
+        float interval = SunshineSyncAdapter.SYNC_INTERVAL;
+
+        // Nobody is looking: sync less.  The next time the app is opened brings it back down.
+        if (lastUse > 0) {
+            long idle = now - lastUse;
+            if (idle > 7 * DAY_IN_MILLIS) {
+                interval *= 8;
+                reason.append("unused for a week");
+            } else if (idle > 3 * DAY_IN_MILLIS) {
+                interval *= 4;
+                reason.append("unused for 3 days");
+            } else if (idle > DAY_IN_MILLIS) {
+                interval *= 2;
+                reason.append("unused for a day");
+            } else {
+                reason.append("used today");
+            }
+        } else {
+            reason.append("no usage yet");
+        }
+
+        if (volatility > HIGH_VOLATILITY) {
+            interval /= 2;
+            reason.append(", volatile forecast");
+        } else if (volatility < LOW_VOLATILITY) {
+            interval *= 2;
+            reason.append(", stable forecast");
+        }
+
+        if (charging && unmetered) {
+            interval /= 2;
+            reason.append(", charging on unmetered network");
+        } else if (!charging && !unmetered) {
+            interval *= 1.5f;
+            reason.append(", on battery and metered network");
+        }
+
+        return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, Math.round(interval)));
+    }
+
+    private static boolean isCharging(Context context) {
+        // ACTION_BATTERY_CHANGED is sticky, so this returns the current state without registering
+        // anything.
+        Intent battery = context.getApplicationContext().registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static boolean isUnmetered(Context context) {
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return !cm.isActiveNetworkMetered();
+        }
+        NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
+        return activeNetwork != null && activeNetwork.getType() == ConnectivityManager.TYPE_WIFI;
+    }
+
+    /**
+     * @return the number of syncs so far, periodic and requested ones
+     */
+    public static long getSyncCount(Context context) {
+        return getPrefs(context).getLong(KEY_SYNC_COUNT, 0);
+    }
+
+    /**
+     * @return how old, on average, the forecast was when the app was opened, in milliseconds
+     */
+    public static long getAverageStaleness(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        long count = prefs.getLong(KEY_STALENESS_COUNT, 0);
+        return count == 0 ? 0 : prefs.getLong(KEY_STALENESS_SUM, 0) / count;
+    }
+
+    /**
+     * @return the latest interval decisions, newest first, one per line
+     */
+    public static String getDecisionLog(Context context) {
+        return getPrefs(context).getString(KEY_DECISIONS, "");
+    }
+}
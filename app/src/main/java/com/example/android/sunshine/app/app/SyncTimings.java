@@ -0,0 +1,217 @@
+package com.example.android.sunshine.app.app;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Debug;
+
+import com.example.android.sunshine.app.BuildConfig;
+import com.example.android.sunshine.app.data.WeatherContract.SyncTimingsEntry;
+import com.example.android.sunshine.app.data.WeatherProvider;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+
+/**
+ * Where the time of a sync goes.  Each stage of the sync pipeline is timed and added to an
+ * in-memory histogram, along with the bytes it read, the rows it wrote and, in debug builds, the
+ * objects it allocated.
+ *
+ * Allocations are only counted on the sync thread while the sync runs.  The fan-out stages
+ * (widgets, Muzei, the notification and the wearable) run on threads of their own, mostly after
+ * the sync returned, so their allocations are reported as unavailable rather than as 0.
+ *
+ * The numbers can be read through {@link SyncTimingsEntry#CONTENT_URI} or with
+ * {@code adb shell dumpsys activity service SunshineSyncService}.  They are lost when the process
+ * dies.
+ */
+public class SyncTimings implements WeatherProvider.SyncTimingsSource {
+    public static final String STAGE_SYNC = "sync";
+    public static final String STAGE_CONNECT = "connect";
+    public static final String STAGE_DOWNLOAD_PARSE = "download_parse";
+    public static final String STAGE_CACHE_PARSE = "cache_parse";
+    public static final String STAGE_HOURLY = "hourly";
+    public static final String STAGE_ADD_LOCATION = "add_location";
+    // Storing the days and trimming the old ones, in one transaction
+    public static final String STAGE_COMMIT = "commit";
+    public static final String STAGE_WIDGETS = "widgets";
+    public static final String STAGE_MUZEI = "muzei";
+    public static final String STAGE_NOTIFICATION = "notification";
+    public static final String STAGE_WEAR = "wear";
+
+    // Bucket i counts runs shorter than 2^i ms; the last one counts everything longer.
+    private static final int BUCKET_COUNT = 18;
+
+    private static final SyncTimings sInstance = new SyncTimings();
+
+    // Nothing was timed before this class was loaded, so the provider has nothing to miss.
+    static {
+        WeatherProvider.setSyncTimingsSource(sInstance);
+    }
+
+    // In the order the stages first ran
+    private final LinkedHashMap<String, Stage> mStages = new LinkedHashMap<String, Stage>();
+
+    private static class Stage {
+        long count;
+        long totalNanos;
+        long maxNanos;
+        long bytes;
+        long rows;
+        long allocations;
+        // False until a run of the stage counted its allocations
+        boolean allocationsCounted;
+        final long[] buckets = new long[BUCKET_COUNT];
+    }
+
+    /**
+     * Measures one run of a stage.  Must be stopped on the thread it was started on.
+     */
+    public static class Timer {
+        private final String mStage;
+        private final long mStartNanos;
+        // -1 if the run's allocations aren't counted
+        private final long mStartAllocations;
+
+        private Timer(String stage, boolean countAllocations) {
+            mStage = stage;
+            mStartAllocations = countAllocations && BuildConfig.DEBUG ? countAllocations() : -1;
+            mStartNanos = System.nanoTime();
+        }
+
+        public void stop() {
+            stop(0, 0);
+        }
+
+        public void stop(long bytes, long rows) {
+            long elapsed = System.nanoTime() - mStartNanos;
+            sInstance.record(mStage, elapsed, bytes, rows, mStartAllocations == -1
+                    ? -1 : Math.max(0, countAllocations() - mStartAllocations));
+        }
+    }
+
+    private SyncTimings() {
+    }
+
+    public static SyncTimings getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Starts timing a run of the given stage.
+     */
+    public static Timer start(String stage) {
+        return new Timer(stage, true);
+    }
+
+    /**
+     * Starts timing a run of the given stage on a thread whose allocations aren't counted.
+     */
+    static Timer startWithoutAllocations(String stage) {
+        return new Timer(stage, false);
+    }
+
+    /**
+     * Starts counting allocations for the timers, in debug builds only.  Counting slows
+     * allocations down, so release builds never do it.
+     */
+    @SuppressWarnings("deprecation")
+    static void startAllocationCounting() {
+        if (BuildConfig.DEBUG) {
+            Debug.startAllocCounting();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    static void stopAllocationCounting() {
+        if (BuildConfig.DEBUG) {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long countAllocations() {
+        return BuildConfig.DEBUG ? Debug.getThreadAllocCount() : 0;
+    }
+
+    /**
+     * @param allocations the objects the run allocated, or -1 if they weren't counted
+     */
+    synchronized void record(String name, long nanos, long bytes, long rows, long allocations) {
+        Stage stage = mStages.get(name);
+        if (stage == null) {
+            stage = new Stage();
+            mStages.put(name, stage);
+        }
+        stage.count++;
+        stage.totalNanos += nanos;
+        stage.maxNanos = Math.max(stage.maxNanos, nanos);
+        stage.bytes += bytes;
+        stage.rows += rows;
+        if (allocations != -1) {
+            stage.allocations += allocations;
+            stage.allocationsCounted = true;
+        }
+
+        long millis = nanos / 1000000;
+        int bucket = 0;
+        while (bucket < BUCKET_COUNT - 1 && millis >= (1L << bucket)) {
+            bucket++;
+        }
+        stage.buckets[bucket]++;
+    }
+
+    /**
+     * @return one row per stage, with the columns of {@link SyncTimingsEntry}.
+     */
+    @Override
+    public synchronized Cursor toCursor() {
+        MatrixCursor cursor = new MatrixCursor(SyncTimingsEntry.COLUMNS, mStages.size());
+        for (String name : mStages.keySet()) {
+            Stage stage = mStages.get(name);
+            cursor.addRow(new Object[]{
+                    name,
+                    stage.count,
+                    stage.totalNanos / 1000000,
+                    stage.maxNanos / 1000000,
+                    stage.bytes,
+                    stage.rows,
+                    stage.allocationsCounted ? stage.allocations : null,
+                    formatHistogram(stage)
+            });
+        }
+        return cursor;
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Sync timings (wall time in ms):");
+        for (String name : mStages.keySet()) {
+            Stage stage = mStages.get(name);
+            writer.println(String.format(Locale.US,
+                    "  %-15s count=%d avg=%.1f max=%.1f bytes=%d rows=%d allocs=%s",
+                    name, stage.count, stage.totalNanos / 1e6 / stage.count,
+                    stage.maxNanos / 1e6, stage.bytes, stage.rows,
+                    stage.allocationsCounted ? Long.toString(stage.allocations) : "n/a"));
+            writer.println("    " + formatHistogram(stage));
+        }
+    }
+
+    private static String formatHistogram(Stage stage) {
+        StringBuilder histogram = new StringBuilder();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (stage.buckets[i] == 0) {
+                continue;
+            }
+            if (histogram.length() > 0) {
+                histogram.append(' ');
+            }
+            if (i < BUCKET_COUNT - 1) {
+                histogram.append('<').append(1L << i);
+            } else {
+                histogram.append(">=").append(1L << (i - 1));
+            }
+            histogram.append("ms:").append(stage.buckets[i]);
+        }
+        return histogram.toString();
+    }
+}
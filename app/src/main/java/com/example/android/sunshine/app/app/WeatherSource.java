@@ -0,0 +1,40 @@
+package com.example.android.sunshine.app.app;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * Where forecasts come from: how to ask for one and how to read the answer.  The sync adapter
+ * does the rest (transport, caching, revalidation, storage) the same way for every source.
+ */
+interface WeatherSource {
+    /**
+     * @return the URL of the daily forecast for the target.  The same target and number of days
+     * must always give the same URL, since it is also the key of the response cache.
+     */
+    URL buildForecastUrl(SunshineSyncAdapter.SyncTarget target, int numDays) throws IOException;
+
+    /**
+     * Reads a forecast response, handing the city and days to the callback as they are read.
+     *
+     * @return the status code of the response, as an HTTP status code
+     */
+    int parseForecast(InputStream in, ForecastJsonParser.Callback callback)
+            throws IOException, JSONException;
+
+    /**
+     * @return the URL of the hourly forecast for the target, or null if the source has none.
+     */
+    URL buildHourlyForecastUrl(SunshineSyncAdapter.SyncTarget target) throws IOException;
+
+    /**
+     * Reads an hourly forecast response, handing every point to the callback as it is read.
+     *
+     * @return the status code of the response, as an HTTP status code
+     */
+    int parseHourlyForecast(InputStream in, HourlyJsonParser.Callback callback)
+            throws IOException, JSONException;
+}
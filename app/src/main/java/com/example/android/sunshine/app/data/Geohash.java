@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+/**
+ * Geohashes: a latitude and longitude bucketed into a rectangular cell, named by a base 32
+ * string.  Every extra character narrows the cell down by a factor of 32, and every point in a
+ * cell has the same hash, so the hash can stand in for the point wherever nearby points should
+ * be treated alike.
+ */
+public class Geohash {
+    private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+    /**
+     * The precision locations are bucketed at.  Five characters make cells of about 4.9 by
+     * 4.9 km at the equator, well below what a forecast tells apart.
+     */
+    public static final int LOCATION_PRECISION = 5;
+
+    private Geohash() {
+    }
+
+    /**
+     * @param precision the number of characters of the hash, between 1 and 12
+     */
+    public static String encode(double latitude, double longitude, int precision) {
+        if (precision < 1 || precision > 12) {
+            throw new IllegalArgumentException("Precision out of range: " + precision);
+        }
+        double minLat = -90, maxLat = 90;
+        double minLon = -180, maxLon = 180;
+        StringBuilder hash = new StringBuilder(precision);
+        boolean evenBit = true;
+        int bit = 0;
+        int ch = 0;
+        while (hash.length() < precision) {
+            // Bits alternate between longitude and latitude, longitude first.
+            if (evenBit) {
+                double mid = (minLon + maxLon) / 2;
+                if (longitude >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLon = mid;
+                } else {
+                    ch <<= 1;
+                    maxLon = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (latitude >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLat = mid;
+                } else {
+                    ch <<= 1;
+                    maxLat = mid;
+                }
+            }
+            evenBit = !evenBit;
+            if (++bit == 5) {
+                hash.append(BASE32.charAt(ch));
+                bit = 0;
+                ch = 0;
+            }
+        }
+        return hash.toString();
+    }
+
+    /**
+     * @return the latitude and longitude of the center of the cell, in that order.
+     * @throws IllegalArgumentException if the hash has characters outside the geohash alphabet
+     */
+    public static double[] decodeCenter(String hash) {
+        double minLat = -90, maxLat = 90;
+        double minLon = -180, maxLon = 180;
+        boolean evenBit = true;
+        for (int i = 0; i < hash.length(); i++) {
+            int ch = BASE32.indexOf(hash.charAt(i));
+            if (ch < 0) {
+                throw new IllegalArgumentException("Not a geohash: " + hash);
+            }
+            for (int mask = 16; mask != 0; mask >>= 1) {
+                boolean set = (ch & mask) != 0;
+                if (evenBit) {
+                    double mid = (minLon + maxLon) / 2;
+                    if (set) {
+                        minLon = mid;
+                    } else {
+                        maxLon = mid;
+                    }
+                } else {
+                    double mid = (minLat + maxLat) / 2;
+                    if (set) {
+                        minLat = mid;
+                    } else {
+                        maxLat = mid;
+                    }
+                }
+                evenBit = !evenBit;
+            }
+        }
+        return new double[]{(minLat + maxLat) / 2, (minLon + maxLon) / 2};
+    }
+}
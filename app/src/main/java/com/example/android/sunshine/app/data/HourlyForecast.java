@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The hourly points of one location and day, as stored in
+ * {@link WeatherContract.HourlyEntry#COLUMN_POINTS}.
+ *
+ * Points are packed into a fixed size record each, in fixed point, so a day of 3-hourly points
+ * is about a hundred bytes.  Nothing is decoded up front: {@link #wrap} only checks the header
+ * and the getters read the field they are asked for straight from the blob.
+ */
+public class HourlyForecast {
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 2;
+
+    // Record layout, in bytes
+    private static final int OFFSET_MINUTES = 0;        // short, minutes after the day's date
+    private static final int OFFSET_TEMPERATURE = 2;    // short, 1/100 degree Celsius
+    private static final int OFFSET_WEATHER_ID = 4;     // short
+    private static final int OFFSET_HUMIDITY = 6;       // byte, percent
+    private static final int OFFSET_PRESSURE = 7;       // short, 1/10 hPa
+    private static final int OFFSET_WIND_SPEED = 9;     // short, 1/100 m/s
+    private static final int OFFSET_DEGREES = 11;       // short, degrees
+    private static final int RECORD_SIZE = 13;
+
+    // A count has to fit in the header's single byte.
+    public static final int MAX_POINTS = 255;
+
+    private static final long MINUTE_IN_MILLIS = 60 * 1000;
+
+    private final ByteBuffer mBuffer;
+    private final long mDate;
+
+    private HourlyForecast(ByteBuffer buffer, long date) {
+        mBuffer = buffer;
+        mDate = date;
+    }
+
+    /**
+     * @param points a blob from {@link WeatherContract.HourlyEntry#COLUMN_POINTS}
+     * @param date the row's {@link WeatherContract.HourlyEntry#COLUMN_DATE}
+     * @throws IllegalArgumentException if the blob wasn't written by {@link Builder}
+     */
+    public static HourlyForecast wrap(byte[] points, long date) {
+        if (points == null || points.length < HEADER_SIZE || points[0] != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Not a packed hourly forecast");
+        }
+        int count = points[1] & 0xff;
+        if (points.length != HEADER_SIZE + count * RECORD_SIZE) {
+            throw new IllegalArgumentException("Expected " + count + " points, got "
+                    + (points.length - HEADER_SIZE) + " bytes");
+        }
+        return new HourlyForecast(ByteBuffer.wrap(points), date);
+    }
+
+    public int getCount() {
+        return mBuffer.get(1) & 0xff;
+    }
+
+    /**
+     * @return the time of the point, in milliseconds since the epoch
+     */
+    public long getTime(int index) {
+        return mDate + mBuffer.getShort(offset(index) + OFFSET_MINUTES) * MINUTE_IN_MILLIS;
+    }
+
+    /**
+     * @return the temperature in degrees Celsius
+     */
+    public double getTemperature(int index) {
+        return mBuffer.getShort(offset(index) + OFFSET_TEMPERATURE) / 100.0;
+    }
+
+    public int getWeatherId(int index) {
+        return mBuffer.getShort(offset(index) + OFFSET_WEATHER_ID);
+    }
+
+    public int getHumidity(int index) {
+        return mBuffer.get(offset(index) + OFFSET_HUMIDITY) & 0xff;
+    }
+
+    /**
+     * @return the pressure in hPa
+     */
+    public double getPressure(int index) {
+        return (mBuffer.getShort(offset(index) + OFFSET_PRESSURE) & 0xffff) / 10.0;
+    }
+
+    /**
+     * @return the wind speed in m/s
+     */
+    public double getWindSpeed(int index) {
+        return (mBuffer.getShort(offset(index) + OFFSET_WIND_SPEED) & 0xffff) / 100.0;
+    }
+
+    public double getDegrees(int index) {
+        return mBuffer.getShort(offset(index) + OFFSET_DEGREES);
+    }
+
+    private int offset(int index) {
+        if (index < 0 || index >= getCount()) {
+            throw new IndexOutOfBoundsException("Point " + index + " of " + getCount());
+        }
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    /**
+     * Packs the points of one day, in the order they are added.
+     */
+    public static class Builder {
+        private final long mDate;
+        private final ByteBuffer mBuffer =
+                ByteBuffer.allocate(HEADER_SIZE + MAX_POINTS * RECORD_SIZE);
+        private int mCount;
+
+        /**
+         * @param date the normalized date of the day, as stored in the row
+         */
+        public Builder(long date) {
+            mDate = date;
+            mBuffer.put(FORMAT_VERSION).put((byte) 0);
+        }
+
+        public long getDate() {
+            return mDate;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * @param time in milliseconds since the epoch; must be within a day or so of the date
+         */
+        public Builder add(long time, double temperature, int weatherId, int humidity,
+                           double pressure, double windSpeed, double degrees) {
+            if (mCount == MAX_POINTS) {
+                throw new IllegalStateException("More than " + MAX_POINTS + " points");
+            }
+            mBuffer.putShort(toShort((time - mDate) / MINUTE_IN_MILLIS))
+                    .putShort(toShort(Math.round(temperature * 100)))
+                    .putShort(toShort(weatherId))
+                    .put((byte) Math.max(0, Math.min(humidity, 255)))
+                    .putShort((short) Math.max(0, Math.min(Math.round(pressure * 10), 0xffff)))
+                    .putShort((short) Math.max(0, Math.min(Math.round(windSpeed * 100), 0xffff)))
+                    .putShort(toShort(Math.round(degrees)));
+            mCount++;
+            return this;
+        }
+
+        public byte[] build() {
+            byte[] points = new byte[HEADER_SIZE + mCount * RECORD_SIZE];
+            System.arraycopy(mBuffer.array(), 0, points, 0, points.length);
+            points[1] = (byte) mCount;
+            return points;
+        }
+
+        private static short toShort(long value) {
+            return (short) Math.max(Short.MIN_VALUE, Math.min(value, Short.MAX_VALUE));
+        }
+    }
+}
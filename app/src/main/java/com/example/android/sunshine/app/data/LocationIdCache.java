@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the row id of every location setting the sync resolved, along with the city details
+ * that were stored for it, so a sync of a known location doesn't have to ask the provider again.
+ *
+ * The provider runs in the app's process and clears the cache whenever location rows are
+ * updated or deleted, or the database is created.  Safe to use from several threads.
+ */
+public class LocationIdCache {
+    private static final LocationIdCache sInstance = new LocationIdCache();
+
+    private final ConcurrentHashMap<String, Entry> mEntries =
+            new ConcurrentHashMap<String, Entry>();
+
+    private static class Entry {
+        final long id;
+        final String cityName;
+        final double latitude;
+        final double longitude;
+        final String geohash;
+
+        Entry(long id, String cityName, double latitude, double longitude, String geohash) {
+            this.id = id;
+            this.cityName = cityName;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.geohash = geohash;
+        }
+    }
+
+    private LocationIdCache() {
+    }
+
+    public static LocationIdCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @return the row id of the location, or -1 if it isn't cached.
+     */
+    public long getId(String locationSetting) {
+        Entry entry = mEntries.get(locationSetting);
+        return entry != null ? entry.id : -1;
+    }
+
+    /**
+     * @return the row id of the location if it is cached and stored with exactly these city
+     * details, or -1 if the row has to be written.
+     */
+    public long getId(String locationSetting, String cityName, double latitude,
+                      double longitude, String geohash) {
+        Entry entry = mEntries.get(locationSetting);
+        if (entry == null || !equals(entry.cityName, cityName)
+                || Double.compare(entry.latitude, latitude) != 0
+                || Double.compare(entry.longitude, longitude) != 0
+                || !equals(entry.geohash, geohash)) {
+            return -1;
+        }
+        return entry.id;
+    }
+
+    public void put(String locationSetting, long id, String cityName, double latitude,
+                    double longitude, String geohash) {
+        mEntries.put(locationSetting, new Entry(id, cityName, latitude, longitude, geohash));
+    }
+
+    public void clear() {
+        mEntries.clear();
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
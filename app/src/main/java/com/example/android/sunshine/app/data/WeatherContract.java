@@ -43,6 +43,9 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_HOURLY = "hourly";
+    public static final String PATH_SYNC_TIMINGS = "sync_timings";
+    public static final String PATH_SYNC_COMMIT = "sync_commit";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
@@ -81,6 +84,15 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // Whether the user saved this location.  Saved locations are refreshed by every sync,
+        // together with the location setting.  Stored as 0 or 1.
+        public static final String COLUMN_SAVED = "saved";
+
+        // The geohash cell (see Geohash#LOCATION_PRECISION) of the coordinates a Place Picker
+        // location was picked at, or null for locations entered as text.  Points in the same
+        // cell share their forecast.
+        public static final String COLUMN_GEOHASH = "geohash";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -164,5 +176,107 @@ public class WeatherContract {
             else
                 return 0;
         }
+
+        /*
+            A bulk insert into this URI stores the days of a sync and deletes every day up to and
+            including the given date in one transaction, and notifies each location it changed
+            once.
+         */
+        public static Uri buildSyncCommitUri(long trimDate) {
+            return BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_COMMIT)
+                    .appendPath(Long.toString(trimDate)).build();
+        }
+
+        public static long getTrimDateFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(1));
+        }
+    }
+
+    /*
+        Inner class that defines the table contents of the hourly table.  Each row holds every
+        hourly point of one location and day, packed into a single blob by HourlyForecast, so
+        sub-daily forecasts cost one row per day like the daily ones.
+     */
+    public static final class HourlyEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+
+        public static final String TABLE_NAME = "hourly";
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // Date of the day the points belong to, normalized like the weather table's
+        public static final String COLUMN_DATE = "date";
+        // The points of the day, packed by HourlyForecast.  Decode with HourlyForecast.wrap.
+        public static final String COLUMN_POINTS = "points";
+
+        public static Uri buildHourlyUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id);
+        }
+
+        public static Uri buildHourlyLocationWithDate(String locationSetting, long date) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendPath(Long.toString(normalizeDate(date))).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getDateFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(2));
+        }
+    }
+
+    /*
+        Inner class that defines the columns of the sync timings.  They aren't stored in the
+        database; the provider serves what the sync adapter measured since the process started.
+        For debugging only.
+     */
+    public static final class SyncTimingsEntry {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_TIMINGS).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_TIMINGS;
+
+        // The sync stage, e.g. "connect" or "commit"
+        public static final String COLUMN_STAGE = "stage";
+
+        // Number of times the stage ran
+        public static final String COLUMN_COUNT = "count";
+
+        // Wall time spent in the stage, in milliseconds, summed over all runs and the longest run
+        public static final String COLUMN_TOTAL_MS = "total_ms";
+        public static final String COLUMN_MAX_MS = "max_ms";
+
+        // Bytes read and rows written by the stage, summed over all runs, where it applies
+        public static final String COLUMN_BYTES = "bytes";
+        public static final String COLUMN_ROWS = "rows";
+
+        // Objects allocated by the stage, summed over all runs.  Only counted in debug builds and
+        // on the sync thread; null for stages that weren't counted, like the fan-out.
+        public static final String COLUMN_ALLOCATIONS = "allocations";
+
+        // Run counts per wall time bucket, as "<1ms:3 <2ms:5 ...".  Bucket bounds double.
+        public static final String COLUMN_HISTOGRAM = "histogram";
+
+        public static final String[] COLUMNS = {
+                COLUMN_STAGE,
+                COLUMN_COUNT,
+                COLUMN_TOTAL_MS,
+                COLUMN_MAX_MS,
+                COLUMN_BYTES,
+                COLUMN_ROWS,
+                COLUMN_ALLOCATIONS,
+                COLUMN_HISTOGRAM
+        };
     }
 }
@@ -18,7 +18,10 @@ package com.example.android.sunshine.app.data;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.text.TextUtils;
 
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
@@ -28,12 +31,38 @@ import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    static final int DATABASE_VERSION = 7;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // The sync looks for stored forecasts in the cell of a picked location.
+    static final String LOCATION_GEOHASH_INDEX =
+            LocationEntry.TABLE_NAME + "_" + LocationEntry.COLUMN_GEOHASH + "_idx";
+
+    // Serves the location_id = ? AND date >= ? / date = ? lookups, in date order, and covers the
+    // weather columns of the forecast list so it never has to touch the table itself.
+    static final String WEATHER_FORECAST_INDEX = WeatherEntry.TABLE_NAME + "_forecast_idx";
+
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // With write-ahead logging the loaders, widgets, Muzei and the wearable keep reading
+        // the days they have, each on a connection of its own, while the sync writes new ones.
+        // Under the rollback journal every one of them waits until the sync's transaction ends.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // Before Jelly Bean the helper can't be told up front, so turn it on once the
+        // database is open.  Gingerbread has no write-ahead logging.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN
+                && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
     }
 
     @Override
@@ -45,9 +74,15 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_SAVED + " INTEGER NOT NULL DEFAULT 0, " +
+                LocationEntry.COLUMN_GEOHASH + " TEXT" +
                 " );";
 
+        final String SQL_CREATE_LOCATION_GEOHASH_INDEX = "CREATE INDEX " +
+                LOCATION_GEOHASH_INDEX + " ON " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry.COLUMN_GEOHASH + ");";
+
         final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
                 // Why AutoIncrement here, and not above?
                 // Unique keys will be auto-generated in either case.  But for weather
@@ -75,24 +110,204 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
 
                 // To assure the application have just one weather entry per day
-                // per location, it's created a UNIQUE constraint with REPLACE strategy
+                // per location, it's created a UNIQUE constraint.  No REPLACE strategy: the
+                // provider updates a stored day in place so its _ID stays the same, and a
+                // second insert of the same day is a bug that should fail.
                 " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
-                WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
+                WeatherEntry.COLUMN_LOC_KEY + "));";
+
+        // The UNIQUE index above starts with the date, which suits the trim but not the
+        // per-location queries.  The _ID is the rowid and comes with every index for free.
+        final String SQL_CREATE_WEATHER_FORECAST_INDEX = "CREATE INDEX " +
+                WEATHER_FORECAST_INDEX + " ON " + WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                WeatherEntry.COLUMN_WEATHER_ID + ");";
+
+        // One row per location and day; the hourly points are packed into a single blob.
+        final String SQL_CREATE_HOURLY_TABLE = "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_POINTS + " BLOB NOT NULL, " +
+
+                " FOREIGN KEY (" + HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+                " UNIQUE (" + HourlyEntry.COLUMN_DATE + ", " +
+                HourlyEntry.COLUMN_LOC_KEY + "));";
 
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_GEOHASH_INDEX);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_FORECAST_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TABLE);
+
+        // Row ids start over in a new database.
+        LocationIdCache.getInstance().clear();
     }
 
+    // The oldest schema the upgrade steps start from; anything older is dropped and created anew.
+    static final int FIRST_MIGRATABLE_VERSION = 2;
+
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
+        // Upgrades run one version at a time and keep the stored locations and forecasts, so a
+        // schema change doesn't leave everyone with an empty list until a sync refills it.
         // Note that this only fires if you change the version number for your database.
         // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+        // SQLiteOpenHelper runs this in a transaction, so a step that fails leaves the
+        // database at the old version.
+        if (oldVersion < FIRST_MIGRATABLE_VERSION) {
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
+            onCreate(sqLiteDatabase);
+            return;
+        }
+        upgrade(sqLiteDatabase, oldVersion, newVersion);
+    }
+
+    /*
+        Runs the upgrade steps from one version to the next, starting at oldVersion.  Every step
+        has its own SQL, written for the schema of its version, and must not change once it has
+        shipped; a schema change gets a new step and a new DATABASE_VERSION instead.
+        TestDbMigrations checks that upgrading from every version ends up with the schema
+        onCreate makes.
+     */
+    static void upgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (int version = oldVersion; version < newVersion; version++) {
+            switch (version) {
+                case 2:
+                    upgradeTo3(db);
+                    break;
+                case 3:
+                    upgradeTo4(db);
+                    break;
+                case 4:
+                    upgradeTo5(db);
+                    break;
+                case 5:
+                    upgradeTo6(db);
+                    break;
+                case 6:
+                    upgradeTo7(db);
+                    break;
+                default:
+                    throw new IllegalStateException("No upgrade from version " + version);
+            }
+        }
+    }
+
+    // Locations can be saved to be synced along with the preferred one.
+    private static void upgradeTo3(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME + " ADD COLUMN " +
+                LocationEntry.COLUMN_SAVED + " INTEGER NOT NULL DEFAULT 0");
+    }
+
+    // Hourly forecasts, one packed row per location and day.
+    private static void upgradeTo4(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_POINTS + " BLOB NOT NULL, " +
+                " FOREIGN KEY (" + HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+                " UNIQUE (" + HourlyEntry.COLUMN_DATE + ", " +
+                HourlyEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);");
+    }
+
+    // Geohash cells for picked locations.  Stored locations are left without one; the next sync
+    // of a picked location writes its cell.
+    private static void upgradeTo5(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + LocationEntry.TABLE_NAME + " ADD COLUMN " +
+                LocationEntry.COLUMN_GEOHASH + " TEXT");
+        db.execSQL("CREATE INDEX " + LocationEntry.TABLE_NAME + "_" +
+                LocationEntry.COLUMN_GEOHASH + "_idx ON " + LocationEntry.TABLE_NAME +
+                " (" + LocationEntry.COLUMN_GEOHASH + ");");
+    }
+
+    // The covering index for the per-location weather queries.
+    private static void upgradeTo6(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + WeatherEntry.TABLE_NAME + "_forecast_idx ON " +
+                WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                WeatherEntry.COLUMN_MAX_TEMP + ", " +
+                WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                WeatherEntry.COLUMN_WEATHER_ID + ");");
+    }
+
+    /*
+        The UNIQUE constraints of the weather and hourly tables lose ON CONFLICT REPLACE.  SQLite
+        can't alter a constraint, so both tables are copied into new ones, rows and _IDs and all,
+        which then take the old names.
+     */
+    private static void upgradeTo7(SQLiteDatabase db) {
+        final String newWeather = WeatherEntry.TABLE_NAME + "_new";
+        db.execSQL("CREATE TABLE " + newWeather + " (" +
+                WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
+                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
+                WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+                " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_LOC_KEY + "));");
+        copyTable(db, WeatherEntry.TABLE_NAME, newWeather,
+                WeatherEntry._ID,
+                WeatherEntry.COLUMN_LOC_KEY,
+                WeatherEntry.COLUMN_DATE,
+                WeatherEntry.COLUMN_SHORT_DESC,
+                WeatherEntry.COLUMN_WEATHER_ID,
+                WeatherEntry.COLUMN_MIN_TEMP,
+                WeatherEntry.COLUMN_MAX_TEMP,
+                WeatherEntry.COLUMN_HUMIDITY,
+                WeatherEntry.COLUMN_PRESSURE,
+                WeatherEntry.COLUMN_WIND_SPEED,
+                WeatherEntry.COLUMN_DEGREES);
+        // The old table's indexes went with it.
+        upgradeTo6(db);
+
+        final String newHourly = HourlyEntry.TABLE_NAME + "_new";
+        db.execSQL("CREATE TABLE " + newHourly + " (" +
+                HourlyEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_POINTS + " BLOB NOT NULL, " +
+                " FOREIGN KEY (" + HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+                " UNIQUE (" + HourlyEntry.COLUMN_DATE + ", " +
+                HourlyEntry.COLUMN_LOC_KEY + "));");
+        copyTable(db, HourlyEntry.TABLE_NAME, newHourly,
+                HourlyEntry._ID,
+                HourlyEntry.COLUMN_LOC_KEY,
+                HourlyEntry.COLUMN_DATE,
+                HourlyEntry.COLUMN_POINTS);
+    }
+
+    /*
+        Moves the rows of a table into a new one with the given columns, then drops the old
+        table and gives its name to the new one.
+     */
+    private static void copyTable(SQLiteDatabase db, String table, String newTable,
+                                  String... columns) {
+        String columnList = TextUtils.join(", ", columns);
+        db.execSQL("INSERT INTO " + newTable + " (" + columnList + ") SELECT " + columnList +
+                " FROM " + table);
+        db.execSQL("DROP TABLE " + table);
+        db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + table);
     }
 }
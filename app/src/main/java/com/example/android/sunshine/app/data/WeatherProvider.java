@@ -20,20 +20,60 @@ import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class WeatherProvider extends ContentProvider {
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
 
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    // Bumped on every write that can change what a weather query returns.  Caches of stored
+    // weather in this process compare it to tell whether they are stale; see getWeatherVersion.
+    private static final AtomicLong sWeatherVersion = new AtomicLong();
+
+    /**
+     * Reports what the sync measured, for the sync_timings URI.  The sync registers one when it
+     * first times anything; the provider doesn't depend on the sync.
+     */
+    public interface SyncTimingsSource {
+        /**
+         * @return one row per stage, with the columns of
+         * {@link WeatherContract.SyncTimingsEntry#COLUMNS}.
+         */
+        Cursor toCursor();
+    }
+
+    private static volatile SyncTimingsSource sSyncTimingsSource;
+
+    // Bumped for each location whose days a sync commit wrote; see getLocationVersion
+    private static final HashMap<Long, Long> sLocationVersions = new HashMap<Long, Long>();
+
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
+    static final int SYNC_TIMINGS = 400;
+    static final int HOURLY = 500;
+    static final int HOURLY_WITH_LOCATION_AND_DATE = 501;
+    static final int SYNC_COMMIT = 600;
 
     private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
@@ -51,6 +91,21 @@ public class WeatherProvider extends ContentProvider {
                         "." + WeatherContract.LocationEntry._ID);
     }
 
+    private static final SQLiteQueryBuilder sHourlyByLocationSettingQueryBuilder;
+
+    static{
+        sHourlyByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
+
+        //hourly INNER JOIN location ON hourly.location_id = location._id
+        sHourlyByLocationSettingQueryBuilder.setTables(
+                WeatherContract.HourlyEntry.TABLE_NAME + " INNER JOIN " +
+                        WeatherContract.LocationEntry.TABLE_NAME +
+                        " ON " + WeatherContract.HourlyEntry.TABLE_NAME +
+                        "." + WeatherContract.HourlyEntry.COLUMN_LOC_KEY +
+                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                        "." + WeatherContract.LocationEntry._ID);
+    }
+
     //location.location_setting = ?
     private static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
@@ -68,7 +123,24 @@ public class WeatherProvider extends ContentProvider {
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
-    private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+    /*
+        The SQL the provider runs for a query URI, with its arguments.  TestQueryPlans runs the
+        same SQL through EXPLAIN QUERY PLAN, so keep every table query going through buildQuery.
+     */
+    static class UriQuery {
+        final String sql;
+        final String[] selectionArgs;
+
+        UriQuery(String tables, String[] projection, String selection, String[] selectionArgs,
+                 String sortOrder) {
+            this.sql = SQLiteQueryBuilder.buildQueryString(false, tables, projection, selection,
+                    null, null, sortOrder, null);
+            this.selectionArgs = selectionArgs;
+        }
+    }
+
+    private static UriQuery getWeatherByLocationSetting(Uri uri, String[] projection,
+                                                        String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
 
@@ -83,31 +155,70 @@ public class WeatherProvider extends ContentProvider {
             selection = sLocationSettingWithStartDateSelection;
         }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+        return new UriQuery(sWeatherByLocationSettingQueryBuilder.getTables(),
                 projection,
                 selection,
                 selectionArgs,
-                null,
-                null,
                 sortOrder
         );
     }
 
-    private Cursor getWeatherByLocationSettingAndDate(
+    private static UriQuery getWeatherByLocationSettingAndDate(
             Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+        return new UriQuery(sWeatherByLocationSettingQueryBuilder.getTables(),
                 projection,
                 sLocationSettingAndDaySelection,
                 new String[]{locationSetting, Long.toString(date)},
-                null,
-                null,
                 sortOrder
         );
     }
 
+    private static UriQuery getHourlyByLocationSettingAndDate(
+            Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.HourlyEntry.getLocationSettingFromUri(uri);
+        long date = WeatherContract.HourlyEntry.getDateFromUri(uri);
+
+        //location.location_setting = ? AND hourly.date = ?
+        return new UriQuery(sHourlyByLocationSettingQueryBuilder.getTables(),
+                projection,
+                WeatherContract.LocationEntry.TABLE_NAME + "." +
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                        WeatherContract.HourlyEntry.TABLE_NAME + "." +
+                        WeatherContract.HourlyEntry.COLUMN_DATE + " = ? ",
+                new String[]{locationSetting, Long.toString(date)},
+                sortOrder
+        );
+    }
+
+    public static void setSyncTimingsSource(SyncTimingsSource source) {
+        sSyncTimingsSource = source;
+    }
+
+    /*
+        Returns a number that changes whenever the stored weather, or a location it is joined
+        with, may have changed.  The provider runs in the app's process, so anything there that
+        keeps query results around can hold on to the version it read them at and query again
+        once it moved on.
+     */
+    public static long getWeatherVersion() {
+        return sWeatherVersion.get();
+    }
+
+    /*
+        Returns a number that changes whenever a sync commit writes days of the location.  Days
+        that were only trimmed don't count.  A commit stores every synced location at once, so
+        this is how the sync tells whether the one on screen changed.
+     */
+    public static long getLocationVersion(long locationId) {
+        synchronized (sLocationVersions) {
+            Long version = sLocationVersions.get(locationId);
+            return version != null ? version : 0;
+        }
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -130,6 +241,12 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_TIMINGS, SYNC_TIMINGS);
+
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, HOURLY);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*/#", HOURLY_WITH_LOCATION_AND_DATE);
+
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_COMMIT + "/#", SYNC_COMMIT);
         return matcher;
     }
 
@@ -162,8 +279,16 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case WEATHER:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
+            case SYNC_COMMIT:
+                return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case SYNC_TIMINGS:
+                return WeatherContract.SyncTimingsEntry.CONTENT_TYPE;
+            case HOURLY:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
+            case HOURLY_WITH_LOCATION_AND_DATE:
+                return WeatherContract.HourlyEntry.CONTENT_ITEM_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -172,53 +297,50 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        Cursor retCursor;
+        // "sync_timings", for debugging
+        if (sUriMatcher.match(uri) == SYNC_TIMINGS) {
+            SyncTimingsSource source = sSyncTimingsSource;
+            retCursor = source != null ? source.toCursor()
+                    : new MatrixCursor(WeatherContract.SyncTimingsEntry.COLUMNS, 0);
+        } else {
+            UriQuery query = buildQuery(uri, projection, selection, selectionArgs, sortOrder);
+            retCursor = mOpenHelper.getReadableDatabase().rawQuery(query.sql, query.selectionArgs);
+        }
+        retCursor.setNotificationUri(getContext().getContentResolver(), uri);
+        return retCursor;
+    }
+
+    static UriQuery buildQuery(Uri uri, String[] projection, String selection,
+                               String[] selectionArgs, String sortOrder) {
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
-        Cursor retCursor;
         switch (sUriMatcher.match(uri)) {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
-            {
-                retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
-                break;
-            }
+                return getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
             // "weather/*"
-            case WEATHER_WITH_LOCATION: {
-                retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
-                break;
-            }
+            case WEATHER_WITH_LOCATION:
+                return getWeatherByLocationSetting(uri, projection, sortOrder);
             // "weather"
-            case WEATHER: {
-                retCursor = mOpenHelper.getReadableDatabase().query(
-                        WeatherContract.WeatherEntry.TABLE_NAME,
-                        projection,
-                        selection,
-                        selectionArgs,
-                        null,
-                        null,
-                        sortOrder
-                );
-                break;
-            }
+            case WEATHER:
+                return new UriQuery(WeatherContract.WeatherEntry.TABLE_NAME,
+                        projection, selection, selectionArgs, sortOrder);
             // "location"
-            case LOCATION: {
-                retCursor = mOpenHelper.getReadableDatabase().query(
-                        WeatherContract.LocationEntry.TABLE_NAME,
-                        projection,
-                        selection,
-                        selectionArgs,
-                        null,
-                        null,
-                        sortOrder
-                );
-                break;
-            }
+            case LOCATION:
+                return new UriQuery(WeatherContract.LocationEntry.TABLE_NAME,
+                        projection, selection, selectionArgs, sortOrder);
+            // "hourly/*/*"
+            case HOURLY_WITH_LOCATION_AND_DATE:
+                return getHourlyByLocationSettingAndDate(uri, projection, sortOrder);
+            // "hourly"
+            case HOURLY:
+                return new UriQuery(WeatherContract.HourlyEntry.TABLE_NAME,
+                        projection, selection, selectionArgs, sortOrder);
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        retCursor.setNotificationUri(getContext().getContentResolver(), uri);
-        return retCursor;
     }
 
     /*
@@ -233,21 +355,31 @@ public class WeatherProvider extends ContentProvider {
         switch (match) {
             case WEATHER: {
                 normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                long _id = upsertDay(db, WeatherContract.WeatherEntry.TABLE_NAME, values);
                 if ( _id > 0 )
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                sWeatherVersion.incrementAndGet();
                 break;
             }
             case LOCATION: {
-                long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                long _id = upsertLocation(db, values);
                 if ( _id > 0 )
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
+            case HOURLY: {
+                normalizeDate(values);
+                long _id = upsertDay(db, WeatherContract.HourlyEntry.TABLE_NAME, values);
+                if ( _id > 0 )
+                    returnUri = WeatherContract.HourlyEntry.buildHourlyUri(_id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                break;
+            }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -266,10 +398,17 @@ public class WeatherProvider extends ContentProvider {
             case WEATHER:
                 rowsDeleted = db.delete(
                         WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                sWeatherVersion.incrementAndGet();
                 break;
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                LocationIdCache.getInstance().clear();
+                sWeatherVersion.incrementAndGet();
+                break;
+            case HOURLY:
+                rowsDeleted = db.delete(
+                        WeatherContract.HourlyEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -281,6 +420,100 @@ public class WeatherProvider extends ContentProvider {
         return rowsDeleted;
     }
 
+    /*
+        Writes a day over the stored row for the same location and day, or inserts it if there
+        is none, and returns the row id either way.  Updating in place keeps the row's _ID, which
+        the forecast list uses to remember the selected day across a sync.
+     */
+    private long upsertDay(SQLiteDatabase db, String table, ContentValues values) {
+        Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        long _id = -1;
+        db.beginTransaction();
+        try {
+            if (locationId != null && date != null) {
+                Cursor cursor = db.query(table,
+                        new String[]{WeatherContract.WeatherEntry._ID},
+                        sLocationIdAndDaySelection,
+                        new String[]{Long.toString(locationId), Long.toString(date)},
+                        null,
+                        null,
+                        null);
+                try {
+                    if (cursor.moveToFirst()) {
+                        _id = cursor.getLong(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            if (_id != -1) {
+                db.update(table, values, WeatherContract.WeatherEntry._ID + " = ?",
+                        new String[]{Long.toString(_id)});
+            } else {
+                _id = db.insert(table, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return _id;
+    }
+
+    /*
+        Inserts a location, or updates the row that has the same location setting with the given
+        values, and returns the row id either way.  The lookup and the write share a transaction,
+        so two syncs resolving the same location can't both insert it.
+     */
+    private long upsertLocation(SQLiteDatabase db, ContentValues values) {
+        String locationSetting =
+                values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        long _id = -1;
+        db.beginTransaction();
+        try {
+            if (locationSetting != null) {
+                Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                        new String[]{WeatherContract.LocationEntry._ID},
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                        new String[]{locationSetting},
+                        null,
+                        null,
+                        null);
+                try {
+                    if (cursor.moveToFirst()) {
+                        _id = cursor.getLong(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            if (_id != -1) {
+                db.update(WeatherContract.LocationEntry.TABLE_NAME, values,
+                        WeatherContract.LocationEntry._ID + " = ?",
+                        new String[]{Long.toString(_id)});
+            } else {
+                _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // Lets the next sync of this location skip the provider altogether.
+        LocationIdCache cache = LocationIdCache.getInstance();
+        if (_id > 0 && locationSetting != null
+                && values.containsKey(WeatherContract.LocationEntry.COLUMN_CITY_NAME)
+                && values.containsKey(WeatherContract.LocationEntry.COLUMN_COORD_LAT)
+                && values.containsKey(WeatherContract.LocationEntry.COLUMN_COORD_LONG)) {
+            cache.put(locationSetting, _id,
+                    values.getAsString(WeatherContract.LocationEntry.COLUMN_CITY_NAME),
+                    values.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT),
+                    values.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG),
+                    values.getAsString(WeatherContract.LocationEntry.COLUMN_GEOHASH));
+        }
+        return _id;
+    }
+
     private void normalizeDate(ContentValues values) {
         // normalize the date value
         if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
@@ -301,10 +534,13 @@ public class WeatherProvider extends ContentProvider {
                 normalizeDate(values);
                 rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                sWeatherVersion.incrementAndGet();
                 break;
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                LocationIdCache.getInstance().clear();
+                sWeatherVersion.incrementAndGet();
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -317,31 +553,354 @@ public class WeatherProvider extends ContentProvider {
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
-                db.beginTransaction();
-                int returnCount = 0;
-                try {
-                    for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            returnCount++;
-                        }
-                    }
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
-                }
-                getContext().getContentResolver().notifyChange(uri, null);
-                return returnCount;
+                return bulkInsertDays(uri, WeatherContract.WeatherEntry.TABLE_NAME, values);
+            case HOURLY:
+                return bulkInsertDays(uri, WeatherContract.HourlyEntry.TABLE_NAME, values);
+            case SYNC_COMMIT:
+                return commitSync(uri, values);
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /*
+        Inserts rows keyed by location and day in one transaction, skipping the days that are
+        stored already, and returns the number of rows written.
+     */
+    private int bulkInsertDays(Uri uri, String table, ContentValues[] values) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        int returnCount;
+        try {
+            returnCount = insertDays(db, table, values, null);
+            if (returnCount < 0) {
+                // Interrupted; ending the transaction rolls it back.
+                return 0;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        // Only tell observers if a day actually changed
+        if (returnCount > 0) {
+            if (WeatherContract.WeatherEntry.TABLE_NAME.equals(table)) {
+                sWeatherVersion.incrementAndGet();
+            }
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return returnCount;
+    }
+
+    /*
+        Stores the weather days of a sync and trims the days up to the URI's date, in one
+        transaction.  Loaders are told once per location whose days changed, on its
+        WeatherEntry.buildWeatherLocation URI, rather than once for the insert and once more for
+        the trim on the whole table.  Returns the number of days written.
+     */
+    private int commitSync(Uri uri, ContentValues[] values) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final String trimDate = Long.toString(WeatherContract.WeatherEntry.getTrimDateFromUri(uri));
+        HashSet<Long> changedLocations = new HashSet<Long>();
+        HashSet<Long> writtenLocations;
+        db.beginTransaction();
+        int returnCount;
+        try {
+            returnCount = insertDays(db, WeatherContract.WeatherEntry.TABLE_NAME, values,
+                    changedLocations);
+            if (returnCount < 0) {
+                return 0;
+            }
+            writtenLocations = new HashSet<Long>(changedLocations);
+
+            // delete old data so we don't build up an endless history
+            final String trimSelection = WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?";
+            // Not DISTINCT: the set takes care of duplicates, and a DISTINCT makes SQLite
+            // prefer walking the whole forecast index in location order over the date range.
+            Cursor trimmed = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                    new String[]{WeatherContract.WeatherEntry.COLUMN_LOC_KEY},
+                    trimSelection, new String[]{trimDate}, null, null, null);
+            try {
+                while (trimmed.moveToNext()) {
+                    changedLocations.add(trimmed.getLong(0));
+                }
+            } finally {
+                trimmed.close();
+            }
+            db.delete(WeatherContract.WeatherEntry.TABLE_NAME, trimSelection,
+                    new String[]{trimDate});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (!changedLocations.isEmpty()) {
+            sWeatherVersion.incrementAndGet();
+        }
+        synchronized (sLocationVersions) {
+            for (long locationId : writtenLocations) {
+                sLocationVersions.put(locationId, getLocationVersion(locationId) + 1);
+            }
+        }
+        for (String locationSetting : getLocationSettings(db, changedLocations)) {
+            getContext().getContentResolver().notifyChange(
+                    WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting), null);
+        }
+        return returnCount;
+    }
+
+    /*
+        Inserts the rows that aren't stored already, within the caller's transaction, and adds the
+        location of every row written to changedLocations, if given.  Returns the number of rows
+        written, or -1 if the thread was interrupted on the way.
+     */
+    private int insertDays(SQLiteDatabase db, String table, ContentValues[] values,
+                           Set<Long> changedLocations) {
+        if (values.length == 0) {
+            return 0;
+        }
+        DayStatements statements = DayStatements.compile(db, table, values[0]);
+        int returnCount = 0;
+        try {
+            for (ContentValues value : values) {
+                // A canceled sync interrupts its thread.  Stop here, and let the caller end the
+                // transaction without marking it successful, so the days written so far are
+                // rolled back.
+                if (Thread.currentThread().isInterrupted()) {
+                    return -1;
+                }
+                normalizeDate(value);
+                // Rewriting a day we already have would touch its pages and indexes and wake
+                // up every observer for nothing, so only the days that changed are written.
+                boolean written;
+                if (statements != null && statements.fits(value)) {
+                    written = statements.write(value);
+                } else {
+                    written = !isStoredUnchanged(db, table, value)
+                            && upsertDay(db, table, value) != -1;
+                }
+                if (written) {
+                    returnCount++;
+                    if (changedLocations != null) {
+                        changedLocations.add(value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY));
+                    }
+                }
+            }
+        } finally {
+            if (statements != null) {
+                statements.close();
+            }
+        }
+        return returnCount;
+    }
+
+    /*
+        The statements insertDays writes a day with, compiled once for the columns of the first
+        row and only bound again for every row after it, where db.query, db.update and db.insert
+        would build and compile the same SQL for each row.  A bulk insert comes from one parser,
+        so its rows normally all have the same columns; a row that doesn't takes the per-row
+        path.  Both the weather and the hourly table are keyed by location and day.
+     */
+    private static class DayStatements {
+        // What the probe finds for a row
+        private static final long NOT_STORED = -1;
+        private static final long STORED_UNCHANGED = 0;
+
+        // The location and the day come first.  The statements refer to the columns as ?1, ?2
+        // and so on, so every statement binds the same way.
+        private final String[] mColumns;
+        private final SQLiteStatement mProbe;
+        private final SQLiteStatement mUpdate;
+        private final SQLiteStatement mInsert;
+
+        private DayStatements(String[] columns, SQLiteStatement probe, SQLiteStatement update,
+                              SQLiteStatement insert) {
+            mColumns = columns;
+            mProbe = probe;
+            mUpdate = update;
+            mInsert = insert;
+        }
+
+        /*
+            Returns null if the row lacks the location or the day.
+         */
+        static DayStatements compile(SQLiteDatabase db, String table, ContentValues first) {
+            final String locKey = WeatherContract.WeatherEntry.COLUMN_LOC_KEY;
+            final String date = WeatherContract.WeatherEntry.COLUMN_DATE;
+            if (!first.containsKey(locKey) || !first.containsKey(date)) {
+                return null;
+            }
+            String[] columns = new String[first.size()];
+            columns[0] = locKey;
+            columns[1] = date;
+            int i = 2;
+            for (String column : first.keySet()) {
+                if (!column.equals(locKey) && !column.equals(date)) {
+                    columns[i++] = column;
+                }
+            }
+
+            final String key = " WHERE " + locKey + " = ?1 AND " + date + " = ?2";
+            // col3 IS ?3 AND col4 IS ?4 ...; IS, so a stored null matches a null
+            StringBuilder unchanged = new StringBuilder();
+            // col3 = ?3, col4 = ?4 ...
+            StringBuilder assignments = new StringBuilder();
+            StringBuilder params = new StringBuilder("?1, ?2");
+            for (i = 2; i < columns.length; i++) {
+                String param = "?" + (i + 1);
+                unchanged.append(i == 2 ? "" : " AND ").append(columns[i]).append(" IS ")
+                        .append(param);
+                assignments.append(i == 2 ? "" : ", ").append(columns[i]).append(" = ")
+                        .append(param);
+                params.append(", ").append(param);
+            }
+
+            // -1 without a row for the day, 0 if it holds these values already, 1 otherwise
+            String probe = "SELECT COALESCE((SELECT CASE WHEN "
+                    + (unchanged.length() > 0 ? unchanged : "1")
+                    + " THEN 0 ELSE 1 END FROM " + table + key + "), -1)";
+            // With nothing but the key there is nothing to update, and the probe never says 1.
+            String update = "UPDATE " + table + " SET "
+                    + (assignments.length() > 0 ? assignments : locKey + " = ?1") + key;
+            String insert = "INSERT INTO " + table + " (" + TextUtils.join(", ", columns)
+                    + ") VALUES (" + params + ")";
+
+            return new DayStatements(columns, db.compileStatement(probe),
+                    db.compileStatement(update), db.compileStatement(insert));
+        }
+
+        boolean fits(ContentValues value) {
+            if (value.size() != mColumns.length) {
+                return false;
+            }
+            for (String column : mColumns) {
+                if (!value.containsKey(column)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /*
+            Updates the stored row for the day in place if it holds other values, or inserts the
+            day if there is none.  Returns false if the day is stored unchanged already, or the
+            table turned it down.
+         */
+        boolean write(ContentValues value) {
+            bind(mProbe, value);
+            long stored = mProbe.simpleQueryForLong();
+            if (stored == STORED_UNCHANGED) {
+                return false;
+            }
+            SQLiteStatement statement = stored == NOT_STORED ? mInsert : mUpdate;
+            bind(statement, value);
+            try {
+                statement.execute();
+                return true;
+            } catch (SQLException e) {
+                // Like db.insert, which logs and returns -1, so one bad row doesn't cost the
+                // rest of the batch.  db.update would throw instead.
+                Log.e(LOG_TAG, "Error writing " + value, e);
+                return false;
+            }
+        }
+
+        private void bind(SQLiteStatement statement, ContentValues value) {
+            statement.clearBindings();
+            for (int i = 0; i < mColumns.length; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, value.get(mColumns[i]));
+            }
+        }
+
+        void close() {
+            mProbe.close();
+            mUpdate.close();
+            mInsert.close();
+        }
+    }
+
+    private List<String> getLocationSettings(SQLiteDatabase db, Set<Long> locationIds) {
+        ArrayList<String> locationSettings = new ArrayList<String>(locationIds.size());
+        if (locationIds.isEmpty()) {
+            return locationSettings;
+        }
+        StringBuilder selection = new StringBuilder(WeatherContract.LocationEntry._ID + " IN (");
+        String[] selectionArgs = new String[locationIds.size()];
+        int i = 0;
+        for (Long locationId : locationIds) {
+            selection.append(i == 0 ? "?" : ", ?");
+            selectionArgs[i++] = Long.toString(locationId);
+        }
+        selection.append(')');
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                selection.toString(), selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                locationSettings.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return locationSettings;
+    }
+
+    //location_id = ? AND date = ?
+    private static final String sLocationIdAndDaySelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+
+    /*
+        Returns true if the table already holds a row for the same location and day with exactly
+        the given values.  Both the weather and the hourly table use these key columns.
+     */
+    private boolean isStoredUnchanged(SQLiteDatabase db, String table, ContentValues value) {
+        Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (locationId == null || date == null) {
+            return false;
+        }
+
+        String[] columns = value.keySet().toArray(new String[value.size()]);
+        Cursor cursor = db.query(table,
+                columns,
+                sLocationIdAndDaySelection,
+                new String[]{Long.toString(locationId), Long.toString(date)},
+                null,
+                null,
+                null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return false;
+            }
+            for (int i = 0; i < columns.length; i++) {
+                Object newValue = value.get(columns[i]);
+                if (newValue == null) {
+                    if (!cursor.isNull(i)) {
+                        return false;
+                    }
+                } else if (cursor.isNull(i)) {
+                    return false;
+                } else if (newValue instanceof Number) {
+                    if (((Number) newValue).doubleValue() != cursor.getDouble(i)) {
+                        return false;
+                    }
+                } else if (newValue instanceof byte[]) {
+                    if (!Arrays.equals((byte[]) newValue, cursor.getBlob(i))) {
+                        return false;
+                    }
+                } else if (!newValue.toString().equals(cursor.getString(i))) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            cursor.close();
+        }
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
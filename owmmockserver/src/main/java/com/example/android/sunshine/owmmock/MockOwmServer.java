@@ -0,0 +1,571 @@
+package com.example.android.sunshine.owmmock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local stand-in for the OpenWeatherMap daily and 3-hourly forecast APIs.
+ *
+ * It answers {@code GET /data/2.5/forecast/daily} with either a recorded payload or a synthetic
+ * one built from the request's {@code q} / {@code lat} / {@code lon} and {@code cnt} parameters,
+ * and {@code GET /data/2.5/forecast} with synthetic 3-hourly points for the same parameters.
+ * Synthetic payloads are stable for a location within a day, so ETags and digests behave as they
+ * do against the real server.  Latency, failures and payload size can be changed at any time,
+ * which makes it possible to benchmark syncs without a network.
+ *
+ * Connections are kept alive, responses are gzipped when the client asks for it and
+ * {@code If-None-Match} is honoured.
+ */
+public class MockOwmServer implements Closeable {
+    public static final String FORECAST_PATH = "/data/2.5/forecast/daily";
+    public static final String HOURLY_FORECAST_PATH = "/data/2.5/forecast";
+
+    /**
+     * What a failing request gets.
+     */
+    public enum Failure {
+        // HTTP 500 with no forecast
+        HTTP_500,
+        // HTTP 200 with an OWM error code in the body
+        COD_ERROR,
+        // HTTP 200 with OWM's "city not found"
+        NOT_FOUND,
+        // HTTP 200 with a forecast that is cut off halfway
+        MALFORMED_JSON,
+        // The connection is dropped before anything is sent
+        DISCONNECT
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int SOCKET_TIMEOUT_MS = 30 * 1000;
+    private static final long DAY_IN_SECONDS = 24 * 60 * 60;
+    private static final int DEFAULT_DAYS = 7;
+    private static final long HOURLY_STEP_SECONDS = 3 * 60 * 60;
+    // OWM's free 3-hourly forecast covers five days
+    private static final int HOURLY_POINTS = 40;
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final Random mRandom = new Random();
+
+    private volatile long mLatencyMs;
+    private volatile long mLatencyJitterMs;
+    private volatile double mFailureRate;
+    private volatile Failure mFailure = Failure.HTTP_500;
+    private volatile int mPaddingBytesPerDay;
+    private volatile byte[] mRecordedPayload;
+    private volatile boolean mETags = true;
+    private volatile boolean mGzip = true;
+    private volatile int mHourlyRevision;
+
+    private final AtomicLong mConnections = new AtomicLong();
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mNotModified = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    /**
+     * Starts a server on a free port of the loopback interface.
+     */
+    public MockOwmServer() throws IOException {
+        this(0);
+    }
+
+    public MockOwmServer(int port) throws IOException {
+        mServerSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "MockOwmServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return the URL to use in place of OWM's forecast URL, without a query.
+     */
+    public String getForecastUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + FORECAST_PATH;
+    }
+
+    /**
+     * Delays every response by the given latency plus a random part of up to the jitter.
+     */
+    public MockOwmServer setLatency(long latencyMs, long jitterMs) {
+        mLatencyMs = latencyMs;
+        mLatencyJitterMs = jitterMs;
+        return this;
+    }
+
+    /**
+     * Fails the given fraction of requests, 0 to 1, in the given way.
+     */
+    public MockOwmServer setFailures(double rate, Failure failure) {
+        mFailureRate = rate;
+        mFailure = failure;
+        return this;
+    }
+
+    /**
+     * Grows every synthetic day by the given number of bytes, in a field the app ignores.
+     */
+    public MockOwmServer setPaddingBytesPerDay(int paddingBytes) {
+        mPaddingBytesPerDay = paddingBytes;
+        return this;
+    }
+
+    /**
+     * Serves the given OWM response to every request instead of a synthetic one.  Null goes back
+     * to synthetic payloads.
+     */
+    public MockOwmServer setRecordedPayload(byte[] payload) {
+        mRecordedPayload = payload;
+        return this;
+    }
+
+    /**
+     * Changes every synthetic hourly payload, as OWM does when it publishes a new hourly run
+     * while the daily forecast stays the same.
+     */
+    public MockOwmServer setHourlyRevision(int revision) {
+        mHourlyRevision = revision;
+        return this;
+    }
+
+    public MockOwmServer setETagsEnabled(boolean enabled) {
+        mETags = enabled;
+        return this;
+    }
+
+    public MockOwmServer setGzipEnabled(boolean enabled) {
+        mGzip = enabled;
+        return this;
+    }
+
+    /**
+     * @return the number of connections accepted; fewer than requests when clients reuse them.
+     */
+    public long getConnectionCount() {
+        return mConnections.get();
+    }
+
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    public long getFailureCount() {
+        return mFailures.get();
+    }
+
+    public long getNotModifiedCount() {
+        return mNotModified.get();
+    }
+
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServerSocket.close();
+        mExecutor.shutdownNow();
+    }
+
+    private void acceptConnections() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // Closed
+                return;
+            }
+            mConnections.incrementAndGet();
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException e) {
+                        // The client went away; nothing to do.
+                    } finally {
+                        closeQuietly(socket);
+                    }
+                }
+            });
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        socket.setSoTimeout(SOCKET_TIMEOUT_MS);
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+        while (true) {
+            String requestLine = readLine(in);
+            if (requestLine == null || requestLine.isEmpty()) {
+                return;
+            }
+            Map<String, String> headers = new HashMap<String, String>();
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                            line.substring(colon + 1).trim());
+                }
+            }
+            mRequests.incrementAndGet();
+
+            sleep(mLatencyMs + (mLatencyJitterMs > 0 ? nextLong(mLatencyJitterMs) : 0));
+
+            String[] parts = requestLine.split(" ");
+            String target = parts.length > 1 ? parts[1] : "/";
+            boolean keepAlive = !"close".equalsIgnoreCase(headers.get("connection"))
+                    && requestLine.endsWith("HTTP/1.1");
+
+            Failure failure = null;
+            if (mFailureRate > 0 && nextDouble() < mFailureRate) {
+                failure = mFailure;
+                mFailures.incrementAndGet();
+            }
+            if (failure == Failure.DISCONNECT) {
+                return;
+            }
+
+            int query = target.indexOf('?');
+            String path = query < 0 ? target : target.substring(0, query);
+            Map<String, String> params = parseQuery(query < 0 ? "" : target.substring(query + 1));
+
+            if (!FORECAST_PATH.equals(path) && !HOURLY_FORECAST_PATH.equals(path)) {
+                writeResponse(out, 404, "Not Found", null, "Not Found".getBytes(UTF_8), false,
+                        keepAlive);
+            } else if (failure == Failure.HTTP_500) {
+                writeResponse(out, 500, "Internal Server Error", null,
+                        "Internal Server Error".getBytes(UTF_8), false, keepAlive);
+            } else {
+                byte[] body = HOURLY_FORECAST_PATH.equals(path)
+                        ? createHourlyBody(params, failure) : createBody(params, failure);
+                String eTag = mETags && failure == null ? createETag(body) : null;
+                if (eTag != null && eTag.equals(headers.get("if-none-match"))) {
+                    mNotModified.incrementAndGet();
+                    writeResponse(out, 304, "Not Modified", eTag, null, false, keepAlive);
+                } else {
+                    String acceptEncoding = headers.get("accept-encoding");
+                    boolean gzip = mGzip && acceptEncoding != null
+                            && acceptEncoding.toLowerCase(Locale.US).contains("gzip");
+                    writeResponse(out, 200, "OK", eTag, body, gzip, keepAlive);
+                }
+            }
+            out.flush();
+
+            if (!keepAlive) {
+                return;
+            }
+        }
+    }
+
+    private byte[] createBody(Map<String, String> params, Failure failure) {
+        if (failure == Failure.COD_ERROR) {
+            return "{\"cod\":\"502\",\"message\":\"Error: upstream unavailable\"}".getBytes(UTF_8);
+        }
+        if (failure == Failure.NOT_FOUND) {
+            return "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}".getBytes(UTF_8);
+        }
+
+        byte[] body = mRecordedPayload;
+        if (body == null) {
+            int numDays = DEFAULT_DAYS;
+            try {
+                if (params.containsKey("cnt")) {
+                    numDays = Integer.parseInt(params.get("cnt"));
+                }
+            } catch (NumberFormatException e) {
+                // Keep the default, like OWM does
+            }
+            String location = params.containsKey("q") ? params.get("q")
+                    : params.get("lat") + "," + params.get("lon");
+            body = createForecastJson(location, numDays, mPaddingBytesPerDay);
+        }
+
+        if (failure == Failure.MALFORMED_JSON) {
+            byte[] truncated = new byte[body.length / 2];
+            System.arraycopy(body, 0, truncated, 0, truncated.length);
+            return truncated;
+        }
+        return body;
+    }
+
+    private byte[] createHourlyBody(Map<String, String> params, Failure failure) {
+        if (failure == Failure.COD_ERROR) {
+            return "{\"cod\":\"502\",\"message\":\"Error: upstream unavailable\"}".getBytes(UTF_8);
+        }
+        if (failure == Failure.NOT_FOUND) {
+            return "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}".getBytes(UTF_8);
+        }
+
+        String location = params.containsKey("q") ? params.get("q")
+                : params.get("lat") + "," + params.get("lon");
+        byte[] body = createHourlyForecastJson(location, HOURLY_POINTS, mHourlyRevision);
+
+        if (failure == Failure.MALFORMED_JSON) {
+            byte[] truncated = new byte[body.length / 2];
+            System.arraycopy(body, 0, truncated, 0, truncated.length);
+            return truncated;
+        }
+        return body;
+    }
+
+    /**
+     * Builds a daily forecast shaped like OWM's.  The values depend only on the location and the
+     * current UTC day, so asking twice on the same day returns the same bytes.
+     */
+    public static byte[] createForecastJson(String location, int numDays, int paddingBytes) {
+        long today = System.currentTimeMillis() / 1000 / DAY_IN_SECONDS * DAY_IN_SECONDS;
+        Random random = new Random(location.hashCode() * 31L + today);
+
+        StringBuilder padding = new StringBuilder(paddingBytes);
+        for (int i = 0; i < paddingBytes; i++) {
+            padding.append((char) ('a' + i % 26));
+        }
+
+        StringBuilder json = new StringBuilder(512 + numDays * (400 + paddingBytes));
+        json.append("{\"city\":{\"id\":").append(Math.abs(location.hashCode()))
+                .append(",\"name\":\"").append(escape(location)).append("\",\"coord\":{")
+                .append(String.format(Locale.US, "\"lon\":%.4f,\"lat\":%.4f",
+                        random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90))
+                .append("},\"country\":\"US\",\"population\":0},")
+                .append("\"cod\":\"200\",\"message\":0.0123,\"cnt\":").append(numDays)
+                .append(",\"list\":[");
+        for (int i = 0; i < numDays; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            double min = 5 + random.nextDouble() * 15;
+            double max = min + random.nextDouble() * 10;
+            int weatherId = 500 + random.nextInt(5);
+            json.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"temp\":{\"day\":%.2f,\"min\":%.2f,\"max\":%.2f,\"night\":%.2f," +
+                            "\"eve\":%.2f,\"morn\":%.2f},\"pressure\":%.2f,\"humidity\":%d," +
+                            "\"weather\":[{\"id\":%d,\"main\":\"Rain\",\"description\":\"light rain\"," +
+                            "\"icon\":\"10d\"}],\"speed\":%.2f,\"deg\":%d,\"clouds\":%d",
+                    today + i * DAY_IN_SECONDS + 12 * 60 * 60, (min + max) / 2, min, max, min,
+                    max, min, 990 + random.nextDouble() * 40, 30 + random.nextInt(70), weatherId,
+                    random.nextDouble() * 12, random.nextInt(360), random.nextInt(100)));
+            if (paddingBytes > 0) {
+                json.append(",\"padding\":\"").append(padding).append('"');
+            }
+            json.append('}');
+        }
+        json.append("]}");
+        return json.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Builds a 3-hourly forecast shaped like OWM's, starting at the current UTC day.  Like the
+     * daily one it is the same all day for a location and revision.
+     */
+    public static byte[] createHourlyForecastJson(String location, int numPoints, int revision) {
+        long today = System.currentTimeMillis() / 1000 / DAY_IN_SECONDS * DAY_IN_SECONDS;
+        Random random = new Random((location.hashCode() * 31L + today) * 31L + revision);
+
+        StringBuilder json = new StringBuilder(256 + numPoints * 300);
+        json.append("{\"cod\":\"200\",\"message\":0.0123,\"cnt\":").append(numPoints)
+                .append(",\"list\":[");
+        for (int i = 0; i < numPoints; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"main\":{\"temp\":%.2f,\"pressure\":%.2f,\"humidity\":%d}," +
+                            "\"weather\":[{\"id\":%d,\"main\":\"Rain\",\"description\":" +
+                            "\"light rain\",\"icon\":\"10d\"}],\"wind\":{\"speed\":%.2f," +
+                            "\"deg\":%.2f}}",
+                    today + i * HOURLY_STEP_SECONDS, 5 + random.nextDouble() * 20,
+                    990 + random.nextDouble() * 40, 30 + random.nextInt(70),
+                    500 + random.nextInt(5), random.nextDouble() * 12, random.nextDouble() * 360));
+        }
+        json.append("],\"city\":{\"id\":").append(Math.abs(location.hashCode()))
+                .append(",\"name\":\"").append(escape(location)).append("\",\"country\":\"US\"}}");
+        return json.toString().getBytes(UTF_8);
+    }
+
+    private void writeResponse(OutputStream out, int code, String reason, String eTag,
+                               byte[] body, boolean gzip, boolean keepAlive) throws IOException {
+        if (body != null && gzip) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4);
+            GZIPOutputStream gzipOut = new GZIPOutputStream(compressed);
+            gzipOut.write(body);
+            gzipOut.close();
+            body = compressed.toByteArray();
+        }
+
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(code).append(' ').append(reason).append("\r\n");
+        head.append("Content-Type: application/json; charset=utf-8\r\n");
+        head.append("Content-Length: ").append(body == null ? 0 : body.length).append("\r\n");
+        if (eTag != null) {
+            head.append("ETag: ").append(eTag).append("\r\n");
+        }
+        if (body != null && gzip) {
+            head.append("Content-Encoding: gzip\r\n");
+        }
+        head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        head.append("\r\n");
+
+        byte[] headBytes = head.toString().getBytes(UTF_8);
+        out.write(headBytes);
+        long sent = headBytes.length;
+        if (body != null) {
+            out.write(body);
+            sent += body.length;
+        }
+        mBytesSent.addAndGet(sent);
+    }
+
+    private static String createETag(byte[] body) {
+        try {
+            byte[] hash = MessageDigest.getInstance("MD5").digest(body);
+            StringBuilder eTag = new StringBuilder("\"");
+            for (byte b : hash) {
+                eTag.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return eTag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<String, String>();
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            try {
+                if (equals < 0) {
+                    params.put(URLDecoder.decode(pair, "UTF-8"), "");
+                } else {
+                    params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                            URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                // Skip what we can't decode
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Reads a CRLF terminated line, or null at the end of the stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private synchronized double nextDouble() {
+        return mRandom.nextDouble();
+    }
+
+    private synchronized long nextLong(long bound) {
+        return (long) (mRandom.nextDouble() * bound);
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Runs the server on its own, e.g. for load testing a device on the same network through
+     * {@code adb reverse}.
+     *
+     * Usage: MockOwmServer [port] [latencyMs] [failureRate] [recorded payload file]
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        MockOwmServer server = new MockOwmServer(port);
+        if (args.length > 1) {
+            server.setLatency(Long.parseLong(args[1]), 0);
+        }
+        if (args.length > 2) {
+            server.setFailures(Double.parseDouble(args[2]), Failure.HTTP_500);
+        }
+        if (args.length > 3) {
+            File file = new File(args[3]);
+            byte[] payload = new byte[(int) file.length()];
+            InputStream in = new FileInputStream(file);
+            try {
+                int read = 0;
+                while (read < payload.length) {
+                    int count = in.read(payload, read, payload.length - read);
+                    if (count < 0) {
+                        throw new SocketException("Unexpected end of " + file);
+                    }
+                    read += count;
+                }
+            } finally {
+                in.close();
+            }
+            server.setRecordedPayload(payload);
+        }
+        System.out.println("Serving " + server.getForecastUrl());
+        Thread.currentThread().join();
+    }
+}